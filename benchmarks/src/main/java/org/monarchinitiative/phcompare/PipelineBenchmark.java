@@ -0,0 +1,154 @@
+package org.monarchinitiative.phcompare;
+
+import org.monarchinitiative.phcompare.stats.HPOChiSquared;
+import org.monarchinitiative.phcompare.stats.PatientSimilarity;
+import org.monarchinitiative.phcompare.stats.SimilarityMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PipelineBenchmark times each stage of phenoCompare, in the order PhenoCompare.main runs them, on the bundled
+ * patients file and on synthetic cohorts of several sizes (see SyntheticCohort). Each trial prepares the
+ * inputs of every stage once, so a benchmark method times just its own stage.
+ *
+ * The benchmarks read the bundled files relative to the phenoCompare directory, given by the system property
+ * phcompare.home (default: the parent of the working directory), and hp.obo from the directory given by
+ * phcompare.hpoDir (default: src/main/resources of phcompare.home).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    // "bundled" for gpi_variants2018July06.tsv, otherwise the number of synthetic patients
+    @Param({"bundled", "1000", "5000"})
+    public String cohort;
+
+    // worker threads for the parallel stages (-t)
+    @Param({"1"})
+    public int threads;
+
+    private File workDir;
+    private File genesFile;
+    private File patientsFile;
+    private GeneGroups geneGroups;
+    private PhenoCompare phenoC;
+    private OutputMgr outputMgr;
+    private List<Patient> patients;
+
+    @Setup
+    public void setUp() throws Exception {
+        File home = new File(System.getProperty("phcompare.home", ".."));
+        File resources = new File(home, "src/main/resources");
+        String hpoDir = System.getProperty("phcompare.hpoDir", resources.getPath());
+        File bundled = new File(resources, "gpi_variants2018July06.tsv");
+        genesFile = new File(resources, "gpiGenesTwoGroups.txt");
+        workDir = Files.createTempDirectory("phcompareBench").toFile();
+        if (cohort.equals("bundled")) {
+            patientsFile = bundled;
+        } else {
+            patientsFile = new File(workDir, "patients.tsv");
+            SyntheticCohort.write(bundled, genesFile, Integer.parseInt(cohort), patientsFile);
+        }
+
+        phenoC = new PhenoCompare(new String[] {"-o", hpoDir, "-g", genesFile.getPath(),
+                "-p", patientsFile.getPath(), "-r", new File(workDir, "results").getPath(),
+                "-t", Integer.toString(threads)});
+        outputMgr = new OutputMgr(phenoC);
+        geneGroups = new GeneGroups(genesFile.getPath());
+        phenoC.createGeneGroups();
+        phenoC.createPatientGroups();
+        phenoC.countPatients();
+        phenoC.calculateChiSq();
+        phenoC.getTermChiSq().sort(Comparator.reverseOrder());
+        patients = new ArrayList<>();
+        for (PatientGroup pg : phenoC.getPatientGroups()) {
+            patients.addAll(pg.getPatients());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        File[] results = new File(workDir, "results").listFiles();
+        if (results != null) {
+            for (File f : results) {
+                f.delete();
+            }
+        }
+        new File(workDir, "results").delete();
+        if (!cohort.equals("bundled")) {
+            patientsFile.delete();
+        }
+        workDir.delete();
+    }
+
+    @Benchmark
+    public void parsePatients(Blackhole bh) throws IOException {
+        PatientFileReader.read(patientsFile, threads, bh::consume, bh::consume);
+    }
+
+    @Benchmark
+    public GeneGroups loadGeneGroups() throws Exception {
+        return new GeneGroups(genesFile.getPath());
+    }
+
+    @Benchmark
+    public void lookupGenes(Blackhole bh) {
+        for (Patient pat : patients) {
+            bh.consume(geneGroups.whichGroup(pat.getGene()));
+        }
+    }
+
+    @Benchmark
+    public int[] countPatients() {
+        phenoC.countPatients();
+        return phenoC.getTermCounts();
+    }
+
+    @Benchmark
+    public List<HPOChiSquared> calculateChiSq() {
+        // calculateChiSq adds to the list, so start each invocation from an empty one
+        phenoC.getTermChiSq().clear();
+        phenoC.calculateChiSq();
+        return phenoC.getTermChiSq();
+    }
+
+    @Benchmark
+    public double patientSimilarity() {
+        PatientSimilarity ps = new PatientSimilarity(patients, phenoC.getTermIndex(), threads);
+        try (SimilarityMatrix matrix = ps.getSimilarityMatrix()) {
+            return matrix.get(matrix.size() - 1, 0);
+        }
+    }
+
+    @Benchmark
+    public void writeChiSquared() throws IOException {
+        outputMgr.writeChiSquared();
+    }
+
+    @Benchmark
+    public void writeDissim() throws IOException {
+        outputMgr.writeDissim();
+    }
+}
@@ -0,0 +1,77 @@
+package org.monarchinitiative.phcompare;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * SyntheticCohort writes a patients file of any size modelled on the bundled patients file: each synthetic
+ * patient has a gene drawn from the genes file and HPO terms drawn, with their frequencies, from the terms
+ * of the bundled patients. Using only terms that occur in the bundled file keeps the synthetic patients valid
+ * for the same hp.obo. Files are generated from a fixed seed, so every run benchmarks the same cohort.
+ */
+class SyntheticCohort {
+    private static final long SEED = 20180706L;
+    private static final int MIN_TERMS = 5;     // fewest HPO terms of a synthetic patient
+    private static final int MAX_TERMS = 30;    // most HPO terms of a synthetic patient
+    private static final int NUM_FIELDS = 7;    // fields of a patient record; HPO terms are the last
+
+    private SyntheticCohort() { }
+
+    /**
+     * Writes a synthetic patients file.
+     * @param bundled        bundled patients file, from which the HPO terms are drawn
+     * @param genesFile      genes file, from which the genes are drawn
+     * @param numPatients    number of patients to write
+     * @param out            file to be written
+     * @throws IOException   if an input file cannot be read or the output file cannot be written
+     */
+    static void write(File bundled, File genesFile, int numPatients, File out) throws IOException {
+        List<String> terms = new ArrayList<>();
+        for (String line : Files.readAllLines(bundled.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length == NUM_FIELDS) {
+                for (String term : fields[NUM_FIELDS - 1].split(";")) {
+                    terms.add(term.trim());
+                }
+            }
+        }
+        List<String> genes = new ArrayList<>();
+        for (String line : Files.readAllLines(genesFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("#")) {
+                for (String gene : line.trim().split("\\s+")) {
+                    if (!gene.isEmpty()) {
+                        genes.add(gene);
+                    }
+                }
+            }
+        }
+
+        SplittableRandom rng = new SplittableRandom(SEED);
+        try (BufferedWriter bw = Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8)) {
+            bw.write("#ID\t#SYMBOL\tPMID\tF_AUTH\tID_SUMMARY\tVARIANTS\tHPO");
+            bw.newLine();
+            for (int p = 0; p < numPatients; p++) {
+                String gene = genes.get(rng.nextInt(genes.size()));
+                bw.write(String.format("S%d-%s\t%s\t%d\tSynthetic\tSynthetic;2018;%s;Patient %d\t.\t", p, gene, gene,
+                        30000000 + p, gene, p));
+                int numTerms = MIN_TERMS + rng.nextInt(MAX_TERMS - MIN_TERMS + 1);
+                for (int i = 0; i < numTerms; i++) {
+                    if (i > 0) {
+                        bw.write(';');
+                    }
+                    bw.write(terms.get(rng.nextInt(terms.size())));
+                }
+                bw.newLine();
+            }
+        }
+    }
+}
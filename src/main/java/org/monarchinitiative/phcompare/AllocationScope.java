@@ -0,0 +1,192 @@
+package org.monarchinitiative.phcompare;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AllocationScope measures the heap allocation and the CPU time of the threads doing one piece of work (an
+ * analysis of the server, a configuration of a batch run) while other work runs in the same JVM. The scope
+ * covers the thread that opens it, from then until it is closed, and the worker threads of the pools that
+ * the threads of the scope create with forkJoinPool or fixedThreadPool, for their whole life. Pools created
+ * outside any scope are ordinary pools.
+ *
+ * The measures are sums over these threads of com.sun.management.ThreadMXBean's per-thread counters; on a
+ * JVM that does not provide both counters, they are -1.
+ */
+public final class AllocationScope implements AutoCloseable {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final ThreadLocal<AllocationScope> CURRENT = new ThreadLocal<>();
+
+    // counters of each live thread of the scope when it joined the scope: allocated bytes, CPU nanoseconds
+    private final Map<Thread, long[]> live = new ConcurrentHashMap<>();
+    private final AtomicLong finishedBytes = new AtomicLong();  // allocated by threads that have left the scope
+    private final AtomicLong finishedCpu = new AtomicLong();    // CPU time of threads that have left the scope
+    private final Thread owner;
+
+    private AllocationScope() {
+        owner = Thread.currentThread();
+    }
+
+    /**
+     * Opens a scope on the current thread. Close it on the same thread.
+     * @return AllocationScope    the new scope
+     */
+    static AllocationScope open() {
+        AllocationScope scope = new AllocationScope();
+        scope.join();
+        return scope;
+    }
+
+    /**
+     * @return long    bytes allocated by the threads of the scope since it was opened, or -1 if not available
+     */
+    long getAllocatedBytes() {
+        if (THREADS == null || !THREADS.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long bytes = finishedBytes.get();
+        for (Map.Entry<Thread, long[]> e : live.entrySet()) {
+            long now = THREADS.getThreadAllocatedBytes(e.getKey().getId());
+            if (now >= 0) {
+                bytes += now - e.getValue()[0];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return long    CPU time of the threads of the scope since it was opened in nanoseconds, or -1 if not
+     *                 available
+     */
+    long getCpuNanos() {
+        if (THREADS == null || !THREADS.isThreadCpuTimeEnabled()) {
+            return -1;
+        }
+        long nanos = finishedCpu.get();
+        for (Map.Entry<Thread, long[]> e : live.entrySet()) {
+            long now = THREADS.getThreadCpuTime(e.getKey().getId());
+            if (now >= 0) {
+                nanos += now - e.getValue()[1];
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * Removes the thread that opened the scope from it; its allocation so far stays counted.
+     */
+    @Override
+    public void close() {
+        if (Thread.currentThread() == owner && CURRENT.get() == this) {
+            leave();
+        }
+    }
+
+    /**
+     * Creates a fork/join pool whose workers belong to the scope of the current thread, if any.
+     * @param parallelism     number of worker threads
+     * @return ForkJoinPool   the pool
+     */
+    public static ForkJoinPool forkJoinPool(int parallelism) {
+        AllocationScope scope = CURRENT.get();
+        if (scope == null) {
+            return new ForkJoinPool(parallelism);
+        }
+        return new ForkJoinPool(parallelism, pool -> new ScopedWorker(pool, scope), null, false);
+    }
+
+    /**
+     * Creates a fixed thread pool whose threads belong to the scope of the current thread, if any.
+     * @param numThreads        number of threads
+     * @return ExecutorService  the pool
+     */
+    public static ExecutorService fixedThreadPool(int numThreads) {
+        AllocationScope scope = CURRENT.get();
+        if (scope == null) {
+            return Executors.newFixedThreadPool(numThreads);
+        }
+        ThreadFactory threads = Executors.defaultThreadFactory();
+        return Executors.newFixedThreadPool(numThreads, task -> threads.newThread(() -> {
+            scope.join();
+            try {
+                task.run();
+            } finally {
+                scope.leave();
+            }
+        }));
+    }
+
+    /**
+     * Adds the current thread to the scope, counting from its present allocation and CPU time.
+     */
+    private void join() {
+        long bytes = THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long cpu = THREADS == null ? 0 : THREADS.getThreadCpuTime(Thread.currentThread().getId());
+        live.put(Thread.currentThread(), new long[] { bytes, cpu });
+        CURRENT.set(this);
+    }
+
+    /**
+     * Removes the current thread from the scope, keeping what it allocated and the CPU time it used.
+     */
+    private void leave() {
+        long[] start = live.get(Thread.currentThread());
+        if (start != null && THREADS != null) {
+            long bytes = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long cpu = THREADS.getThreadCpuTime(Thread.currentThread().getId());
+            finishedBytes.addAndGet(bytes < 0 ? 0 : bytes - start[0]);
+            finishedCpu.addAndGet(cpu < 0 ? 0 : cpu - start[1]);
+        }
+        live.remove(Thread.currentThread());
+        CURRENT.remove();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadCpuTimeSupported()) {
+                return null;
+            }
+            threads.setThreadAllocatedMemoryEnabled(true);
+            threads.setThreadCpuTimeEnabled(true);
+            return threads;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fork/join worker that belongs to a scope from its start to its termination.
+     */
+    private static final class ScopedWorker extends ForkJoinWorkerThread {
+        private final AllocationScope scope;
+
+        private ScopedWorker(ForkJoinPool pool, AllocationScope scope) {
+            super(pool);
+            this.scope = scope;
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            scope.join();
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            scope.leave();
+            super.onTermination(exception);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.monarchinitiative.phcompare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BatchRun runs phenoCompare for each genes file of a manifest (-b) against the same patients file, in one
+ * JVM. The ontology is loaded, the patients file parsed, and the ancestor closure of each patient computed
+ * once; each configuration (genes file) then groups the shared patients, counts, tests, and writes its
+ * results in its own subdirectory of the results directory, named after the genes file. The configurations
+ * run in parallel on -t worker threads, each configuration on one thread. The run report of each
+ * configuration measures the CPU time and allocation of its own thread (see RunReport); the run report of
+ * the batch, in the results directory, measures the whole process.
+ *
+ * The manifest lists one genes file per line; blank lines and lines starting with # are skipped, and
+ * relative paths are taken relative to the directory of the manifest.
+ */
+class BatchRun {
+    private static final Logger logger = LogManager.getLogger();
+
+    private BatchRun() { }
+
+    /**
+     * Reads the manifest of a batch run.
+     * @param manifestPath    path of the manifest
+     * @return List<File>     genes file of each configuration, in manifest order
+     * @throws IOException    if the manifest or one of its genes files cannot be found
+     */
+    static List<File> readManifest(String manifestPath) throws IOException {
+        File manifest = new File(manifestPath);
+        if (!manifest.exists()) {
+            throw new IOException("[BatchRun.readManifest] Cannot find batch manifest " + manifestPath);
+        }
+        File baseDir = manifest.getAbsoluteFile().getParentFile();
+        List<File> genesFiles = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            File genesFile = new File(line);
+            if (!genesFile.isAbsolute()) {
+                genesFile = new File(baseDir, line);
+            }
+            if (!genesFile.exists()) {
+                throw new IOException("[BatchRun.readManifest] Cannot find genes file " + line +
+                        " listed in batch manifest " + manifestPath);
+            }
+            genesFiles.add(genesFile);
+        }
+        return genesFiles;
+    }
+
+    /**
+     * Names the results subdirectory of each configuration after its genes file, without the extension;
+     * a name used by an earlier configuration gets the suffix -2, -3, ...
+     * @param genesFiles      genes file of each configuration
+     * @return List<String>   name of each configuration
+     */
+    static List<String> configurationNames(List<File> genesFiles) {
+        List<String> names = new ArrayList<>();
+        Set<String> used = new HashSet<>();
+        for (File f : genesFiles) {
+            String base = f.getName();
+            int dot = base.lastIndexOf('.');
+            if (dot > 0) {
+                base = base.substring(0, dot);
+            }
+            String name = base;
+            for (int i = 2; !used.add(name); i++) {
+                name = base + "-" + i;
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Runs all configurations of a batch run.
+     * @param batch          the batch run, with the settings of all configurations and the loaded ontology
+     * @param manifestPath   path of the manifest
+     * @param report         run report of the batch run (configurations write their own reports)
+     * @throws IOException   if the manifest or the patients file cannot be read, or some configuration failed
+     */
+    static void run(PhenoCompare batch, String manifestPath, RunReport report) throws IOException {
+        List<File> genesFiles;
+        List<String> names;
+        try (RunReport.Stage stage = report.start("readManifest")) {
+            genesFiles = readManifest(manifestPath);
+            names = configurationNames(genesFiles);
+            stage.count("configurations", genesFiles.size());
+        }
+
+        List<Patient> patients = new ArrayList<>();
+        try (RunReport.Stage stage = report.start("parsePatients")) {
+            File patientsFile = new File(batch.getPatientsPath());
+            if (!patientsFile.exists()) {
+                throw new IOException("[BatchRun.run] Cannot find patients file " + batch.getPatientsPath());
+            }
+            PatientFileReader.read(patientsFile, batch.getNumThreads(), patients::add, logger::warn);
+            stage.count("patients", patients.size());
+        }
+
+        // closures are looked up by identity: the configurations group the very same Patient objects
+        Map<Patient, int[]> closures = new IdentityHashMap<>();
+        TermIndex termIndex = batch.getTermIndex();
+        try (RunReport.Stage stage = report.start("closures")) {
+            for (Patient pat : patients) {
+                closures.put(pat, termIndex.ancestorClosureOfHpoNumbers(pat.getHpoIds(), true));
+            }
+            stage.count("patients", patients.size());
+        }
+
+        List<String> failed = new ArrayList<>();
+        try (RunReport.Stage stage = report.start("configurations")) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+                    Math.min(batch.getNumThreads(), genesFiles.size())));
+            try {
+                List<Future<?>> runs = new ArrayList<>();
+                for (int i = 0; i < genesFiles.size(); i++) {
+                    PhenoCompare config = new PhenoCompare(batch, genesFiles.get(i).getPath(),
+                            new File(batch.getResultsPath(), names.get(i)).getPath(), patients, closures);
+                    runs.add(pool.submit(() -> {
+                        runConfiguration(config);
+                        return null;
+                    }));
+                }
+                for (int i = 0; i < runs.size(); i++) {
+                    try {
+                        runs.get(i).get();
+                    } catch (ExecutionException e) {
+                        logger.error("[BatchRun.run] Configuration " + names.get(i) + " failed", e.getCause());
+                        failed.add(names.get(i));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("[BatchRun.run] Interrupted while running configurations", e);
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            stage.count("configurations", genesFiles.size()).count("failed", failed.size());
+        }
+        if (!failed.isEmpty()) {
+            throw new IOException("[BatchRun.run] Configurations failed (see log): " + String.join(", ", failed));
+        }
+    }
+
+    /**
+     * Runs the stages of one configuration and writes its results and run report in its results directory.
+     * Other configurations run at the same time, so the report measures only the thread of this one.
+     */
+    private static void runConfiguration(PhenoCompare config) throws IOException, EmptyGroupException {
+        RunReport report = RunReport.forAnalysis();
+        try {
+            OutputMgr omgr = new OutputMgr(config);
+            config.analyze(report);
+            config.writeChiSquared(omgr, report);
+            config.writeSimilarities(omgr, report);
+            report.write(new File(config.getResultsPath()), 1);
+        } finally {
+            report.stopListening();
+        }
+    }
+}
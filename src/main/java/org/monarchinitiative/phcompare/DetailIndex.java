@@ -0,0 +1,101 @@
+package org.monarchinitiative.phcompare;
+
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.util.Arrays;
+
+/**
+ * DetailIndex is an inverted index from each HPO term to the patients annotated with it, used to write the
+ * detail file of a term: the patients having an annotation that is the term or one of its subtypes, each with
+ * those annotations. Rather than testing every annotation of every covered patient against the term, the
+ * descendant closure of the term is intersected with the annotated terms, and the posting lists of the
+ * resulting terms are merged. The descendant closures are precomputed by TermIndex, so the cost of a detail
+ * file is proportional to its length plus the size of the descendant closure.
+ */
+class DetailIndex {
+    private TermIndex termIndex;
+    // postings[t]: ascending cohort indices of the patients annotated with dense term t (null if none)
+    private int[][] postings;
+
+    /**
+     * Builds the posting lists from the patients' annotations. Annotations that are not terms of the index
+     * are ignored.
+     * @param cohort       all patients, ordered by group
+     * @param termIndex    dense index of the ontology terms
+     */
+    DetailIndex(Patient[] cohort, TermIndex termIndex) {
+        this.termIndex = termIndex;
+        int[][] annotated = new int[cohort.length][];
+        int[] size = new int[termIndex.size()];
+        for (int p = 0; p < cohort.length; p++) {
+            int[] hpoIds = cohort[p].getHpoIds();
+            int[] dense = new int[hpoIds.length];
+            int n = 0;
+            for (int number : hpoIds) {
+                int t = termIndex.indexOfHpoNumber(number);
+                if (t >= 0) {
+                    dense[n++] = t;
+                    size[t]++;
+                }
+            }
+            annotated[p] = Arrays.copyOf(dense, n);
+        }
+        postings = new int[termIndex.size()][];
+        int[] filled = new int[termIndex.size()];
+        for (int t = 0; t < size.length; t++) {
+            if (size[t] > 0) {
+                postings[t] = new int[size[t]];
+            }
+        }
+        // patients are visited in ascending order, so every posting list comes out sorted
+        for (int p = 0; p < annotated.length; p++) {
+            for (int t : annotated[p]) {
+                postings[t][filled[t]++] = p;
+            }
+        }
+    }
+
+    /**
+     * Finds the annotations of the cohort that are the target term or one of its subtypes.
+     * @param target    dense index of the term
+     * @return long[]   one entry per (patient, annotated term) pair, as (cohort index << 32 | dense term index),
+     *                  in ascending order: by patient, then by term. Dense term indices are in TermId order.
+     */
+    long[] annotationsUnder(int target) {
+        int total = 0;
+        int[] desc = termIndex.getDescendants(target);
+        int numAnnotated = 0;
+        for (int t : desc) {
+            if (postings[t] != null) {
+                desc[numAnnotated++] = t;
+                total += postings[t].length;
+            }
+        }
+        long[] pairs = new long[total];
+        int n = 0;
+        for (int i = 0; i < numAnnotated; i++) {
+            int t = desc[i];
+            for (int p : postings[t]) {
+                pairs[n++] = ((long) p << 32) | t;
+            }
+        }
+        Arrays.sort(pairs);
+        return pairs;
+    }
+
+    /**
+     * @param pair    entry of annotationsUnder
+     * @return int    cohort index of the patient
+     */
+    static int patientOf(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    /**
+     * @param pair    entry of annotationsUnder
+     * @return int    dense index of the annotated term
+     */
+    static int termOf(long pair) {
+        return (int) pair;
+    }
+}
@@ -0,0 +1,213 @@
+package org.monarchinitiative.phcompare;
+
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * DetailWriter writes the detail file of each significant term (HP-xxxxxxx.tsv), listing the patients of each
+ * group who fall under the term together with their HPO terms that are the term or one of its subtypes.
+ * Each file is rendered in memory from the DetailIndex, by concatenating strings prepared once per patient
+ * and per term, and written with a single channel write. With more than one thread, files are rendered and
+ * written by a fixed pool of workers; at most WINDOW_PER_THREAD files per thread are in progress at a time,
+ * so the caller (which writes chiSquared.tsv in order) never runs far ahead of the pool.
+ *
+ * Optionally, the detail files are bundled in one zip archive (details.zip) instead, whose central directory
+ * indexes the files by name. Workers still render the files; the caller adds them to the archive in the
+ * order in which they were submitted, so the archive is the same whatever the number of threads.
+ */
+class DetailWriter implements AutoCloseable {
+    static final String ARCHIVE_NAME = "details.zip";
+    // largest number of unfinished files per worker thread
+    private static final int WINDOW_PER_THREAD = 4;
+    private static final int ARCHIVE_BUFFER = 1 << 20;
+
+    // detail files have the encoding and line separator that FileWriter and BufferedWriter would give them
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String NEWLINE = System.lineSeparator();
+
+    private File resultsDir;
+    private TermIndex termIndex;
+    private DetailIndex detailIndex;
+    private String[] patientPrefix;    // group, id summary, PubMed link and gene of each patient, tab-terminated
+    private String[] termSuffix;       // id and name of each term, newline-terminated (filled when first needed)
+    private ExecutorService pool;      // null to write on the calling thread
+    private int window;                // largest number of pending files
+    private ArrayDeque<Future<Detail>> pending = new ArrayDeque<>();
+    private ZipOutputStream archive;   // null to write separate files
+
+    /**
+     * Prepares the writer; builds the detail index and the line prefix of each patient.
+     * @param resultsDir     directory for result files
+     * @param cohort         all patients, ordered by group
+     * @param groupStart     patients of group g are cohort[groupStart[g] .. groupStart[g + 1] - 1]
+     * @param termIndex      dense index of the ontology terms
+     * @param useArchive     true to bundle the detail files in details.zip
+     * @param numThreads     number of worker threads (1 to write on the calling thread)
+     * @throws IOException   if the archive cannot be created
+     */
+    DetailWriter(File resultsDir, Patient[] cohort, int[] groupStart, TermIndex termIndex, boolean useArchive,
+                 int numThreads) throws IOException {
+        this.resultsDir = resultsDir;
+        this.termIndex = termIndex;
+        detailIndex = new DetailIndex(cohort, termIndex);
+        patientPrefix = new String[cohort.length];
+        int group = 0;
+        for (int p = 0; p < cohort.length; p++) {
+            while (p >= groupStart[group + 1]) {
+                group++;
+            }
+            Patient pat = cohort[p];
+            patientPrefix[p] = (group + 1) + "\t" + pat.getIdSummary() + "\thttps://www.ncbi.nlm.nih.gov/pubmed/" +
+                    pat.getPmid() + "\t" + pat.getGene() + "\t";
+        }
+        termSuffix = new String[termIndex.size()];
+        if (useArchive) {
+            File archiveFile = new File(resultsDir, ARCHIVE_NAME);
+            try {
+                archive = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile),
+                        ARCHIVE_BUFFER));
+            } catch (IOException e) {
+                throw new IOException("[DetailWriter] Problem with output file " + archiveFile.getAbsolutePath(), e);
+            }
+        }
+        if (numThreads > 1) {
+            pool = AllocationScope.fixedThreadPool(numThreads);
+            window = WINDOW_PER_THREAD * numThreads;
+        }
+    }
+
+    /**
+     * Writes, or schedules the writing of, the detail file of a term.
+     * @param t              dense index of the term
+     * @throws IOException   if problem writing this or an earlier detail file
+     */
+    void write(int t) throws IOException {
+        if (pool == null) {
+            finish(render(t));
+            return;
+        }
+        pending.add(pool.submit(() -> render(t)));
+        // pass on the files that are done, and wait for the oldest when too many are in progress
+        while (!pending.isEmpty() && (pending.size() > window || pending.peek().isDone())) {
+            finish(getResult(pending.poll()));
+        }
+    }
+
+    /**
+     * Waits for the remaining detail files and closes the archive.
+     * @throws IOException    if problem writing a detail file or the archive
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                finish(getResult(pending.poll()));
+            }
+            if (archive != null) {
+                archive.close();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Renders the detail file of a term and, unless it goes into the archive, writes it.
+     * @return Detail    the rendered file if it is still to be added to the archive, otherwise null
+     */
+    private Detail render(int t) throws IOException {
+        String tidString = termIndex.getTermId(t).getIdWithPrefix();
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("# ").append(tidString).append(' ').append(termIndex.getName(t)).append(NEWLINE);
+        sb.append("# GroupNum\tId Summary\tPubMed\tGene\tHPO term\tTerm name").append(NEWLINE);
+        for (long pair : detailIndex.annotationsUnder(t)) {
+            sb.append(patientPrefix[DetailIndex.patientOf(pair)]).append(suffix(DetailIndex.termOf(pair)));
+        }
+        String name = tidString.replace(':', '-') + ".tsv";
+        byte[] bytes = sb.toString().getBytes(CHARSET);
+        if (archive != null) {
+            return new Detail(name, bytes);
+        }
+        File detailFile = new File(resultsDir, name);
+        try (FileChannel channel = FileChannel.open(detailFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            throw new IOException("[DetailWriter.render] Problem with output file " +
+                    detailFile.getAbsolutePath(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Id and name of a term for the lines of the detail files. Workers may build the same suffix at the same
+     * time; they build equal strings, so either may be kept.
+     */
+    private String suffix(int t) {
+        String s = termSuffix[t];
+        if (s == null) {
+            s = termIndex.getTermId(t).getIdWithPrefix() + "\t" + termIndex.getName(t) + NEWLINE;
+            termSuffix[t] = s;
+        }
+        return s;
+    }
+
+    private void finish(Detail detail) throws IOException {
+        if (detail == null) {
+            return;
+        }
+        try {
+            archive.putNextEntry(new ZipEntry(detail.name));
+            archive.write(detail.bytes);
+            archive.closeEntry();
+        } catch (IOException e) {
+            throw new IOException("[DetailWriter] Problem adding " + detail.name + " to " + ARCHIVE_NAME, e);
+        }
+    }
+
+    private static Detail getResult(Future<Detail> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[DetailWriter] Interrupted while writing detail files", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("[DetailWriter] Problem writing detail file", e.getCause());
+        }
+    }
+
+    /**
+     * Name and contents of a rendered detail file.
+     */
+    private static class Detail {
+        private final String name;
+        private final byte[] bytes;
+
+        Detail(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.monarchinitiative.phcompare;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.monarchinitiative.phcompare.stats.SimilarityMatrix;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * DissimWriter streams a dissimilarity matrix to the results directory one row at a time, so that the
+ * memory needed does not grow with the size of the output. Three formats are available:
+ *    --- TSV: full matrix as text (dissim.tsv), a header line of patient ids then one line per patient;
+ *    --- LOWER: the same text layout, but each line holds only the values left of the diagonal
+ *    (dissimLower.tsv), which is all that R's as.dist uses;
+ *    --- BINARY: little-endian float32 values of the lower triangle (dissim.bin), row by row, after a
+ *    16 byte header: the magic bytes PCDM, then the format version, the number of patients and the number
+ *    of bytes per value (4) as little-endian int32. The patient ids are written one per line to dissimIds.txt.
+ * Text values are formatted as by "%4.2f" (half up, after the shortest decimal representation of the
+ * double), but without going through java.util.Formatter for each value. The similarities are read from a
+ * SimilarityMatrix, which stores them as float; see appendDissim for how ties are kept as they were.
+ */
+class DissimWriter {
+    /**
+     * Output formats for the dissimilarity matrix.
+     */
+    enum Format {
+        TSV,       // full matrix as text
+        LOWER,     // lower triangle as text
+        BINARY     // lower triangle as little-endian float32
+    }
+
+    static final int BINARY_VERSION = 1;
+    private static final byte[] MAGIC = { 'P', 'C', 'D', 'M' };
+    // hundredths this close to a rounding boundary are formatted by String.format
+    private static final double TIE_MARGIN = 1e-6;
+    // the same for values derived from a float, allowing for the rounding error of the float
+    private static final double FLOAT_TIE_MARGIN = 1e-4;
+    // largest value formatted without String.format
+    private static final double FAST_MAX = 1e9;
+    // chars of text formatted before being passed to the Writer
+    private static final int ROW_BUFFER = 8192;
+
+    private DissimWriter() { }
+
+    /**
+     * Writes the dissimilarity matrix (1 - similarity) in the requested format.
+     * @param resultsDir      directory for output files
+     * @param format          output format
+     * @param pats            patients in the order of the rows of the matrix
+     * @param similarity      similarity matrix
+     * @return File           the file holding the matrix
+     * @throws IOException    if problem writing to file
+     */
+    static File write(File resultsDir, Format format, List<Patient> pats, SimilarityMatrix similarity)
+            throws IOException {
+        switch (format) {
+            case LOWER:
+                File lowerFile = new File(resultsDir, "dissimLower.tsv");
+                writeText(lowerFile, pats, similarity, true);
+                return lowerFile;
+            case BINARY:
+                File binFile = new File(resultsDir, "dissim.bin");
+                writeBinary(binFile, pats, similarity);
+                writeIds(new File(resultsDir, "dissimIds.txt"), pats);
+                return binFile;
+            default:
+                File dissimFile = new File(resultsDir, "dissim.tsv");
+                writeText(dissimFile, pats, similarity, false);
+                return dissimFile;
+        }
+    }
+
+    private static void writeText(File file, List<Patient> pats, SimilarityMatrix similarity, boolean lowerOnly)
+            throws IOException {
+        int dim = pats.size();
+        try (Writer w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            // header line of patient ids
+            for (Patient p : pats) {
+                w.write('\t');
+                w.write(p.getPid());
+            }
+            w.write(System.lineSeparator());
+
+            // one line per patient, formatted into a reused buffer that is flushed whenever it is nearly full
+            char[] row = new char[ROW_BUFFER];
+            for (int r = 0; r < dim; r++) {
+                int end = lowerOnly ? r : dim;
+                int len = 0;
+                for (int c = 0; c < end; c++) {
+                    if (row.length - len < 64) {
+                        w.write(row, 0, len);
+                        len = 0;
+                    }
+                    row[len++] = '\t';
+                    len = appendDissim((float) similarity.get(r, c), row, len);
+                }
+                w.write(row, 0, len);
+                w.write(System.lineSeparator());
+            }
+        }
+    }
+
+    private static void writeBinary(File file, List<Patient> pats, SimilarityMatrix similarity) throws IOException {
+        int dim = pats.size();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            ByteBuffer buf = ByteBuffer.allocate(Math.max(16, 4 * dim)).order(ByteOrder.LITTLE_ENDIAN);
+            buf.put(MAGIC).putInt(BINARY_VERSION).putInt(dim).putInt(Float.BYTES);
+            out.write(buf.array(), 0, buf.position());
+            for (int r = 1; r < dim; r++) {
+                ((Buffer) buf).clear();    // Buffer.clear links on Java 8; ByteBuffer.clear is Java 9+
+                for (int c = 0; c < r; c++) {
+                    buf.putFloat((float) (1.0 - similarity.get(r, c)));
+                }
+                out.write(buf.array(), 0, buf.position());
+            }
+        }
+    }
+
+    static void writeIds(File file, List<Patient> pats) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for (Patient p : pats) {
+                bw.write(p.getPid());
+                bw.newLine();
+            }
+        }
+    }
+
+    /**
+     * Appends value with two decimal places to buf, giving the same characters as
+     * String.format(Locale.ROOT, "%4.2f", value). Values within TIE_MARGIN of a rounding boundary
+     * (where the shortest decimal representation decides the rounding), negative values, NaN and very
+     * large values are passed to String.format; all others are rounded directly.
+     * @param value     number to format
+     * @param buf       destination, with room for at least 32 more chars
+     * @param pos       position in buf of the first char to write
+     * @return int      position in buf after the last char written
+     */
+    static int appendFixed2(double value, char[] buf, int pos) {
+        int end = appendFixed2Fast(value, TIE_MARGIN, buf, pos);
+        if (end >= 0) {
+            return end;
+        }
+        return appendString(String.format(Locale.ROOT, "%4.2f", value), buf, pos);
+    }
+
+    /**
+     * Appends the dissimilarity 1 - similarity with two decimal places to buf, for a similarity stored as a
+     * float. Away from rounding boundaries the float is precise enough to round directly. Near a boundary
+     * the double closest to the shortest decimal representation of the float (Float.toString) is used in its
+     * place: a similarity such as 0.145 becomes the same double it was before being stored as a float, so
+     * the text is the same as for the double similarity.
+     * @param similarity    similarity as stored in the matrix
+     * @param buf           destination, with room for at least 32 more chars
+     * @param pos           position in buf of the first char to write
+     * @return int          position in buf after the last char written
+     */
+    static int appendDissim(float similarity, char[] buf, int pos) {
+        int end = appendFixed2Fast(1.0 - similarity, FLOAT_TIE_MARGIN, buf, pos);
+        if (end >= 0) {
+            return end;
+        }
+        double value = Float.isNaN(similarity) ? Double.NaN : 1.0 - Double.parseDouble(Float.toString(similarity));
+        return appendFixed2(value, buf, pos);
+    }
+
+    /**
+     * Rounds the dissimilarity 1 - similarity to hundredths exactly as appendDissim writes it, for clustering
+     * the values that are written. NaN (a pair of patients without terms) is taken as the largest
+     * dissimilarity, 1.
+     * @param similarity    similarity as stored in the matrix
+     * @param buf           scratch space of at least 32 chars
+     * @return int          dissimilarity in hundredths
+     */
+    static int dissimHundredths(float similarity, char[] buf) {
+        if (Float.isNaN(similarity)) {
+            return 100;
+        }
+        int end = appendDissim(similarity, buf, 0);
+        int hundredths = 0;
+        for (int i = 0; i < end; i++) {
+            if (buf[i] >= '0' && buf[i] <= '9') {
+                hundredths = hundredths * 10 + buf[i] - '0';
+            }
+        }
+        return buf[0] == '-' ? -hundredths : hundredths;
+    }
+
+    private static int appendString(String s, char[] buf, int pos) {
+        s.getChars(0, s.length(), buf, pos);
+        return pos + s.length();
+    }
+
+    /**
+     * Rounds value directly to two decimal places if it is not negative, not too large, and its hundredths
+     * are not within margin of a rounding boundary.
+     * @return int      position in buf after the last char written, or -1 if value was not written
+     */
+    private static int appendFixed2Fast(double value, double margin, char[] buf, int pos) {
+        if (value >= 0.0 && value < FAST_MAX) {
+            double scaled = value * 100.0;
+            double floor = Math.floor(scaled);
+            double frac = scaled - floor;
+            if (Math.abs(frac - 0.5) > margin) {
+                long hundredths = (long) floor + (frac > 0.5 ? 1 : 0);
+                long whole = hundredths / 100;
+                int cents = (int) (hundredths % 100);
+                int start = pos;
+                do {
+                    buf[pos++] = (char) ('0' + whole % 10);
+                    whole /= 10;
+                } while (whole > 0);
+                // digits of the whole part were written least significant first
+                for (int i = start, j = pos - 1; i < j; i++, j--) {
+                    char tmp = buf[i];
+                    buf[i] = buf[j];
+                    buf[j] = tmp;
+                }
+                buf[pos++] = '.';
+                buf[pos++] = (char) ('0' + cents / 10);
+                buf[pos++] = (char) ('0' + cents % 10);
+                return pos;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,18 +1,41 @@
 package org.monarchinitiative.phcompare;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 
 /**
  * GeneGroups reads from a file of gene information to create multiple GeneGroup objects. The file of
  * gene names contains one line for each gene group (and comments if desired). Gene names are Strings.
+ * When the groups are loaded, a hash index from gene name to the numbers of the groups that list it is
+ * built, so that finding the group of a patient's gene takes constant time however many groups there are.
+ * Genes listed in more than one group are reported when the file is read; patients with such a gene are
+ * assigned to the first group that lists it.
+ *
+ * An optional HGNC gene file (e.g. hgnc_complete_set.txt) lets patients whose gene is given by an alias
+ * or previous symbol be matched to the group of the approved symbol.
  * @author Hannah Blau (blauh)
  * @version 0.0.1
  * @since 14 Aug 2017
  */
 class GeneGroups {
+    private static final int[] NO_GROUPS = new int[0];
+
     private List<GeneGroup> geneGroups = new ArrayList<>();
+    // numbers of the groups listing each gene, ascending
+    private Map<String, int[]> groupIndex = new HashMap<>();
+    // approved symbol for each alias or previous symbol of a gene listed in some group
+    private Map<String, String> aliases = new HashMap<>();
+    // genes listed in more than one group
+    private SortedSet<String> multiGroupGenes = new TreeSet<>();
+
+    private static final Logger logger = LogManager.getLogger();
 
     /**
      * Reads multiple lists of gene names from specified file and creates corresponding GeneGroup objects
@@ -21,6 +44,18 @@ class GeneGroups {
      * @throws EmptyGroupException  if no gene groups in the file
      */
     GeneGroups(String path) throws IOException, EmptyGroupException {
+        this(path, null);
+    }
+
+    /**
+     * Reads multiple lists of gene names from specified file and creates corresponding GeneGroup objects,
+     * then reads aliases and previous symbols of the genes from an HGNC gene file.
+     * @param path              file containing lists of genes
+     * @param aliasPath         HGNC gene file, or null if aliases are not to be resolved
+     * @throws IOException      if a file cannot be found or read
+     * @throws EmptyGroupException  if no gene groups in the file
+     */
+    GeneGroups(String path, String aliasPath) throws IOException, EmptyGroupException {
         File genesFile = new File(path);
 
         if (!genesFile.exists()) {
@@ -35,7 +70,7 @@ class GeneGroups {
             // skip this line if it is a comment (marked with #) or a blank line
             if (!(line.startsWith("#") || line.isEmpty())) {
                 g = new GeneGroup();
-                readGeneNames(line, g);
+                readGeneNames(line, g, geneGroups.size());
                 geneGroups.add(g);
             }
         }
@@ -44,6 +79,14 @@ class GeneGroups {
         if (geneGroups.isEmpty()) { // nothing but blank lines and comments in this file!
             throw new EmptyGroupException("[GeneGroups.GeneGroups] No gene groups found in file " + genesFile);
         }
+        for (String gene : multiGroupGenes) {
+            logger.warn(String.format("[GeneGroups.GeneGroups] Gene %s is listed in groups %s; " +
+                    "patients with this gene are assigned to group %d", gene,
+                    Arrays.toString(groupIndex.get(gene)), groupIndex.get(gene)[0]));
+        }
+        if (aliasPath != null) {
+            readAliases(aliasPath);
+        }
     }
 
     /**
@@ -67,30 +110,139 @@ class GeneGroups {
     }
 
     /**
-     * Identifies the GeneGroup to which this geneName belongs (if any)
-     * @param geneName   name of gene (String)
+     * Identifies the GeneGroup to which this geneName belongs (if any). A gene listed in several groups
+     * belongs to the first of them.
+     * @param geneName   name of gene (String), or an alias or previous symbol of the gene
      * @return int       number of the GeneGroup that contains this geneName, or -1 if no such group
      */
     int whichGroup(String geneName) {
-        for (int i = 0; i < geneGroups.size(); i++) {
-            if (geneGroups.get(i).contains(geneName)) {
-                return i;
+        int[] groups = lookUp(geneName);
+        return groups == null ? -1 : groups[0];
+    }
+
+    /**
+     * Identifies all the GeneGroups to which this geneName belongs.
+     * @param geneName   name of gene (String), or an alias or previous symbol of the gene
+     * @return int[]     numbers of the GeneGroups that contain this geneName, ascending (empty if none)
+     */
+    int[] whichGroups(String geneName) {
+        int[] groups = lookUp(geneName);
+        return groups == null ? NO_GROUPS : groups.clone();
+    }
+
+    /**
+     * Looks up the groups of a gene in the index, by its own name or else by the approved symbol of which it
+     * is an alias or previous symbol. The array returned is the index's own and must not be modified.
+     * @param geneName   name of gene (String), or an alias or previous symbol of the gene
+     * @return int[]     numbers of the GeneGroups that contain this geneName, ascending, or null if none
+     */
+    private int[] lookUp(String geneName) {
+        int[] groups = groupIndex.get(geneName);
+        if (groups == null) {
+            String approved = aliases.get(geneName);
+            groups = approved == null ? null : groupIndex.get(approved);
+        }
+        return groups;
+    }
+
+    /**
+     * @return SortedSet<String>    genes listed in more than one group
+     */
+    SortedSet<String> getMultiGroupGenes() {
+        return Collections.unmodifiableSortedSet(multiGroupGenes);
+    }
+
+    /**
+     * Reads the aliases and previous symbols of the genes listed in some group from an HGNC gene file. The
+     * file is tab-separated with a header line. The approved symbol is in the column named symbol (or
+     * Approved symbol), and the aliases and previous symbols in the columns alias_symbol and prev_symbol
+     * (or Alias symbols and Previous symbols), separated by | or by commas. A name listed in a group is
+     * never treated as an alias, and an alias of two genes in different groups is ignored.
+     * @param aliasPath      HGNC gene file
+     * @throws IOException   if file cannot be found or read
+     */
+    private void readAliases(String aliasPath) throws IOException {
+        File aliasFile = new File(aliasPath);
+        if (!aliasFile.exists()) {
+            throw new IOException("[GeneGroups.readAliases] Cannot find HGNC gene file " + aliasPath);
+        }
+        Set<String> ambiguous = new HashSet<>();
+        try (BufferedReader br = Files.newBufferedReader(aliasFile.toPath(), StandardCharsets.UTF_8)) {
+            String header = br.readLine();
+            if (header == null) {
+                return;
+            }
+            List<String> columns = Arrays.asList(unquote(header).split("\t", -1));
+            int symbolCol = findColumn(columns, "symbol", "Approved symbol");
+            int[] aliasCols = { findColumn(columns, "alias_symbol", "Alias symbols"),
+                    findColumn(columns, "prev_symbol", "Previous symbols") };
+            if (symbolCol < 0) {
+                throw new IOException("[GeneGroups.readAliases] No symbol column in HGNC gene file " + aliasPath);
+            }
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (symbolCol >= fields.length) {
+                    continue;
+                }
+                String symbol = unquote(fields[symbolCol]);
+                if (!groupIndex.containsKey(symbol)) {
+                    continue;
+                }
+                for (int col : aliasCols) {
+                    if (col < 0 || col >= fields.length) {
+                        continue;
+                    }
+                    for (String alias : unquote(fields[col]).split("[|,]")) {
+                        alias = alias.trim();
+                        if (alias.isEmpty() || groupIndex.containsKey(alias) || ambiguous.contains(alias)) {
+                            continue;
+                        }
+                        String previous = aliases.putIfAbsent(alias, symbol);
+                        if (previous != null && !previous.equals(symbol) &&
+                                !Arrays.equals(groupIndex.get(previous), groupIndex.get(symbol))) {
+                            aliases.remove(alias);
+                            ambiguous.add(alias);
+                            logger.warn(String.format("[GeneGroups.readAliases] Ignoring alias %s of genes %s " +
+                                    "and %s, which are in different groups", alias, previous, symbol));
+                        }
+                    }
+                }
             }
         }
-        // searched all the geneGroups and none contains this geneName
-        return -1;
+    }
+
+    private static int findColumn(List<String> columns, String name, String altName) {
+        int col = columns.indexOf(name);
+        return col >= 0 ? col : columns.indexOf(altName);
+    }
+
+    private static String unquote(String s) {
+        return s.replace("\"", "");
     }
 
     /**
      * Reads a line containing multiple gene names separated by whitespace, adds each gene name to
-     * the specified set.
+     * the specified set and to the index of gene names.
      * @param line      line of input to be parsed
      * @param geneG     GeneGroup (set of gene names)
+     * @param groupNum  number of the GeneGroup
      */
-    private void readGeneNames(String line, GeneGroup geneG) {
+    private void readGeneNames(String line, GeneGroup geneG, int groupNum) {
         Scanner scn = new Scanner(line);
         while (scn.hasNext()) {
-            geneG.addGene(scn.next());
+            String gene = scn.next();
+            geneG.addGene(gene);
+            int[] groups = groupIndex.get(gene);
+            if (groups == null) {
+                groupIndex.put(gene, new int[] {groupNum});
+            } else if (groups[groups.length - 1] != groupNum) {
+                // groups are read in order, so the array stays sorted
+                int[] more = Arrays.copyOf(groups, groups.length + 1);
+                more[groups.length] = groupNum;
+                groupIndex.put(gene, more);
+                multiGroupGenes.add(gene);
+            }
         }
         scn.close();
     }
@@ -0,0 +1,141 @@
+package org.monarchinitiative.phcompare;
+
+import org.monarchinitiative.phcompare.stats.NearestNeighbors;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * GraphWriter writes a sparse patient similarity graph: the nearest neighbours of each patient, or the pairs
+ * of patients whose similarity reaches a threshold. Each row of the graph lists the neighbours of one
+ * patient, so the output grows with the number of edges rather than with the square of the number of
+ * patients. The format is chosen by the option that chooses the format of the dissimilarity matrix:
+ *    --- TSV: an edge list (name.tsv), a header line then one line per patient and neighbour, giving the
+ *    patient id, the rank of the neighbour (for nearest neighbours only), its id, and the similarity with
+ *    four decimals;
+ *    --- BINARY: compressed sparse rows (name.csr), after a 24 byte header: the magic bytes PCSG, then the
+ *    format version, the number of rows and the number of columns as little-endian int32, and the number of
+ *    edges as little-endian int64. The header is followed by the offsets of the rows (number of rows + 1
+ *    int64, the edges of row r being those from offset r to offset r + 1), the column of each edge (int32),
+ *    and the similarity of each edge (float32), all little-endian. The ids of the patients of the rows are
+ *    written one per line to nameIds.txt.
+ * The columns are positions in the cohort, in the order of the rows of the dissimilarity matrix.
+ */
+class GraphWriter {
+    static final int CSR_VERSION = 1;
+    private static final byte[] MAGIC = { 'P', 'C', 'S', 'G' };
+    // bytes of binary output assembled before being passed to the stream
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private GraphWriter() { }
+
+    /**
+     * Writes a sparse similarity graph in the requested format (TSV or BINARY).
+     * @param resultsDir      directory for output files
+     * @param name            name of the output files, without extension
+     * @param format          output format
+     * @param rows            patients of the rows of the graph
+     * @param neighbours      neighbours of each patient of rows, positions in cohort
+     * @param cohort          patients of the columns of the graph
+     * @param ranked          true to write the rank of each neighbour in the edge list
+     * @return File           the file holding the graph
+     * @throws IOException    if problem writing to file
+     */
+    static File write(File resultsDir, String name, DissimWriter.Format format, List<Patient> rows,
+                      List<NearestNeighbors.Edges> neighbours, List<Patient> cohort, boolean ranked)
+            throws IOException {
+        if (format == DissimWriter.Format.BINARY) {
+            File csrFile = new File(resultsDir, name + ".csr");
+            writeCsr(csrFile, neighbours, cohort.size());
+            DissimWriter.writeIds(new File(resultsDir, name + "Ids.txt"), rows);
+            return csrFile;
+        }
+        File edgeFile = new File(resultsDir, name + ".tsv");
+        writeEdges(edgeFile, rows, neighbours, cohort, ranked);
+        return edgeFile;
+    }
+
+    /**
+     * Writes one line per patient and neighbour. Similarities lie in [0, 1] and are written with four
+     * decimals, rounded half up, without going through java.util.Formatter for each line.
+     */
+    private static void writeEdges(File file, List<Patient> rows, List<NearestNeighbors.Edges> neighbours,
+                                   List<Patient> cohort, boolean ranked) throws IOException {
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            w.write(ranked ? "#Patient\tRank\tNeighbour\tSimilarity" : "#Patient\tNeighbour\tSimilarity");
+            w.newLine();
+            StringBuilder line = new StringBuilder();
+            for (int p = 0; p < rows.size(); p++) {
+                NearestNeighbors.Edges row = neighbours.get(p);
+                for (int i = 0; i < row.size(); i++) {
+                    long tenThousandths = Math.round(row.getSimilarity(i) * 10000.0);
+                    line.setLength(0);
+                    line.append(rows.get(p).getPid()).append('\t');
+                    if (ranked) {
+                        line.append(i + 1).append('\t');
+                    }
+                    line.append(cohort.get(row.getPosition(i)).getPid()).append('\t')
+                            .append(tenThousandths / 10000).append('.');
+                    String decimals = Long.toString(tenThousandths % 10000);
+                    for (int d = decimals.length(); d < 4; d++) {
+                        line.append('0');
+                    }
+                    line.append(decimals);
+                    w.append(line);
+                    w.newLine();
+                }
+            }
+        }
+    }
+
+    private static void writeCsr(File file, List<NearestNeighbors.Edges> neighbours, int numColumns)
+            throws IOException {
+        long numEdges = 0;
+        for (NearestNeighbors.Edges row : neighbours) {
+            numEdges += row.size();
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES)) {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buf.put(MAGIC).putInt(CSR_VERSION).putInt(neighbours.size()).putInt(numColumns).putLong(numEdges);
+            long offset = 0;
+            buf.putLong(offset);
+            for (NearestNeighbors.Edges row : neighbours) {
+                offset += row.size();
+                flushIfFull(buf, out, Long.BYTES);
+                buf.putLong(offset);
+            }
+            for (NearestNeighbors.Edges row : neighbours) {
+                for (int i = 0; i < row.size(); i++) {
+                    flushIfFull(buf, out, Integer.BYTES);
+                    buf.putInt(row.getPosition(i));
+                }
+            }
+            for (NearestNeighbors.Edges row : neighbours) {
+                for (int i = 0; i < row.size(); i++) {
+                    flushIfFull(buf, out, Float.BYTES);
+                    buf.putFloat((float) row.getSimilarity(i));
+                }
+            }
+            out.write(buf.array(), 0, buf.position());
+        }
+    }
+
+    /**
+     * Passes the buffer to the stream if it has no room for the given number of bytes.
+     */
+    private static void flushIfFull(ByteBuffer buf, OutputStream out, int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            out.write(buf.array(), 0, buf.position());
+            ((Buffer) buf).clear();    // not ByteBuffer.clear, which only Java 9 and later have
+        }
+    }
+}
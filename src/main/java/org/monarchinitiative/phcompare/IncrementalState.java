@@ -0,0 +1,353 @@
+package org.monarchinitiative.phcompare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.monarchinitiative.phcompare.stats.PatientSimilarity;
+import org.monarchinitiative.phcompare.stats.SimilarityMatrix;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * IncrementalState is the state that an incremental run (-i) saves in the results directory
+ * (phenoCompare.state) so that the next run only has to process the patients added since: the patients of
+ * the cohort with their groups, the term x group count matrix, the patients covered by each term, and the
+ * lower triangle of the similarity matrix. The next run matches its patients to the saved ones; if every
+ * saved patient is still in the cohort, in the same group and with the same HPO terms, the saved counts
+ * and similarities are reused and only the added patients are counted and scored. Otherwise (patients
+ * removed or edited, another number of groups, another hp.obo) the state is ignored and everything is
+ * recomputed.
+ *
+ * State layout (big-endian): magic bytes PCIS, format version (int32), SHA-256 of hp.obo (32 bytes),
+ * number of terms, number of groups, number of patients; for each patient its group, id, gene and PubMed id
+ * (modified UTF-8) and HPO id numbers (count, then numbers); the count matrix; the number of terms covering
+ * some patient, then for each of them its dense index and its patients (count, then ascending cohort
+ * indices); the similarity key (32 bytes, all 0 if the similarities may not be reused); and last, the lower
+ * triangle of the similarity matrix, row by row, as float32.
+ */
+class IncrementalState {
+    static final String STATE_NAME = "phenoCompare.state";
+    private static final byte[] MAGIC = { 'P', 'C', 'I', 'S' };
+    private static final int VERSION = 1;
+    private static final int KEY_BYTES = 32;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private File stateFile;
+    private int[] groupOf;         // group of each saved patient
+    private String[] keys;         // identity of each saved patient (see key)
+    private int[] termCounts;      // saved term x group count matrix
+    private int[][] members;       // saved cohort indices of the patients covered by each term (null if none)
+    private byte[] similarityKey;  // settings of the saved similarities
+    private long matrixOffset;     // position of the similarity matrix in the state file
+
+    private IncrementalState(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Reads the state saved in the results directory.
+     * @param resultsDir          directory for result files
+     * @param ontologyChecksum    SHA-256 of the hp.obo of this run
+     * @param numTerms            number of terms in the term index
+     * @param numGroups           number of patient groups
+     * @return IncrementalState   the saved state, or null if there is none or it is stale or unreadable
+     */
+    static IncrementalState read(File resultsDir, byte[] ontologyChecksum, int numTerms, int numGroups) {
+        File stateFile = new File(resultsDir, STATE_NAME);
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        IncrementalState state = new IncrementalState(stateFile);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(stateFile), BUFFER_BYTES))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readInt();
+            byte[] checksum = new byte[ontologyChecksum.length];
+            in.readFully(checksum);
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION || !Arrays.equals(checksum, ontologyChecksum) ||
+                    in.readInt() != numTerms || in.readInt() != numGroups) {
+                logger.info("Ignoring incremental state " + stateFile.getAbsolutePath() +
+                        " saved with another ontology or gene groups");
+                return null;
+            }
+            int numPatients = in.readInt();
+            state.groupOf = new int[numPatients];
+            state.keys = new String[numPatients];
+            for (int p = 0; p < numPatients; p++) {
+                state.groupOf[p] = in.readInt();
+                String pid = in.readUTF();
+                String gene = in.readUTF();
+                String pmid = in.readUTF();
+                state.keys[p] = key(pid, gene, pmid, readInts(in));
+            }
+            state.termCounts = new int[numTerms * numGroups];
+            for (int i = 0; i < state.termCounts.length; i++) {
+                state.termCounts[i] = in.readInt();
+            }
+            state.members = new int[numTerms][];
+            int covering = in.readInt();
+            for (int i = 0; i < covering; i++) {
+                state.members[in.readInt()] = readInts(in);
+            }
+            state.similarityKey = new byte[KEY_BYTES];
+            in.readFully(state.similarityKey);
+            state.matrixOffset = stateFile.length() - 4L * numPatients * (numPatients + 1) / 2;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable incremental state " + stateFile.getAbsolutePath());
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Matches the patients of the cohort to the saved patients. Patients match if they have the same id,
+     * gene, PubMed id, HPO terms and group; saved patients that are alike are matched in cohort order.
+     * @param cohort      all patients, ordered by group
+     * @param cohortGroup group index for each patient of the cohort
+     * @return int[]      saved index of each patient of the cohort (-1 for patients added since), or null
+     *                    if some saved patient is no longer in the cohort
+     */
+    int[] match(Patient[] cohort, int[] cohortGroup) {
+        Map<String, ArrayDeque<Integer>> saved = new HashMap<>();
+        for (int p = 0; p < keys.length; p++) {
+            saved.computeIfAbsent(groupOf[p] + "\t" + keys[p], k -> new ArrayDeque<>()).add(p);
+        }
+        int[] savedIndex = new int[cohort.length];
+        int matched = 0;
+        for (int p = 0; p < cohort.length; p++) {
+            Patient pat = cohort[p];
+            ArrayDeque<Integer> alike = saved.get(cohortGroup[p] + "\t" +
+                    key(pat.getPid(), pat.getGene(), pat.getPmid(), pat.getHpoIds()));
+            if (alike == null || alike.isEmpty()) {
+                savedIndex[p] = -1;
+            } else {
+                savedIndex[p] = alike.poll();
+                matched++;
+            }
+        }
+        if (matched < keys.length) {
+            logger.info(String.format("%d patients of the incremental state %s are no longer in the cohort; " +
+                    "recomputing all patients", keys.length - matched, stateFile.getAbsolutePath()));
+            return null;
+        }
+        return savedIndex;
+    }
+
+    /**
+     * @return int[]    saved term x group count matrix
+     */
+    int[] getTermCounts() {
+        return termCounts;
+    }
+
+    /**
+     * @return int[][]    saved cohort indices of the patients covered by each dense term (null if none)
+     */
+    int[][] getMembers() {
+        return members;
+    }
+
+    /**
+     * Copies the saved similarities into the matrix of this run, if they were computed with the same settings.
+     * @param key            similarity key of this run (null if the similarities may not be reused)
+     * @param savedIndex     saved index of each patient of the cohort (-1 for patients added since)
+     * @param matrix         similarity matrix of this run
+     * @return boolean       true if the saved similarities were copied
+     * @throws IOException   if problem reading the state file
+     */
+    boolean copySimilarities(byte[] key, int[] savedIndex, SimilarityMatrix matrix) throws IOException {
+        if (key == null || !Arrays.equals(key, similarityKey)) {
+            return false;
+        }
+        int[] cohortIndex = new int[keys.length];
+        for (int p = 0; p < savedIndex.length; p++) {
+            if (savedIndex[p] >= 0) {
+                cohortIndex[savedIndex[p]] = p;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(stateFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            channel.position(matrixOffset);
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+            // Buffer's flip and clear, not ByteBuffer's, which a Java 8 runtime lacks
+            ((Buffer) buf).flip();
+            for (int r = 0; r < cohortIndex.length; r++) {
+                for (int c = 0; c <= r; c++) {
+                    if (buf.remaining() < 4) {
+                        buf.compact();
+                        if (channel.read(buf) < 0) {
+                            throw new EOFException();
+                        }
+                        ((Buffer) buf).flip();
+                    }
+                    matrix.set(cohortIndex[r], cohortIndex[c], buf.getFloat());
+                }
+            }
+        } catch (IOException e) {
+            throw new IOException("[IncrementalState.copySimilarities] Problem reading incremental state " +
+                    stateFile.getAbsolutePath(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Saves the state of a run in the results directory. The state is written to a temporary file, then
+     * moved into place, so that an interrupted run leaves the previous state intact.
+     * @param resultsDir          directory for result files
+     * @param ontologyChecksum    SHA-256 of the hp.obo of this run
+     * @param cohort              all patients, ordered by group
+     * @param cohortGroup         group index for each patient of the cohort
+     * @param numGroups           number of patient groups
+     * @param termCounts          term x group count matrix
+     * @param termPatients        patients covered by each dense term (null if none)
+     * @param key                 similarity key of this run (null if the similarities may not be reused)
+     * @param matrix              similarity matrix of the cohort
+     * @throws IOException        if problem writing the state file
+     */
+    static void write(File resultsDir, byte[] ontologyChecksum, Patient[] cohort, int[] cohortGroup, int numGroups,
+                      int[] termCounts, PatientBitmap[] termPatients, byte[] key, SimilarityMatrix matrix)
+            throws IOException {
+        File stateFile = new File(resultsDir, STATE_NAME);
+        File tmp = File.createTempFile(STATE_NAME, ".tmp", resultsDir);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_BYTES))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.write(ontologyChecksum);
+                out.writeInt(termPatients.length);
+                out.writeInt(numGroups);
+                out.writeInt(cohort.length);
+                for (int p = 0; p < cohort.length; p++) {
+                    out.writeInt(cohortGroup[p]);
+                    out.writeUTF(cohort[p].getPid());
+                    out.writeUTF(cohort[p].getGene());
+                    out.writeUTF(cohort[p].getPmid());
+                    writeInts(out, cohort[p].getHpoIds());
+                }
+                for (int count : termCounts) {
+                    out.writeInt(count);
+                }
+                int covering = 0;
+                for (PatientBitmap bitmap : termPatients) {
+                    if (bitmap != null) {
+                        covering++;
+                    }
+                }
+                out.writeInt(covering);
+                for (int t = 0; t < termPatients.length; t++) {
+                    if (termPatients[t] != null) {
+                        out.writeInt(t);
+                        writeInts(out, termPatients[t].toArray());
+                    }
+                }
+                out.write(key == null ? new byte[KEY_BYTES] : key);
+                out.flush();
+                // the lower triangle of the matrix goes straight to the channel, a block at a time
+                FileChannel channel = fos.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+                for (int r = 0; r < matrix.size(); r++) {
+                    for (int c = 0; c <= r; c++) {
+                        if (buf.remaining() < 4) {
+                            drain(channel, buf);
+                        }
+                        buf.putFloat((float) matrix.get(r, c));
+                    }
+                }
+                drain(channel, buf);
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IOException("[IncrementalState.write] Problem writing incremental state " +
+                    stateFile.getAbsolutePath(), e);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Computes the key of the settings that determine the similarity of two patients: the metric and, for
+     * RESNIK and LIN, the annotation file from which information content is taken. Information content
+     * computed from the cohort changes as patients are added, so in that case there is no key.
+     * @param metric            similarity metric
+     * @param annotationsPath   path of the annotation file for information content (may be null)
+     * @return byte[]           SHA-256 of the settings, or null if the similarities may not be reused
+     * @throws IOException      if the annotation file cannot be read
+     */
+    static byte[] similarityKey(PatientSimilarity.Metric metric, String annotationsPath) throws IOException {
+        if (metric != PatientSimilarity.Metric.JACCARD && annotationsPath == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(metric.name().getBytes(StandardCharsets.UTF_8));
+        if (metric != PatientSimilarity.Metric.JACCARD) {
+            try (InputStream in = new FileInputStream(annotationsPath)) {
+                byte[] buf = new byte[BUFFER_BYTES];
+                for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                    digest.update(buf, 0, n);
+                }
+            } catch (IOException e) {
+                throw new IOException("[IncrementalState.similarityKey] Unable to read annotation file " +
+                        annotationsPath, e);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buf) throws IOException {
+        ((Buffer) buf).flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        ((Buffer) buf).clear();
+    }
+
+    private static String key(String pid, String gene, String pmid, int[] hpoIds) {
+        return pid + "\t" + gene + "\t" + pmid + "\t" + Arrays.toString(hpoIds);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package org.monarchinitiative.phcompare;
 
-import com.github.phenomics.ontolib.formats.hpo.HpoTerm;
-import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
-import com.github.phenomics.ontolib.ontology.data.Ontology;
 import com.github.phenomics.ontolib.ontology.data.TermId;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+import org.monarchinitiative.phcompare.stats.AverageLinkage;
+import org.monarchinitiative.phcompare.stats.Dissimilarities;
 import org.monarchinitiative.phcompare.stats.HPOChiSquared;
+import org.monarchinitiative.phcompare.stats.InformationContent;
+import org.monarchinitiative.phcompare.stats.NearestNeighbors;
+import org.monarchinitiative.phcompare.stats.Pam;
 import org.monarchinitiative.phcompare.stats.PatientSimilarity;
+import org.monarchinitiative.phcompare.stats.Silhouette;
+import org.monarchinitiative.phcompare.stats.SimilarityMatrix;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -20,12 +28,20 @@ import java.util.*;
  * @since 19 Mar 2018
  *
  * OutputMgr writes all the phenoCompare output files, including:
- *    --- dissimilarity matrix;
+ *    --- dissimilarity matrix, or a sparse similarity graph (the k nearest neighbours of each patient, or the
+ *    pairs of patients whose similarity reaches a threshold);
+ *    --- clusterings of the patients, when requested;
  *    --- Chi-squared stats and p-values for the HPO terms whose stats are significant;
  *    --- detail files for each of the HPO terms to record which patients fell into each of the patient groups
  *    for that term.
  */
 class OutputMgr {
+    private static final Logger logger = LogManager.getLogger();
+    // numbers of clusters of the clusterings made by scripts/phenocluster.R
+    private static final int PAM_MIN_CLUSTERS = 2;
+    private static final int PAM_MAX_CLUSTERS = 5;
+    private static final int AGNES_CLUSTERS = 8;
+
     private PhenoCompare phenoC;
     private File resultsDir;
 
@@ -46,65 +62,50 @@ class OutputMgr {
      */
     Set<TermId> findSubtypes(Set<TermId> hpoTerms, TermId target) {
         Set<TermId> subtypes = new TreeSet<>();
-        Ontology<HpoTerm, HpoTermRelation> ontology = phenoC.getOntology();
+        TermIndex termIndex = phenoC.getTermIndex();
+        int targetIdx = termIndex.indexOf(target);
+        if (targetIdx < 0) {
+            return subtypes;
+        }
         for (TermId tid : hpoTerms) {
-            if (ontology.getAncestorTermIds(tid).contains(target)) {
+            int t = termIndex.indexOf(tid);
+            if (t >= 0 && termIndex.isAncestor(targetIdx, t)) {
                 subtypes.add(tid);
             }
         }
         return subtypes;
     }
 
-    /**
-     * Creates detail file for specified HPO term, writes header line in file.
-     * @param tidAsString        String representation of the HPO Term Id.
-     * @param termName           Name of the term in English
-     * @return BufferedWriter    for further writes to detail file
-     * @throws IOException       if problem occurred in creating file or writing to it
-     */
-    private BufferedWriter initDetailFile(String tidAsString, String termName) throws IOException {
-        File termDetailFile = new File(resultsDir,
-                tidAsString.replace(':', '-') + ".tsv");
-
-        try {
-            termDetailFile.createNewFile();
-            BufferedWriter bw = new BufferedWriter(new FileWriter(termDetailFile));
-            // write header lines in the term detail file
-            bw.write("# " + tidAsString + " " + termName);
-            bw.newLine();
-            bw.write("# GroupNum\tId Summary\tPubMed\tGene\tHPO term\tTerm name");
-            bw.newLine();
-            return bw;
-        } catch (IOException e) {
-            throw new IOException("[OutputMgr.initDetailFile] Problem with output file " +
-                    termDetailFile.getAbsolutePath(), e);
-        }
-    }
-
     /**
      * Writes Chi-squared statistics and p values to file named chiSquared.tsv in the results directory.
-     * Writes detail file for each HPO term listing patients that fall under that term.
+     * When exact tests were requested, a last column names the test that gave the p value of each term.
+     * Writes detail file for each HPO term listing patients that fall under that term (see DetailWriter),
+     * or bundles the detail files in details.zip if an archive was requested. The lines of chiSquared.tsv
+     * are written in order on this thread while the detail files are written by the worker threads.
      * @throws IOException    if problem writing to any output file
      */
     void writeChiSquared() throws IOException {
         File chiSquaredFile = new File(resultsDir, "chiSquared.tsv");
         int nGroups = phenoC.getNumGroups();
-        Map<TermId, PatientGroup[]> hpoPatientSubgroups = phenoC.getHpoPatientSubgroups();
+        int[] termCounts = phenoC.getTermCounts();
+        TermIndex termIndex = phenoC.getTermIndex();
         PatientGroup[] patientGroups = phenoC.getPatientGroups();
-        PatientGroup[] subgroups;
-        Map<TermId, HpoTerm> termMap = phenoC.getTermMap();
         TermId tid;
+        int t;
         String tidString, termName;
 
-        try {
-            chiSquaredFile.createNewFile();
-            BufferedWriter chisq = new BufferedWriter(new FileWriter(chiSquaredFile));
+        try (DetailWriter details = new DetailWriter(resultsDir, phenoC.getCohort(), phenoC.getGroupStart(),
+                termIndex, phenoC.isArchiveDetails(), phenoC.getNumThreads());
+             BufferedWriter chisq = new BufferedWriter(new FileWriter(chiSquaredFile))) {
             // write header line
             chisq.write("#HPO TermId\tTerm Name\t");
             for (int g = 1; g <= nGroups; g++) {
                 chisq.write(String.format("%s%d\t", "Group", g));
             }
             chisq.write("ChiSq\tUncorr p Value\tCorr p Value");
+            if (phenoC.isExact()) {
+                chisq.write("\tTest");
+            }
             chisq.newLine();
             // write one line for each HPO term in the Chi-squared file
             // write term detail file for each HPO term with listing of patients in each subgroup
@@ -112,102 +113,248 @@ class OutputMgr {
             for (HPOChiSquared hcs : phenoC.getTermChiSq()) {
                 tid = hcs.getHPOTermId();
                 tidString = tid.getIdWithPrefix();
-                termName = termMap.get(tid).getName();
-                subgroups = hpoPatientSubgroups.get(tid);
+                t = termIndex.indexOf(tid);
+                termName = termIndex.getName(t);
 
-                BufferedWriter termDetail = initDetailFile(tidString, termName);
+                details.write(t);
                 chisq.write(String.format("%s\t%s", tidString, termName));
                 for (int i = 0; i < nGroups; i++) {
-                    chisq.write(String.format("\t%5d/%d", subgroups[i].size(), patientGroups[i].size()));
-                    writeSubgroupDetail(termDetail, i + 1, subgroups[i], tid);
+                    chisq.write(String.format("\t%5d/%d", termCounts[t * nGroups + i], patientGroups[i].size()));
                 }
                 chisq.write(String.format("\t%7.3f\t%9.5f\t%9.5f", hcs.getChiSquare(), hcs.getChiSquareP(),
                         hcs.getCorrectedP()));
+                if (phenoC.isExact()) {
+                    String test = nGroups == 2 ? "Fisher" : "Freeman-Halton";
+                    chisq.write("\t" + (hcs.isExact() ? test : "Chi-squared"));
+                }
                 chisq.newLine();
-                termDetail.close();
             }
-            chisq.close();
         } catch (IOException e) {
             throw new IOException("[OutputMgr.writeChiSquared] Problem with output file. ", e);
         }
     }
 
     /**
-     * Writes dissimilarity matrix to file named dissim.tsv in results directory. Converts
-     * similarity matrix into dissimilarity matrix as it writes values to file.
-     * R clustering function requires a dissimilarity matrix. Columns are separated by tabs.
+     * Writes dissimilarity matrix to the results directory in the format selected on the command line:
+     * dissim.tsv (full matrix, the default), dissimLower.tsv (lower triangle), or dissim.bin (binary lower
+     * triangle, with patient ids in dissimIds.txt). Converts similarity matrix into dissimilarity matrix as
+     * it writes values to file. R clustering function requires a dissimilarity matrix.
+     * The similarity metric (Jaccard, Resnik, or Lin) and the storage of the similarity matrix (heap,
+     * off-heap, or memory-mapped file) are the ones selected on the command line. In an incremental run,
+     * the similarities saved by the previous run are reused and the similarity matrix is saved for the next.
+     * If clustering was requested, the dissimilarities as written are kept for writeClusters.
+     * @return Dissimilarities    the dissimilarities rounded as written, or null if clustering was not requested
      * @throws IOException     if problem writing to file
      */
-    void writeDissim() throws IOException {
-        File dissimFile = new File(resultsDir, "dissim.tsv");
-        StringBuilder sb = new StringBuilder();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(dissimFile));
-
-        try {
-            dissimFile.createNewFile();
-            PatientGroup[] patientGroups = phenoC.getPatientGroups();
+    Dissimilarities writeDissim() throws IOException {
+        List<Patient> pats = allPatients();
 
-            // Combine patient groups together to get one list of all patients
-            List<Patient> pats = new ArrayList<>(patientGroups[0].getPatients());
-            for (int g = 1; g < phenoC.getNumGroups(); g++) {
-                pats.addAll(patientGroups[g].getPatients());
+        // compute similarity matrix for all patients
+        PatientSimilarity.Metric metric = phenoC.getMetric();
+        InformationContent ic = informationContent(pats);
+        try (SimilarityMatrix matrix = SimilarityMatrix.create(phenoC.getMatrixStore(), pats.size(), resultsDir)) {
+            // an incremental run scores only the pairs with a patient added since the saved state
+            byte[] key = null;
+            boolean[] known = null;
+            if (phenoC.isIncremental()) {
+                key = IncrementalState.similarityKey(metric, phenoC.getAnnotationsPath());
+                known = phenoC.copySavedSimilarities(key, matrix);
             }
-
-            // compute similarity matrix for all patients
-            int dim = pats.size();
-            PatientSimilarity pSim = new PatientSimilarity(pats, phenoC.getOntology());
-            double[][] matrix = pSim.getSimilarityMatrix();
-
-            // write header line for dissimilarity matrix
-            // map Patient::getPid on pats, append to sb
-            for (Patient p : pats)
-                sb.append(String.format("\t%s", p.getPid()));
-            sb.append(System.lineSeparator());
-
-            // write dissimilarity matrix to outFile
-            for (int r = 0; r < dim; r++) {
-                for (int c = 0; c < dim; c++) {
-                    sb.append(String.format("\t%4.2f", 1.0 - matrix[r][c]));
+            new PatientSimilarity(pats, phenoC.getTermIndex(), metric, ic, matrix, known, phenoC.getNumThreads());
+            DissimWriter.write(resultsDir, phenoC.getDissimFormat(), pats, matrix);
+            if (phenoC.isIncremental()) {
+                phenoC.saveState(key, matrix);
+            }
+            if (!phenoC.isCluster()) {
+                return null;
+            }
+            Dissimilarities dissim = new Dissimilarities(pats.size());
+            char[] buf = new char[32];
+            for (int r = 0; r < pats.size(); r++) {
+                for (int c = 0; c < r; c++) {
+                    dissim.set(r, c, DissimWriter.dissimHundredths((float) matrix.get(r, c), buf));
                 }
-                sb.append(System.lineSeparator());
             }
-            bw.write(sb.toString());
-            bw.close();
+            return dissim;
         } catch (IOException e) {
-            throw new IOException("[OutputMgr.writeDissim] Problem with output file " +
-                    dissimFile.getAbsolutePath(), e);
+            throw new IOException("[OutputMgr.writeDissim] Problem with output file in " +
+                    resultsDir.getAbsolutePath(), e);
         }
     }
 
     /**
-     * Writes detailed information about patients in each subgroup that are covered by the term tid.
-     * If patient belongs under tid for multiple reasons (multiple paths in the ontology) then
-     * one line is written for each of patient's HPO terms that falls under (or is equal to) tid.
-     * @param bw            BufferedWriter for output
-     * @param groupNum      number of the subgroup
-     * @param subgroup      group of patients who fall under the category of tid
-     * @param tid           HPO term that describes all patients in the subgroup either directly or
-     *                      through inheritance if patient is annotated with a more specific term
-     * @throws IOException  if BufferedWriter cannot write to file
+     * Clusters the patients in process, as scripts/phenocluster.R does in R from dissim.tsv: partitioning
+     * around medoids into 2 to 5 clusters (as cluster::pam) and average-linkage agglomerative clustering cut
+     * into 8 clusters (as cluster::agnes and cutree). Writes three files to the results directory:
+     *    --- clusters.tsv: one line per patient with its cluster and silhouette width in each clustering;
+     *    --- clusterSummary.tsv: the average silhouette width of each clustering, and the medoids of PAM;
+     *    --- clusterTree.tsv: the merges of the agglomerative clustering and their heights, numbered as in
+     *    R's merge matrix (a patient as minus its line number in clusters.tsv, a merge as its step).
+     * Clusterings with more clusters than patients are left out.
+     * @param dissim           dissimilarities of the patients, as written to the dissimilarity file
+     * @throws IOException     if problem writing to file
      */
-    private void writeSubgroupDetail(BufferedWriter bw, int groupNum, PatientGroup subgroup, TermId tid)
-            throws IOException {
-        String line;
-        Map<TermId, HpoTerm> termMap = phenoC.getTermMap();
+    void writeClusters(Dissimilarities dissim) throws IOException {
+        List<Patient> pats = allPatients();
+        int n = pats.size();
+        int numThreads = phenoC.getNumThreads();
+        List<String> names = new ArrayList<>();
+        List<int[]> clusterings = new ArrayList<>();
+        List<double[]> silhouettes = new ArrayList<>();
+        List<String> summaries = new ArrayList<>();
+        for (int k = PAM_MIN_CLUSTERS; k <= Math.min(PAM_MAX_CLUSTERS, n); k++) {
+            Pam pam = new Pam(dissim, k, numThreads);
+            double[] widths = Silhouette.widths(dissim, pam.getClustering(), k, numThreads);
+            StringJoiner medoids = new StringJoiner(",");
+            for (int m : pam.getMedoids()) {
+                medoids.add(pats.get(m).getPid());
+            }
+            names.add("pam" + k);
+            clusterings.add(pam.getClustering());
+            silhouettes.add(widths);
+            summaries.add(String.format("pam\t%d\t%.4f\t%s", k, Silhouette.average(widths), medoids));
+        }
+        AverageLinkage agnes = new AverageLinkage(dissim);
+        int cut = Math.min(AGNES_CLUSTERS, n);
+        if (n > 0) {
+            int[] clustering = agnes.cut(cut);
+            double[] widths = Silhouette.widths(dissim, clustering, cut, numThreads);
+            names.add("agnes" + cut);
+            clusterings.add(clustering);
+            silhouettes.add(widths);
+            summaries.add(String.format("agnes\t%d\t%.4f\t", cut, Silhouette.average(widths)));
+        }
 
-        try {
-            for (Patient p : subgroup.getPatients()) {
-                line = String.format("%d\t%s\t%s\t%s", groupNum, p.getIdSummary(),
-                        "https://www.ncbi.nlm.nih.gov/pubmed/" + p.getPmid(), p.getGene());
-                for (TermId subtype : findSubtypes(p.getHpoTerms(), tid)) {
-                    bw.write(String.format("%s\t%s\t%s", line, subtype.getIdWithPrefix(),
-                            termMap.get(subtype).getName()));
-                    bw.newLine();
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(new File(resultsDir, "clusters.tsv")))) {
+            w.write("#Patient");
+            for (String name : names) {
+                w.write("\t" + name + "\tsilhouette_" + name);
+            }
+            w.newLine();
+            for (int p = 0; p < n; p++) {
+                w.write(pats.get(p).getPid());
+                for (int i = 0; i < names.size(); i++) {
+                    w.write(String.format("\t%d\t%.4f", clusterings.get(i)[p], silhouettes.get(i)[p]));
                 }
+                w.newLine();
+            }
+        }
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(new File(resultsDir, "clusterSummary.tsv")))) {
+            w.write("#Method\tClusters\tAverage silhouette\tMedoids");
+            w.newLine();
+            for (String line : summaries) {
+                w.write(line);
+                w.newLine();
+            }
+        }
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(new File(resultsDir, "clusterTree.tsv")))) {
+            w.write("#Step\tMerge1\tMerge2\tHeight");
+            w.newLine();
+            int[][] merge = agnes.getMerge();
+            for (int s = 0; s < merge.length; s++) {
+                w.write(String.format("%d\t%d\t%d\t%.6f", s + 1, merge[s][0], merge[s][1], agnes.getHeight()[s]));
+                w.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes the k nearest neighbours of each patient (k from the -k option) to knn.tsv in the results
+     * directory, instead of the full dissimilarity matrix: one line per patient and neighbour, giving the
+     * patient id, the rank of the neighbour, its id, and its similarity. If a query patients file was given
+     * (-q), the nearest neighbours in the cohort of each query patient are written to knnQuery.tsv in the
+     * same layout. With the binary format (-f binary) the neighbours are written as compressed sparse rows
+     * to knn.csr and knnQuery.csr instead (see GraphWriter). The neighbours are found by NearestNeighbors,
+     * which scores only the pairs that may enter the top k.
+     * @return NearestNeighbors    the search engine, which counts the pairs it scored
+     * @throws IOException     if problem reading the query patients file or writing to file
+     */
+    NearestNeighbors writeNeighbours() throws IOException {
+        List<Patient> pats = allPatients();
+        List<Patient> queries = new ArrayList<>();
+        if (phenoC.getQueryPath() != null) {
+            File queryFile = new File(phenoC.getQueryPath());
+            if (!queryFile.exists()) {
+                throw new IOException("[OutputMgr.writeNeighbours] Cannot find query patients file " +
+                        phenoC.getQueryPath());
+            }
+            PatientFileReader.read(queryFile, phenoC.getNumThreads(), queries::add, logger::warn);
+        }
+        NearestNeighbors knn = new NearestNeighbors(pats, queries, phenoC.getTermIndex(), phenoC.getMetric(),
+                informationContent(pats), phenoC.getNumThreads());
+        int k = phenoC.getNeighbours();
+        try {
+            GraphWriter.write(resultsDir, "knn", phenoC.getDissimFormat(), pats,
+                    edges(knn.allNearest(k, false, phenoC.getNumThreads())), pats, true);
+            if (phenoC.getQueryPath() != null) {
+                GraphWriter.write(resultsDir, "knnQuery", phenoC.getDissimFormat(), queries,
+                        edges(knn.allNearest(k, true, phenoC.getNumThreads())), pats, true);
             }
         } catch (IOException e) {
-            throw new IOException("[OutputMgr.writeSubgroupDetail] Problem writing patient detail file. ",
-                    e);
+            throw new IOException("[OutputMgr.writeNeighbours] Problem with output file in " +
+                    resultsDir.getAbsolutePath(), e);
+        }
+        return knn;
+    }
+
+    private static List<NearestNeighbors.Edges> edges(List<List<NearestNeighbors.Neighbor>> nearest) {
+        List<NearestNeighbors.Edges> rows = new ArrayList<>(nearest.size());
+        for (List<NearestNeighbors.Neighbor> neighbors : nearest) {
+            rows.add(NearestNeighbors.Edges.of(neighbors));
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the sparse similarity graph of the patients (threshold from the -d option) instead of the full
+     * dissimilarity matrix: each pair of patients whose similarity is at least the threshold, once, in the
+     * row of the later of the two in the order of the cohort. The graph is written as an edge list to
+     * graph.tsv (patient id, neighbour id, similarity) or, with the binary format (-f binary), as compressed
+     * sparse rows to graph.csr (see GraphWriter). The pairs are found by NearestNeighbors, which skips
+     * without scoring them the pairs whose similarity cannot reach the threshold, so the time and memory
+     * needed grow with the number of edges rather than with the number of pairs.
+     * @return NearestNeighbors    the search engine, which counts the pairs it scored and found
+     * @throws IOException     if problem writing to file
+     */
+    NearestNeighbors writeGraph() throws IOException {
+        List<Patient> pats = allPatients();
+        NearestNeighbors graph = new NearestNeighbors(pats, new ArrayList<>(), phenoC.getTermIndex(),
+                phenoC.getMetric(), informationContent(pats), phenoC.getNumThreads());
+        try {
+            GraphWriter.write(resultsDir, "graph", phenoC.getDissimFormat(), pats,
+                    graph.allAbove(phenoC.getThreshold(), phenoC.getNumThreads()), pats, false);
+        } catch (IOException e) {
+            throw new IOException("[OutputMgr.writeGraph] Problem with output file in " +
+                    resultsDir.getAbsolutePath(), e);
+        }
+        return graph;
+    }
+
+    /**
+     * Combines the patient groups into one list of all patients, in the order of the cohort.
+     */
+    private List<Patient> allPatients() {
+        PatientGroup[] patientGroups = phenoC.getPatientGroups();
+        List<Patient> pats = new ArrayList<>(patientGroups[0].getPatients());
+        for (int g = 1; g < phenoC.getNumGroups(); g++) {
+            pats.addAll(patientGroups[g].getPatients());
+        }
+        return pats;
+    }
+
+    /**
+     * Computes the information content used by the Resnik and Lin metrics, from the annotation file if one
+     * was given and otherwise from the patients.
+     * @param pats             all patients
+     * @return InformationContent   IC table, or null for the Jaccard metric
+     * @throws IOException     if problem reading the annotation file
+     */
+    private InformationContent informationContent(List<Patient> pats) throws IOException {
+        if (phenoC.getMetric() == PatientSimilarity.Metric.JACCARD) {
+            return null;
         }
+        return phenoC.getAnnotationsPath() == null ?
+                InformationContent.fromCohort(pats, phenoC.getTermIndex()) :
+                InformationContent.fromAnnotationFile(phenoC.getAnnotationsPath(), phenoC.getTermIndex());
     }
 }
@@ -1,11 +1,11 @@
 package org.monarchinitiative.phcompare;
 
 import com.github.phenomics.ontolib.ontology.data.ImmutableTermPrefix;
-import com.github.phenomics.ontolib.ontology.data.ImmutableTermId;
 import com.github.phenomics.ontolib.ontology.data.TermPrefix;
 import com.github.phenomics.ontolib.ontology.data.TermId;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.monarchinitiative.phcompare.ontology.HpoIds;
 
 import java.util.*;
 import java.util.zip.DataFormatException;
@@ -32,32 +32,38 @@ public class Patient {
     // Id summary for this patient (reference to paper describing the case, affected gene, and
     // name of the individual family member)
     private String idSummary;
-    // Terms from Human Phenotype Ontology that describe this patient
-    private Set<TermId> hpoTerms;
+    // Terms from Human Phenotype Ontology that describe this patient, as sorted HPO id numbers (see HpoIds)
+    private int[] hpoIds;
 
     public static TermPrefix HPOPREFIX = new ImmutableTermPrefix("HP");
+    // number of tab-separated fields in a patient record
+    private static final int NUM_FIELDS = 7;
+    private static final int[] NO_TERMS = new int[0];
     private static final Logger logger = LogManager.getLogger();
 
     /**
      * Constructor extracts the patient id, gene name, id summary, and HPO term IDs from the patient record
-     * (one line of the patients file).
+     * (one line of the patients file). Gene names and PubMed IDs are interned, so that patients with the
+     * same gene or paper share one String.
      * @param line                   line of text for this patient in the patients file
      * @throws DataFormatException   if fields are not as expected
      */
-    Patient(String line) throws DataFormatException {
+    public Patient(String line) throws DataFormatException {
         pid = gene = pmid = idSummary = "";
-        hpoTerms = new TreeSet<>();
+        hpoIds = NO_TERMS;
 
-        String[] fields = line.split("\t");
-        if (fields.length != 7)
+        // field f of the record is line.substring(fieldStart[f], fieldEnd[f])
+        int[] fieldStart = new int[NUM_FIELDS];
+        int[] fieldEnd = new int[NUM_FIELDS];
+        if (splitFields(line, fieldStart, fieldEnd) != NUM_FIELDS)
             throw new DataFormatException("[Patient.Patient] Wrong number of fields in patient record:\n" + line);
-        pid = fields[0];
-        gene = fields[1];
-        pmid = fields[2];
-        idSummary = fields[4];
-        parseHPOterms(fields[6]);
+        pid = line.substring(fieldStart[0], fieldEnd[0]);
+        gene = line.substring(fieldStart[1], fieldEnd[1]).intern();
+        pmid = line.substring(fieldStart[2], fieldEnd[2]).intern();
+        idSummary = line.substring(fieldStart[4], fieldEnd[4]);
+        parseHPOterms(line, fieldStart[6], fieldEnd[6]);
         if (pid.equals("") || gene.equals("") || pmid.equals("") || idSummary.equals("") ||
-                hpoTerms.isEmpty()) {
+                hpoIds.length == 0) {
             throw new DataFormatException("[Patient.Patient] Cannot parse patient record:\n" + line);
         }
     }
@@ -75,10 +81,10 @@ public class Patient {
         gene = g;
         pmid = pm;
         idSummary = summary;
-        if (terms == null) {
-            hpoTerms = new TreeSet<>();
+        hpoIds = NO_TERMS;
+        if (terms != null) {
+            hpoIds = terms.stream().mapToInt(HpoIds::number).filter(n -> n >= 0).sorted().distinct().toArray();
         }
-        else hpoTerms = terms;
     }
 
     /**
@@ -94,7 +100,7 @@ public class Patient {
 
         Patient patient = (Patient) o;
         return pid.equals(patient.pid) && gene.equals(patient.gene) &&
-                pmid.equals(patient.pmid) && hpoTerms.equals(patient.hpoTerms);
+                pmid.equals(patient.pmid) && Arrays.equals(hpoIds, patient.hpoIds);
     }
 
     /**
@@ -118,11 +124,28 @@ public class Patient {
     String getIdSummary() { return idSummary; }
 
     /**
-     * @return    Set of HPO TermIDs for the terms listed in the patient's record
+     * @return    Set of HPO TermIDs for the terms listed in the patient's record (created on each call)
      */
-    Set<TermId> getHpoTerms() { return hpoTerms; }
+    Set<TermId> getHpoTerms() { return new TreeSet<>(getListOfHpoTerms()); }
 
-    public List<TermId> getListOfHpoTerms() { return new ArrayList<>(hpoTerms);}
+    /**
+     * @return    List of HPO TermIDs for the terms listed in the patient's record, in TermId order
+     *            (created on each call; counting and similarity use getHpoIds instead)
+     */
+    public List<TermId> getListOfHpoTerms() {
+        List<TermId> terms = new ArrayList<>(hpoIds.length);
+        for (int number : hpoIds) {
+            terms.add(HpoIds.toTermId(number));
+        }
+        return terms;
+    }
+
+    /**
+     * Returns the numbers (see HpoIds) of the HPO terms listed in the patient's record. The array is
+     * shared; callers must not modify it.
+     * @return    sorted, duplicate-free HPO id numbers
+     */
+    public int[] getHpoIds() { return hpoIds; }
 
     /**
      * Relies on the hashcode of the String and TreeSet classes. Assumes all instance variables
@@ -135,34 +158,102 @@ public class Patient {
         result = 31 * result + gene.hashCode();
         result = 31 * result + pmid.hashCode();
         result = 31 * result + idSummary.hashCode();
-        result = 31 * result + hpoTerms.hashCode();
+        result = 31 * result + Arrays.hashCode(hpoIds);
         return result;
     }
 
+    /**
+     * Finds the tab-separated fields of a patient record without creating a String for each field.
+     * Counts fields as String.split("\t") does, i.e. trailing empty fields are not counted.
+     * @param line          patient record
+     * @param fieldStart    receives the start of each of the first NUM_FIELDS fields
+     * @param fieldEnd      receives the end (exclusive) of each of the first NUM_FIELDS fields
+     * @return int          number of fields in the record
+     */
+    private static int splitFields(String line, int[] fieldStart, int[] fieldEnd) {
+        int numFields = 0;       // fields up to and including the last non-empty one
+        int f = 0;
+        int start = 0;
+        while (true) {
+            int end = line.indexOf('\t', start);
+            if (end < 0) {
+                end = line.length();
+            }
+            if (f < NUM_FIELDS) {
+                fieldStart[f] = start;
+                fieldEnd[f] = end;
+            }
+            f++;
+            if (end > start) {
+                numFields = f;
+            }
+            if (end == line.length()) {
+                // String.split gives one empty field for an empty line
+                return line.isEmpty() ? 1 : numFields;
+            }
+            start = end + 1;
+        }
+    }
+
     /**
      * Parses list of HPO terms from patient record. The HPO terms are separated by semicolons.
-     * Each term is added to this object's hpoTerms.
-     * @param listOfTerms    String consisting of HPO term IDs separated by semicolons
+     * The number of each term is parsed straight from the record into this object's hpoIds.
+     * @param line     patient record
+     * @param from     start of the field consisting of HPO term IDs separated by semicolons
+     * @param to       end (exclusive) of the field
      */
-    private void parseHPOterms(String listOfTerms) {
-        String[] hpoTermIds = listOfTerms.split(";");
-
-        for (String hpostring : hpoTermIds) {
-            int i = hpostring.indexOf(":");
-            if (i < 0) {
-                logger.error("ERROR -- Could not parse " + hpostring + " because we did not find a :");
-                return;
-            } else {
-                hpostring = hpostring.substring(i + 1);
+    private void parseHPOterms(String line, int from, int to) {
+        // empty terms at the end of the list are ignored, as String.split(";") would
+        int end0 = to;
+        while (to > from && line.charAt(to - 1) == ';') {
+            to--;
+        }
+        if (to == from && end0 > from) {
+            // list consists only of semicolons
+            return;
+        }
+        int[] ids = new int[8];
+        int n = 0;
+        int start = from;
+        while (start <= to) {
+            int end = line.indexOf(';', start);
+            if (end < 0 || end > to) {
+                end = to;
             }
-            TermId id = new ImmutableTermId(HPOPREFIX, hpostring);
-            if (hpoTerms.contains(id)) {
-                logger.info("[Patient.parseHPOterms] Duplicate HPO term " + hpostring +
+            int colon = line.indexOf(':', start);
+            if (colon < 0 || colon >= end) {
+                logger.error("ERROR -- Could not parse " + line.substring(start, end) +
+                        " because we did not find a :");
+                break;
+            }
+            int number = HpoIds.parse(line, colon + 1, end);
+            if (number < 0) {
+                logger.error("[Patient.parseHPOterms] Skipping HPO term " + line.substring(start, end) +
+                        " for patient " + pid + " because it is not a " + HpoIds.DIGITS + " digit id");
+            } else if (contains(ids, n, number)) {
+                logger.info("[Patient.parseHPOterms] Duplicate HPO term " + line.substring(colon + 1, end) +
                         " for patient " + pid);
             } else {
-                hpoTerms.add(id);
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, 2 * n);
+                }
+                ids[n++] = number;
+            }
+            start = end + 1;
+        }
+        if (n > 0) {
+            hpoIds = Arrays.copyOf(ids, n);
+            Arrays.sort(hpoIds);
+        }
+    }
+
+    private static boolean contains(int[] ids, int n, int number) {
+        for (int i = 0; i < n; i++) {
+            if (ids[i] == number) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -0,0 +1,215 @@
+package org.monarchinitiative.phcompare;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * PatientBitmap is an immutable, compressed set of patient indices (positions of patients in the cohort).
+ * Indices are split into chunks of 65536 by their high 16 bits. Each chunk is held in a container:
+ * a sorted char[] of the low 16 bits when the chunk is sparse, or a long[1024] bitmap when the chunk holds
+ * more than 4096 patients (the point at which the bitmap becomes the smaller of the two).
+ */
+public class PatientBitmap {
+    private static final int ARRAY_MAX = 4096;     // largest cardinality held in an array container
+    private static final int BITMAP_WORDS = 1024;  // 65536 bits
+
+    private int[] keys;            // high 16 bits of the indices in each container, ascending
+    private Object[] containers;   // char[] (array container) or long[] (bitmap container)
+    private int[] cardinalities;   // number of indices in each container
+    private int cardinality;       // total number of indices in this bitmap
+
+    /**
+     * Creates a bitmap from the first n entries of an array of indices in strictly increasing order.
+     * @param sorted    patient indices, ascending and duplicate-free
+     * @param n         number of entries of sorted to be used
+     */
+    public PatientBitmap(int[] sorted, int n) {
+        int numContainers = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || (sorted[i] >>> 16) != (sorted[i - 1] >>> 16)) {
+                numContainers++;
+            }
+        }
+        keys = new int[numContainers];
+        containers = new Object[numContainers];
+        cardinalities = new int[numContainers];
+        cardinality = n;
+
+        int start = 0, c = 0;
+        while (start < n) {
+            int key = sorted[start] >>> 16;
+            int end = start;
+            while (end < n && (sorted[end] >>> 16) == key) {
+                end++;
+            }
+            keys[c] = key;
+            cardinalities[c] = end - start;
+            if (end - start <= ARRAY_MAX) {
+                char[] low = new char[end - start];
+                for (int i = start; i < end; i++) {
+                    low[i - start] = (char) sorted[i];
+                }
+                containers[c] = low;
+            } else {
+                long[] bits = new long[BITMAP_WORDS];
+                for (int i = start; i < end; i++) {
+                    int lowBits = sorted[i] & 0xFFFF;
+                    bits[lowBits >>> 6] |= 1L << lowBits;
+                }
+                containers[c] = bits;
+            }
+            c++;
+            start = end;
+        }
+    }
+
+    /**
+     * @return int    number of patients in this bitmap
+     */
+    public int cardinality() { return cardinality; }
+
+    /**
+     * Indicates whether or not the patient index is in this bitmap.
+     * @param index      patient index
+     * @return boolean   true if index is in this bitmap, false otherwise
+     */
+    public boolean contains(int index) {
+        int c = Arrays.binarySearch(keys, index >>> 16);
+        if (c < 0) {
+            return false;
+        }
+        int low = index & 0xFFFF;
+        if (containers[c] instanceof char[]) {
+            return Arrays.binarySearch((char[]) containers[c], (char) low) >= 0;
+        }
+        return (((long[]) containers[c])[low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Finds the smallest patient index in this bitmap that is greater than or equal to from.
+     * @param from      lower bound for the patient index
+     * @return int      the next patient index, or -1 if there is none
+     */
+    public int nextIndex(int from) {
+        int c = Arrays.binarySearch(keys, from >>> 16);
+        int low = from & 0xFFFF;
+        if (c < 0) {
+            // start of the first container above the chunk of from
+            c = -c - 1;
+            low = 0;
+        }
+        for (; c < keys.length; c++, low = 0) {
+            int high = keys[c] << 16;
+            if (containers[c] instanceof char[]) {
+                char[] lows = (char[]) containers[c];
+                int i = Arrays.binarySearch(lows, (char) low);
+                if (i < 0) {
+                    i = -i - 1;
+                }
+                if (i < lows.length) {
+                    return high | lows[i];
+                }
+            } else {
+                long[] bits = (long[]) containers[c];
+                int w = low >>> 6;
+                long word = bits[w] & (-1L << low);
+                while (true) {
+                    if (word != 0) {
+                        return high | (w << 6) | Long.numberOfTrailingZeros(word);
+                    }
+                    if (++w == BITMAP_WORDS) {
+                        break;
+                    }
+                    word = bits[w];
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Passes each patient index in this bitmap, in ascending order, to the action.
+     * @param action    consumer of patient indices
+     */
+    public void forEach(IntConsumer action) {
+        forEachInRange(0, Integer.MAX_VALUE, action);
+    }
+
+    /**
+     * Passes each patient index in this bitmap that lies in the range from (inclusive) .. to (exclusive),
+     * in ascending order, to the action.
+     * @param from      first patient index of the range
+     * @param to        one past the last patient index of the range
+     * @param action    consumer of patient indices
+     */
+    public void forEachInRange(int from, int to, IntConsumer action) {
+        for (int c = 0; c < keys.length; c++) {
+            int high = keys[c] << 16;
+            if (high >= to) {
+                return;
+            }
+            if (high + 0xFFFF < from) {
+                continue;
+            }
+            if (containers[c] instanceof char[]) {
+                for (char low : (char[]) containers[c]) {
+                    int index = high | low;
+                    if (index >= to) {
+                        return;
+                    }
+                    if (index >= from) {
+                        action.accept(index);
+                    }
+                }
+            } else {
+                long[] bits = (long[]) containers[c];
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        int index = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        if (index >= to) {
+                            return;
+                        }
+                        if (index >= from) {
+                            action.accept(index);
+                        }
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the patient indices of this bitmap in the range from (inclusive) .. to (exclusive).
+     * @param from      first patient index of the range
+     * @param to        one past the last patient index of the range
+     * @return int      number of patient indices in the range
+     */
+    public int rangeCardinality(int from, int to) {
+        int count = 0;
+        for (int c = 0; c < keys.length; c++) {
+            long high = (long) keys[c] << 16;
+            if (high >= from && high + 0xFFFF < to) {
+                // container lies entirely within the range
+                count += cardinalities[c];
+            } else if (high < to && high + 0xFFFF >= from) {
+                int[] partial = new int[1];
+                forEachInRange((int) Math.max(from, high), (int) Math.min(to, high + 0x10000),
+                        index -> partial[0]++);
+                count += partial[0];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return int[]    patient indices of this bitmap in ascending order
+     */
+    public int[] toArray() {
+        int[] indices = new int[cardinality];
+        int[] pos = new int[1];
+        forEach(index -> indices[pos[0]++] = index);
+        return indices;
+    }
+}
@@ -0,0 +1,171 @@
+package org.monarchinitiative.phcompare;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+
+/**
+ * PatientFileReader reads the patients file through a FileChannel in large blocks. Each block is cut after
+ * its last newline, so that every chunk holds whole lines, and the chunks are parsed into Patient objects
+ * by a pool of worker threads while the next blocks are read. The results of the chunks are then passed
+ * to the caller in file order, so the patients and the warnings for bad records come out exactly as they
+ * would from reading the file line by line. At most WINDOW_PER_THREAD chunks per thread are in progress at
+ * a time; reading waits for the oldest chunk to be parsed when the window is full, so that a large file is
+ * never held in memory all at once.
+ *
+ * The file is read as UTF-8. Lines end with \n or \r\n; lines starting with # are header lines or comments
+ * and are skipped.
+ */
+class PatientFileReader {
+    // number of bytes read from the file at a time
+    static final int BLOCK_BYTES = 4 * 1024 * 1024;
+    // largest number of chunks being parsed or waiting to be passed on, per worker thread
+    private static final int WINDOW_PER_THREAD = 2;
+
+    private PatientFileReader() { }
+
+    /**
+     * Reads all patient records of a file.
+     * @param patientsFile    file containing one line per patient
+     * @param numThreads      number of worker threads for parsing (1 to parse on the calling thread)
+     * @param onPatient       receives each patient parsed from the file, in file order
+     * @param onWarning       receives the message for each record that cannot be parsed, in file order
+     * @throws IOException    if problem reading the file
+     */
+    static void read(File patientsFile, int numThreads, Consumer<Patient> onPatient, Consumer<String> onWarning)
+            throws IOException {
+        read(patientsFile, numThreads, BLOCK_BYTES, onPatient, onWarning);
+    }
+
+    /**
+     * Reads all patient records of a file, blockBytes at a time.
+     */
+    static void read(File patientsFile, int numThreads, int blockBytes, Consumer<Patient> onPatient,
+                     Consumer<String> onWarning) throws IOException {
+        ExecutorService pool = numThreads > 1 ? AllocationScope.fixedThreadPool(numThreads) : null;
+        ArrayDeque<Future<List<Object>>> pending = new ArrayDeque<>();
+        int window = WINDOW_PER_THREAD * numThreads;
+        try (RandomAccessFile raf = new RandomAccessFile(patientsFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer block = ByteBuffer.allocate(blockBytes);
+            byte[] carry = new byte[0];    // partial line left over from the previous block
+            while (true) {
+                // through Buffer, whose flip and clear are the only ones a Java 8 runtime has
+                ((Buffer) block).clear();
+                if (channel.read(block) < 0) {
+                    break;
+                }
+                ((Buffer) block).flip();
+                byte[] data = new byte[carry.length + block.remaining()];
+                System.arraycopy(carry, 0, data, 0, carry.length);
+                block.get(data, carry.length, data.length - carry.length);
+                // the carry holds no newline, so only the bytes of this block need to be searched
+                int cut = data.length;
+                while (cut > carry.length && data[cut - 1] != '\n') {
+                    cut--;
+                }
+                if (cut == carry.length) {
+                    // no newline in this block: the line continues in the next one
+                    carry = data;
+                    continue;
+                }
+                carry = Arrays.copyOfRange(data, cut, data.length);
+                submit(data, cut, pool, pending, window, onPatient, onWarning);
+            }
+            if (carry.length > 0) {
+                // last line of the file has no newline
+                submit(carry, carry.length, pool, pending, window, onPatient, onWarning);
+            }
+            for (Future<List<Object>> f : pending) {
+                deliver(getResult(f), onPatient, onWarning);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Parses a chunk on the calling thread, or hands it to the pool.
+     */
+    private static void submit(byte[] chunk, int length, ExecutorService pool,
+                               ArrayDeque<Future<List<Object>>> pending, int window,
+                               Consumer<Patient> onPatient, Consumer<String> onWarning) throws IOException {
+        if (pool == null) {
+            deliver(parseChunk(chunk, length), onPatient, onWarning);
+            return;
+        }
+        pending.add(pool.submit(() -> parseChunk(chunk, length)));
+        // pass on the results that are ready, and wait for the oldest chunk when the window is full
+        while (!pending.isEmpty() && (pending.size() > window || pending.peek().isDone())) {
+            deliver(getResult(pending.poll()), onPatient, onWarning);
+        }
+    }
+
+    /**
+     * Parses the lines of a chunk.
+     * @param chunk           whole lines of the patients file
+     * @param length          number of bytes of chunk to be parsed
+     * @return List<Object>   in line order, a Patient for each good record and a String warning for each bad one
+     */
+    static List<Object> parseChunk(byte[] chunk, int length) {
+        String text = new String(chunk, 0, length, StandardCharsets.UTF_8);
+        List<Object> results = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            int next = end < 0 ? text.length() : end + 1;
+            if (end < 0) {
+                end = text.length();
+            }
+            if (end > start && text.charAt(end - 1) == '\r') {
+                end--;
+            }
+            String line = text.substring(start, end);
+            if (!line.startsWith("#")) {     // # marks a header line or comment in the input file
+                try {
+                    results.add(new Patient(line));
+                } catch (DataFormatException e) {
+                    results.add(e.getMessage());
+                }
+            }
+            start = next;
+        }
+        return results;
+    }
+
+    private static void deliver(List<Object> results, Consumer<Patient> onPatient, Consumer<String> onWarning) {
+        for (Object r : results) {
+            if (r instanceof Patient) {
+                onPatient.accept((Patient) r);
+            } else {
+                onWarning.accept((String) r);
+            }
+        }
+    }
+
+    private static List<Object> getResult(Future<List<Object>> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[PatientFileReader.read] Interrupted while parsing patients file", e);
+        } catch (ExecutionException e) {
+            throw new IOException("[PatientFileReader.read] Problem parsing patients file", e.getCause());
+        }
+    }
+}
@@ -1,10 +1,5 @@
 package org.monarchinitiative.phcompare;
 
-import com.github.phenomics.ontolib.formats.hpo.HpoOntology;
-import com.github.phenomics.ontolib.formats.hpo.HpoTerm;
-import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
-import com.github.phenomics.ontolib.io.obo.hpo.HpoOboParser;
-import com.github.phenomics.ontolib.ontology.data.Ontology;
 import com.github.phenomics.ontolib.ontology.data.TermId;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,14 +11,23 @@ import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+import org.monarchinitiative.phcompare.ontology.OntologySnapshot;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+import org.monarchinitiative.phcompare.stats.ChiSquaredKernel;
+import org.monarchinitiative.phcompare.stats.Dissimilarities;
+import org.monarchinitiative.phcompare.stats.ExactTest;
 import org.monarchinitiative.phcompare.stats.HPOChiSquared;
+import org.monarchinitiative.phcompare.stats.MaxTPermutation;
+import org.monarchinitiative.phcompare.stats.NearestNeighbors;
+import org.monarchinitiative.phcompare.stats.PatientSimilarity;
+import org.monarchinitiative.phcompare.stats.SimilarityMatrix;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 
 import java.util.*;
-import java.util.zip.DataFormatException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *  PhenoCompare compares several groups of patients to judge their overlap/divergence in the Human Phenotype
@@ -34,70 +38,340 @@ import java.util.zip.DataFormatException;
  *     @version 0.0.1
  */
 public class PhenoCompare {
+    private String annotationsPath;    // path for annotation file used for information content (may be null)
+    private String aliasesPath;        // path for HGNC gene file of gene aliases (may be null)
+    // correction of Chi-squared p-values for multiple comparisons
+    private HPOChiSquared.Correction correction = HPOChiSquared.Correction.BONFERRONI;
+    private DissimWriter.Format dissimFormat = DissimWriter.Format.TSV;   // format of dissimilarity matrix
     private GeneGroups geneGroups; // groups of genes corresponding to disease categories
     private String genesPath;      // path for input file containing lists of genes for the patient groups
     private String hpoPath;        // path to directory containing .obo file for HPO
-    // hpoPatientSubgroups maps from an HPO term to an array of the patient subgroups covered by that term
-    private SortedMap<TermId, PatientGroup[]> hpoPatientSubgroups;
+    private int maxPermutations = 10000;    // largest number of permutations for maxT correction
+    private SimilarityMatrix.Store matrixStore = SimilarityMatrix.Store.HEAP;   // storage of similarity matrix
+    private PatientSimilarity.Metric metric = PatientSimilarity.Metric.JACCARD;  // patient similarity metric
     private int numGroups;         // number of gene groups (and hence patient groups)
-    private Ontology<HpoTerm, HpoTermRelation> ontology;   // fully parsed HPO Ontology from ontolib
+    private int numThreads = 1;    // number of worker threads for the parallel stages
     private PatientGroup[] patientGroups;   // array of patient groups
     private String patientsPath;   // path for input file containing one line per patient
     private String resultsPath;    // path for output file
+    private TermIndex termIndex;   // dense integer index of the ontology terms and their ancestors
+    private Patient[] cohort;      // all patients, ordered by group
+    private int[] groupOf;         // group index for each patient of the cohort
+    private int[] groupStart;      // patients of group g are cohort[groupStart[g] .. groupStart[g + 1] - 1]
+    private int[][] closures;      // ancestor closure (dense term indices) for each patient of the cohort
+    // termCounts is a flat term x group matrix: number of patients in group g covered by dense term t
+    // is at position t * numGroups + g
+    private int[] termCounts;
+    // termPatients[t] holds the cohort indices of the patients covered by dense term t (null if none)
+    private PatientBitmap[] termPatients;
     // termChiSq is a list of objects that pair an HPO term to the Chi-squared statistic for that term
     private List<HPOChiSquared> termChiSq;
+    private int numTested;         // number of terms tested by calculateChiSq, before correction
+    private boolean exact;         // true to test terms too sparse for Chi-squared with an exact test
+    private ExactTest exactTest;   // exact test for sparse terms (null if not requested)
+    private boolean archiveDetails; // true to bundle the term detail files in one archive
+    private boolean incremental;   // true to reuse, and then save, the state of the previous run
+    private byte[] ontologyChecksum;   // SHA-256 of hp.obo (incremental runs only)
+    private IncrementalState state;    // saved state matching the cohort (null if not incremental or none)
+    // savedIndex[p] is the index in the saved state of patient p of the cohort, -1 if added since
+    private int[] savedIndex;
+    private int numCounted;        // number of patients counted by countPatients (only the added ones if incremental)
+    private String batchPath;      // path of the manifest of genes files for a batch run (may be null)
+    // patients parsed once for all configurations of a batch run, and their ancestor closures (null otherwise)
+    private List<Patient> sharedPatients;
+    private Map<Patient, int[]> sharedClosures;
+    private int numKnown;          // number of patients whose similarities were taken from the saved state
+    private int neighbours;        // number of nearest neighbours written instead of the matrix (0 for the matrix)
+    private String queryPath;      // path for file of query patients whose neighbours are wanted (may be null)
+    private double threshold;      // similarity of the pairs written as a sparse graph instead of the matrix (or 0)
+    private boolean cluster;       // true to cluster the patients in process after writing the matrix
+
+    // corrected p-value at or below which a term is reported
+    private static final double SIGNIFICANCE = 0.05;
+    // seed for the permutations of the maxT correction and the Monte Carlo exact tests, so that runs
+    // are reproducible
+    private static final long PERMUTATION_SEED = 20170814L;
 
     private static final Logger logger = LogManager.getLogger();
 
     /**
      * PhenoCompare constructor.
      * @param args             command line args typed by user
-     * @throws IOException     if thrown by getOntolibOntology
+     * @throws IOException     if thrown by OntologySnapshot.load
      * @throws ParseException  if parseCommandLine indicates that execution should halt
      */
     public PhenoCompare(String[] args) throws IOException, ParseException {
         // Initialize hpoPath, genesPath, patientsPath, and resultsPath from the command line arguments
         if (parseCommandLine(args)) {
-            // Initialize ontology fields
-            ontology = getOntolibOntology(hpoPath);
-            hpoPatientSubgroups = new TreeMap<>();
+            // Initialize ontology fields, from the snapshot of hp.obo if there is a current one
+            termIndex = OntologySnapshot.load(hpoPath);
+            if (incremental) {
+                ontologyChecksum = OntologySnapshot.checksum(new File(hpoPath));
+            }
             termChiSq = new ArrayList<>();
         } else {
             throw new ParseException("");
         }
     }
 
+    /**
+     * PhenoCompare constructor for an ontology that is already loaded (e.g. by PhenoServer, which keeps
+     * one term index for all its analyses). The -o option is still required but its hp.obo is not read,
+     * except for the checksum of an incremental run. Errors in the arguments are reported by the exception
+     * rather than printed.
+     * @param args             command line args for the analysis
+     * @param termIndex        index of the ontology terms and their ancestors
+     * @throws IOException     if hp.obo cannot be read for an incremental run
+     * @throws ParseException  if the arguments are incorrect
+     */
+    PhenoCompare(String[] args, TermIndex termIndex) throws IOException, ParseException {
+        parseRequiredOptions(new DefaultParser(), requiredOptions(), args);
+        this.termIndex = termIndex;
+        if (incremental) {
+            ontologyChecksum = OntologySnapshot.checksum(new File(hpoPath));
+        }
+        termChiSq = new ArrayList<>();
+    }
+
+    /**
+     * Creates the analysis of one configuration of a batch run: the settings of the batch run, with another
+     * genes file and results directory, and the patients (and their ancestor closures) that the batch run
+     * parsed once for all configurations. Each configuration runs its stages on one thread, since the
+     * configurations themselves run in parallel.
+     * @param batch             batch run whose settings are copied
+     * @param genesPath         genes file of the configuration
+     * @param resultsPath       results directory of the configuration
+     * @param patients          all patients of the patients file, in file order
+     * @param closures          ancestor closure (including the root) of each patient, by identity
+     */
+    PhenoCompare(PhenoCompare batch, String genesPath, String resultsPath, List<Patient> patients,
+                 Map<Patient, int[]> closures) {
+        annotationsPath = batch.annotationsPath;
+        aliasesPath = batch.aliasesPath;
+        correction = batch.correction;
+        dissimFormat = batch.dissimFormat;
+        hpoPath = batch.hpoPath;
+        maxPermutations = batch.maxPermutations;
+        matrixStore = batch.matrixStore;
+        metric = batch.metric;
+        patientsPath = batch.patientsPath;
+        exact = batch.exact;
+        archiveDetails = batch.archiveDetails;
+        incremental = batch.incremental;
+        neighbours = batch.neighbours;
+        queryPath = batch.queryPath;
+        threshold = batch.threshold;
+        cluster = batch.cluster;
+        ontologyChecksum = batch.ontologyChecksum;
+        termIndex = batch.termIndex;
+        this.genesPath = genesPath;
+        this.resultsPath = fixFinalSeparator(resultsPath);
+        sharedPatients = patients;
+        sharedClosures = closures;
+        termChiSq = new ArrayList<>();
+    }
+
+    /**
+     * Runs the analysis stages, from reading the genes file to sorting the significant terms, recording
+     * each stage in the run report.
+     * @param report                 run report
+     * @throws IOException           if problem reading the genes or patients file
+     * @throws EmptyGroupException   if there are no gene groups, or some patient group is empty
+     */
+    void analyze(RunReport report) throws IOException, EmptyGroupException {
+        // Read genes file to form groups of genes
+        try (RunReport.Stage stage = report.start("geneGroups")) {
+            createGeneGroups();
+            stage.count("groups", numGroups);
+        }
+
+        // Read file of patient records and create patient groups corresponding to gene groups.
+        try (RunReport.Stage stage = report.start("patientGroups")) {
+            createPatientGroups();
+            int numPatients = 0;
+            for (PatientGroup pg : patientGroups) {
+                numPatients += pg.size();
+            }
+            stage.count("patients", numPatients);
+        }
+
+        // For each node in the HPO ontology that covers one or more patients, count how many patients
+        // in each group fall under that node. Any node of the hierarchy that is not referenced has counts of
+        // 0 for each group.
+        try (RunReport.Stage stage = report.start("countPatients")) {
+            countPatients();
+            int touched = 0;
+            for (PatientBitmap bitmap : termPatients) {
+                if (bitmap != null) {
+                    touched++;
+                }
+            }
+            stage.count("patients", cohort.length).count("patientsCounted", numCounted)
+                    .count("termsTouched", touched);
+        }
+
+        // For each HPO term whose expected frequency meets the minimum threshold, calculate the
+        // Chi-squared statistic.
+        try (RunReport.Stage stage = report.start("chiSquared")) {
+            calculateChiSq();
+            stage.count("tablesTested", numTested).count("termsSignificant", termChiSq.size());
+        }
+        // sort the Chi-squared values so that the most significant results (higher Chi-squared)
+        // are earlier in the list.
+        try (RunReport.Stage stage = report.start("sort")) {
+            termChiSq.sort(Comparator.reverseOrder());
+            stage.count("terms", termChiSq.size());
+        }
+    }
+
+    /**
+     * Writes the Chi-squared file and the term detail files, recording the stage in the run report.
+     * @param omgr             output manager of this analysis
+     * @param report           run report
+     * @throws IOException     if problem writing the files
+     */
+    void writeChiSquared(OutputMgr omgr, RunReport report) throws IOException {
+        try (RunReport.Stage stage = report.start("writeChiSquared")) {
+            omgr.writeChiSquared();
+            stage.count("terms", termChiSq.size());
+        }
+    }
+
+    /**
+     * Computes and writes the dissimilarity matrix, and clusters the patients if requested, recording the
+     * stages in the run report.
+     * @param omgr             output manager of this analysis
+     * @param report           run report
+     * @throws IOException     if problem writing the matrix
+     */
+    void writeDissim(OutputMgr omgr, RunReport report) throws IOException {
+        Dissimilarities dissim;
+        try (RunReport.Stage stage = report.start("writeDissim")) {
+            dissim = omgr.writeDissim();
+            long n = cohort.length;
+            long k = numKnown;
+            stage.count("patients", n).count("pairsScored", n * (n - 1) / 2 - k * (k - 1) / 2);
+        }
+        if (dissim != null) {
+            try (RunReport.Stage stage = report.start("cluster")) {
+                omgr.writeClusters(dissim);
+                stage.count("patients", cohort.length);
+            }
+        }
+    }
+
+    /**
+     * Finds and writes the k nearest neighbours of each patient (and of each query patient), recording the
+     * stage in the run report.
+     * @param omgr             output manager of this analysis
+     * @param report           run report
+     * @throws IOException     if problem reading the query patients or writing the neighbours
+     */
+    void writeNeighbours(OutputMgr omgr, RunReport report) throws IOException {
+        try (RunReport.Stage stage = report.start("writeNeighbours")) {
+            NearestNeighbors knn = omgr.writeNeighbours();
+            stage.count("patients", cohort.length).count("neighbours", neighbours)
+                    .count("pairsScored", knn.getPairsScored()).count("pairsSearched", knn.getPairsSearched());
+        }
+    }
+
+    /**
+     * Finds and writes the sparse similarity graph of the pairs of patients reaching the threshold, recording
+     * the stage in the run report.
+     * @param omgr             output manager of this analysis
+     * @param report           run report
+     * @throws IOException     if problem writing the graph
+     */
+    void writeGraph(OutputMgr omgr, RunReport report) throws IOException {
+        try (RunReport.Stage stage = report.start("writeGraph")) {
+            NearestNeighbors graph = omgr.writeGraph();
+            stage.count("patients", cohort.length).count("edges", graph.getPairsFound())
+                    .count("pairsScored", graph.getPairsScored()).count("pairsSearched", graph.getPairsSearched());
+        }
+    }
+
+    /**
+     * Writes the patient similarities selected on the command line: the k nearest neighbours of each
+     * patient if -k was given, the sparse graph of the pairs reaching the threshold if -d was given, and
+     * otherwise the dissimilarity matrix.
+     * @param omgr             output manager of this analysis
+     * @param report           run report
+     * @throws IOException     if problem writing the similarities
+     */
+    void writeSimilarities(OutputMgr omgr, RunReport report) throws IOException {
+        if (neighbours > 0) {
+            writeNeighbours(omgr, report);
+        } else if (threshold > 0.0) {
+            writeGraph(omgr, report);
+        } else {
+            writeDissim(omgr, report);
+        }
+    }
+
     /**
      * Creates a HPOChiSquared object for each HPO term whose expected counts meet the
-     * minimum threshold. Adds the HPOChiSquared object to the list termChiSq.
-     * When all Chi-squared comparisons are complete, computes Bonferroni correction
-     * for the p-values and retains only those terms for which the corrected p-value
-     * is <= .05.
+     * minimum threshold. Adds the HPOChiSquared object to the list termChiSq. Statistics and
+     * p-values of all terms are computed in one batch by ChiSquaredKernel, straight from the
+     * term x group count matrix; only sparse terms, when exact tests were requested, go through
+     * createChiSq. When all Chi-squared comparisons are complete, corrects the p-values for multiple
+     * comparisons (Bonferroni by default, or Westfall-Young maxT permutations) and retains
+     * only those terms for which the corrected p-value is <= .05.
      */
-    private void calculateChiSq() {
+    void calculateChiSq() {
         HPOChiSquared hcs;
         int numComparisons = 0;
-        int[] patientCounts = new int[numGroups];
+        List<Integer> tested = new ArrayList<>();    // dense index of the term of each element of termChiSq
+        exactTest = exact ? new ExactTest(cohort.length, PERMUTATION_SEED) : null;
+        int[] groupSize = new int[numGroups];
+        for (int g = 0; g < numGroups; g++) {
+            groupSize[g] = patientGroups[g].size();
+        }
+        double[] statistic = new double[termIndex.size()];
+        double[] pValue = new double[termIndex.size()];
+        new ChiSquaredKernel(groupSize).compute(termCounts, statistic, pValue, numThreads);
 
-        for (TermId tid : hpoPatientSubgroups.keySet()) {
-            for (int i = 0; i < numGroups; i++) {
-                // construct array of subgroup sizes for the HPO term tid
-                patientCounts[i] = hpoPatientSubgroups.get(tid)[i].size();
+        for (int t = 0; t < termIndex.size(); t++) {
+            if (termPatients[t] == null) {
+                // term does not cover any patient
+                continue;
+            }
+            if (!Double.isNaN(statistic[t])) {
+                hcs = new HPOChiSquared(termIndex.getTermId(t), statistic[t], pValue[t]);
+            } else {
+                // some expected count below threshold: exact test, if requested
+                hcs = exactTest == null ? null : createChiSq(t);
             }
-            hcs = createChiSq(tid, patientCounts);
             if (hcs != null) {
                 termChiSq.add(hcs);
+                tested.add(t);
                 numComparisons++;
             }
         }
 
-        // Iterate through the termChiSq list. For each element, calculate the corrected P value
-        // according to number of comparisons performed. Toss out any HPOChiSquared object whose
+        numTested = numComparisons;
+        if (correction == HPOChiSquared.Correction.MAXT && numComparisons > 0) {
+            int[][] members = new int[numComparisons][];
+            for (int i = 0; i < numComparisons; i++) {
+                members[i] = termPatients[tested.get(i)].toArray();
+            }
+            MaxTPermutation maxT = new MaxTPermutation(members, groupOf, numGroups, PERMUTATION_SEED);
+            double[] adjusted = maxT.adjustedPvalues(maxPermutations, SIGNIFICANCE, numThreads);
+            logger.info(String.format("maxT correction used %d permutations", maxT.getPermutations()));
+            for (int i = 0; i < numComparisons; i++) {
+                termChiSq.get(i).setCorrectedP(adjusted[i]);
+            }
+        } else {
+            for (HPOChiSquared chi : termChiSq) {
+                chi.correctPvalue(numComparisons);
+            }
+        }
+
+        // Iterate through the termChiSq list. Toss out any HPOChiSquared object whose
         // corrected P value exceeds the threshold of 0.05.
         Iterator<HPOChiSquared> iter = termChiSq.iterator();
         while (iter.hasNext()) {
             HPOChiSquared chi = iter.next();
-            if (chi.correctPvalue(numComparisons) > 0.05) {
+            if (chi.getCorrectedP() > SIGNIFICANCE) {
                 iter.remove();
             }
         }
@@ -105,21 +379,22 @@ public class PhenoCompare {
 
     /**
      * Creates a HPOChiSquared object for the HPO term, based on counts of patients in each
-     * group who have/do not have that phenotype.
-     * @param hpoTerm         HPO termID
-     * @param countsForTermID array of int containing counts of patients in each group
-     *                        who have phenotype encoded by HPO termID
-     * @return null           if one of expected counts is below threshold of 5
+     * group who have/do not have that phenotype. Counts are read directly from the term x group
+     * count matrix. If one of the expected counts is below the threshold of 5 and exact tests were
+     * requested, the p-value is taken from an exact test of the table instead.
+     * @param t               dense index of HPO term
+     * @return null           if one of expected counts is below threshold of 5 (and no exact test applies)
      *         HPOChiSquared  otherwise, object containg HPO termID and Chi-squared statistic
      */
-    private HPOChiSquared createChiSq(TermId hpoTerm, int[] countsForTermID) {
+    private HPOChiSquared createChiSq(int t) {
         double expected;
         int[] totalHaveOrDont = new int[2];          // column totals of matrix
         int totalPatients;                           // grand total of all patients
+        int offset = t * numGroups;
         long[][] csq = new long[numGroups][2];
         for (int g = 0; g < numGroups; g++) {
-            csq[g][0] = countsForTermID[g];                              // have phenotype
-            csq[g][1] = patientGroups[g].size() - countsForTermID[g];    // don't have phenotype
+            csq[g][0] = termCounts[offset + g];                              // have phenotype
+            csq[g][1] = patientGroups[g].size() - termCounts[offset + g];    // don't have phenotype
             totalHaveOrDont[0] += csq[g][0];
             totalHaveOrDont[1] += csq[g][1];
         }
@@ -131,25 +406,211 @@ public class PhenoCompare {
             for (int c = 0; c < 2; c++) {
                 expected = (patientGroups[g].size() * totalHaveOrDont[c]) / (double) totalPatients;
                 if (expected < 5.0) {
-                    return null;
+                    return createExact(t, csq, totalHaveOrDont);
                 }
             }
         }
 
-        return new HPOChiSquared(hpoTerm, csq);
+        return new HPOChiSquared(termIndex.getTermId(t), csq);
+    }
+
+    /**
+     * Creates a HPOChiSquared object with the p-value of an exact test, for a table too sparse for the
+     * Chi-squared test. The table must have no empty group and no empty column, since otherwise its
+     * chi-squared statistic (used to rank the terms) is undefined.
+     * @param t                  dense index of HPO term
+     * @param csq                counts of patients in each group who have/do not have that phenotype
+     * @param totalHaveOrDont    column totals of csq
+     * @return null              if exact tests were not requested or the table has an empty row or column
+     *         HPOChiSquared     otherwise
+     */
+    private HPOChiSquared createExact(int t, long[][] csq, int[] totalHaveOrDont) {
+        if (exactTest == null || totalHaveOrDont[0] == 0 || totalHaveOrDont[1] == 0) {
+            return null;
+        }
+        for (int g = 0; g < numGroups; g++) {
+            if (patientGroups[g].size() == 0) {
+                return null;
+            }
+        }
+        return new HPOChiSquared(termIndex.getTermId(t), csq, exactTest.pValue(csq));
     }
 
     /**
      * For each group of patients, counts how many patients exhibit phenotype associated with
      * each node of ontology. HPO terms that do not appear in any patient file are implicitly given
-     * a count of 0 for all patient groups.
+     * a count of 0 for all patient groups. With more than one thread, the cohort is split into shards
+     * counted by fork-join workers, each with its own count matrix, and the matrices are summed;
+     * the result is identical to counting on one thread. The patients covered by each term are then
+     * recorded in a compressed bitmap of cohort indices, using the ancestor closures computed by the workers.
+     * In an incremental run whose saved state matches the cohort, only the patients added since are counted,
+     * and their counts and bitmaps are merged with the saved ones.
      */
-    private void countPatients() {
+    void countPatients() {
+        int size = 0;
+        groupStart = new int[numGroups + 1];
+        for (int g = 0; g < numGroups; g++) {
+            groupStart[g] = size;
+            size += patientGroups[g].size();
+        }
+        groupStart[numGroups] = size;
+        cohort = new Patient[size];
+        groupOf = new int[size];
+        int p = 0;
         for (int g = 0; g < numGroups; g++) {
-            for (Patient p : patientGroups[g].getPatients()) {
-                recordPatientPhenotypes(p, g);
+            for (Patient pat : patientGroups[g].getPatients()) {
+                cohort[p] = pat;
+                groupOf[p++] = g;
+            }
+        }
+        closures = new int[size][];
+        if (sharedClosures != null) {
+            for (p = 0; p < size; p++) {
+                closures[p] = sharedClosures.get(cohort[p]);
+            }
+        }
+
+        state = null;
+        savedIndex = null;
+        if (incremental) {
+            IncrementalState saved = IncrementalState.read(new File(resultsPath), ontologyChecksum,
+                    termIndex.size(), numGroups);
+            savedIndex = saved == null ? null : saved.match(cohort, groupOf);
+            if (savedIndex != null) {
+                state = saved;
+                countAddedPatients();
+                return;
+            }
+        }
+        numCounted = size;
+        termCounts = count(cohort, groupOf, closures);
+        termPatients = buildTermPatients(null, null);
+    }
+
+    /**
+     * Counts the patients added since the saved state, and adds their counts to the saved counts.
+     */
+    private void countAddedPatients() {
+        numCounted = 0;
+        for (int index : savedIndex) {
+            if (index < 0) {
+                numCounted++;
+            }
+        }
+        Patient[] added = new Patient[numCounted];
+        int[] addedGroup = new int[numCounted];
+        int[] position = new int[numCounted];
+        int[] cohortIndex = new int[cohort.length - numCounted];   // cohort index of each saved patient
+        int a = 0;
+        for (int p = 0; p < cohort.length; p++) {
+            if (savedIndex[p] < 0) {
+                added[a] = cohort[p];
+                addedGroup[a] = groupOf[p];
+                position[a++] = p;
+            } else {
+                cohortIndex[savedIndex[p]] = p;
+            }
+        }
+        int[][] addedClosures = new int[numCounted][];
+        for (a = 0; a < numCounted; a++) {
+            addedClosures[a] = closures[position[a]];
+        }
+        int[] delta = count(added, addedGroup, addedClosures);
+        termCounts = state.getTermCounts().clone();
+        for (int i = 0; i < termCounts.length; i++) {
+            termCounts[i] += delta[i];
+        }
+        Arrays.fill(closures, null);
+        for (a = 0; a < numCounted; a++) {
+            closures[position[a]] = addedClosures[a];
+        }
+        termPatients = buildTermPatients(state.getMembers(), cohortIndex);
+    }
+
+    /**
+     * Counts the patients of an array, splitting it among fork-join workers when there is more than one thread.
+     * @param pats        patients to count
+     * @param groups      group index of each patient
+     * @param closureOf   receives the ancestor closure of each patient
+     * @return int[]      term x group count matrix for the patients
+     */
+    private int[] count(Patient[] pats, int[] groups, int[][] closureOf) {
+        int size = pats.length;
+        if (numThreads > 1) {
+            // several shards per worker so that work stealing can even out differences among patients
+            int threshold = Math.max(64, size / (numThreads * 4));
+            ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+            try {
+                return pool.invoke(new TermCounter(pats, groups, numGroups, termIndex, closureOf,
+                        0, size, threshold));
+            } finally {
+                pool.shutdown();
             }
         }
+        return new TermCounter(pats, groups, numGroups, termIndex, closureOf, 0, size, size).compute();
+    }
+
+    /**
+     * Inverts the patients' ancestor closures into one bitmap of patient indices per term. The size of each
+     * bitmap is known from the count matrix, so patient indices are collected into exactly sized arrays.
+     * Patients of a saved state, whose closures were not computed, are taken from the saved bitmaps.
+     * @param savedMembers        saved indices of the patients covered by each term (null if no saved state)
+     * @param cohortIndex         cohort index of each saved patient (null if no saved state)
+     * @return PatientBitmap[]    patients covered by each dense term index (null if none)
+     */
+    private PatientBitmap[] buildTermPatients(int[][] savedMembers, int[] cohortIndex) {
+        int numTerms = termIndex.size();
+        int[][] members = new int[numTerms][];
+        int[] filled = new int[numTerms];
+        for (int t = 0; t < numTerms; t++) {
+            int total = 0;
+            for (int g = 0; g < numGroups; g++) {
+                total += termCounts[t * numGroups + g];
+            }
+            if (total > 0) {
+                members[t] = new int[total];
+            }
+        }
+        if (savedMembers != null) {
+            for (int t = 0; t < numTerms; t++) {
+                if (savedMembers[t] != null) {
+                    for (int s : savedMembers[t]) {
+                        members[t][filled[t]++] = cohortIndex[s];
+                    }
+                }
+            }
+        }
+        for (int p = 0; p < closures.length; p++) {
+            if (closures[p] != null) {
+                for (int t : closures[p]) {
+                    members[t][filled[t]++] = p;
+                }
+            }
+        }
+        PatientBitmap[] bitmaps = new PatientBitmap[numTerms];
+        for (int t = 0; t < numTerms; t++) {
+            if (members[t] != null) {
+                if (savedMembers != null) {
+                    // added patients may come before saved ones in the cohort
+                    Arrays.sort(members[t], 0, filled[t]);
+                }
+                bitmaps[t] = new PatientBitmap(members[t], filled[t]);
+                members[t] = null;
+            }
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Reads the genes file to form groups of genes. The number of patient groups is the number of gene groups.
+     * If an HGNC gene file was given, patients whose gene is an alias or previous symbol of a listed gene
+     * are grouped with that gene.
+     * @throws IOException           if problem opening or reading genes file or HGNC gene file
+     * @throws EmptyGroupException   if the genes file contains no gene groups
+     */
+    void createGeneGroups() throws IOException, EmptyGroupException {
+        geneGroups = new GeneGroups(genesPath, aliasesPath);
+        numGroups = geneGroups.howManyGroups();
     }
 
     /**
@@ -157,12 +618,9 @@ public class PhenoCompare {
      * @throws IOException           if problem opening or reading patients file
      * @throws EmptyGroupException   if one or more patient groups is/are empty
      */
-    private void createPatientGroups() throws IOException, EmptyGroupException {
-        String geneName, line;
-        int group;
-        Patient pat;
+    void createPatientGroups() throws IOException, EmptyGroupException {
         File patientsFile = new File(patientsPath);
-        if (!patientsFile.exists()) {
+        if (sharedPatients == null && !patientsFile.exists()) {
             throw new IOException("[PhenoCompare.createPatientGroups] Cannot find patients file " +
                     patientsPath);
         }
@@ -173,31 +631,15 @@ public class PhenoCompare {
             patientGroups[g] = new PatientGroup();
         }
 
-        // Read patients file line by line; each line is one patient record. Create a patient
-        // object and add it to the correct patient group according to which gene is mutated.
-        // If cannot parse the patient record or gene name is not recognizable, skip
-        // over that line and log a warning message.
-        Scanner scan = new Scanner(patientsFile);
-        while (scan.hasNextLine()) {
-            line = scan.nextLine();
-            if (!line.startsWith("#")) {     // # marks a header line or comment in the input file
-                try {
-                    pat = new Patient(line);
-                    geneName = pat.getGene();
-                    group = geneGroups.whichGroup(geneName);
-                    if (group > -1) {
-                        patientGroups[group].addPatient(pat);
-                    }
-                    else {  // group = -1, this patient has an unknown gene
-                        throw new DataFormatException(String.format(
-                                "[PhenoCompare.createPatientGroups] Patient %s has an unrecognized gene: %s",
-                                pat.getPid(), geneName));
-                    }
-                }
-                catch (DataFormatException e) {
-                    logger.warn(e.getMessage());
-                }
-            }
+        // Read patients file; each line is one patient record. Create a patient object and add it to
+        // the correct patient group according to which gene is mutated. If cannot parse the patient
+        // record or gene name is not recognizable, skip over that line and log a warning message.
+        // Records are parsed in parallel, but patients and warnings are handled here in file order.
+        // In a batch run, the patients were read once for all configurations.
+        if (sharedPatients != null) {
+            sharedPatients.forEach(this::addToGroup);
+        } else {
+            PatientFileReader.read(patientsFile, numThreads, this::addToGroup, logger::warn);
         }
 
         // Check whether one or more of the patient groups is/are empty.
@@ -215,6 +657,22 @@ public class PhenoCompare {
     }
 
 
+    /**
+     * Adds a patient to the group of its gene, or logs a warning if the gene is in none of the groups.
+     * @param pat    patient
+     */
+    private void addToGroup(Patient pat) {
+        int group = geneGroups.whichGroup(pat.getGene());
+        if (group > -1) {
+            patientGroups[group].addPatient(pat);
+        }
+        else {  // group = -1, this patient has an unknown gene
+            logger.warn(String.format(
+                    "[PhenoCompare.createPatientGroups] Patient %s has an unrecognized gene: %s",
+                    pat.getPid(), pat.getGene()));
+        }
+    }
+
     /**
      * Checks path string and adds a final separator character if not already there.
      * @param path       String containing path as user typed it on command line
@@ -224,46 +682,131 @@ public class PhenoCompare {
         return path.endsWith(File.separator) ? path : path + File.separator;
     }
 
-    SortedMap<TermId, PatientGroup[]> getHpoPatientSubgroups() {
-        return hpoPatientSubgroups;
+    Patient[] getCohort() {
+        return cohort;
     }
 
-    int getNumGroups() {
-        return numGroups;
+    int[] getGroupStart() {
+        return groupStart;
     }
 
-    private static Ontology<HpoTerm, HpoTermRelation> getOntolibOntology(String HPOpath) throws IOException {
-        HpoOntology hpo;
-        Ontology<HpoTerm, HpoTermRelation> abnormalPhenoSubOntology;
-        try {
-            HpoOboParser hpoOboParser = new HpoOboParser(new File(HPOpath));
-            hpo = hpoOboParser.parse();
-            abnormalPhenoSubOntology = hpo.getPhenotypicAbnormalitySubOntology();
-            return abnormalPhenoSubOntology;
-        } catch (IOException e) {
-            throw new IOException("[PhenoCompare.getOntolibOntology] Unable to parse HPO OBO file at " +
-                    HPOpath, e);
-        }
+    DissimWriter.Format getDissimFormat() {
+        return dissimFormat;
+    }
+
+    String getAnnotationsPath() {
+        return annotationsPath;
+    }
+
+    SimilarityMatrix.Store getMatrixStore() {
+        return matrixStore;
+    }
+
+    PatientSimilarity.Metric getMetric() {
+        return metric;
     }
 
-    Ontology<HpoTerm, HpoTermRelation> getOntology() {
-        return ontology;
+    int getNumGroups() {
+        return numGroups;
+    }
+
+    int getNumThreads() {
+        return numThreads;
     }
 
     PatientGroup[] getPatientGroups() {
         return patientGroups;
     }
 
+    String getPatientsPath() {
+        return patientsPath;
+    }
+
+    int getNeighbours() {
+        return neighbours;
+    }
+
+    String getQueryPath() {
+        return queryPath;
+    }
+
+    double getThreshold() {
+        return threshold;
+    }
+
+    boolean isCluster() {
+        return cluster;
+    }
+
     public String getResultsPath() {
         return resultsPath;
     }
 
-    List<HPOChiSquared> getTermChiSq() {
-        return termChiSq;
+    TermIndex getTermIndex() {
+        return termIndex;
+    }
+
+    int[] getTermCounts() {
+        return termCounts;
+    }
+
+    PatientBitmap[] getTermPatients() {
+        return termPatients;
+    }
+
+    boolean isExact() {
+        return exact;
+    }
+
+    boolean isArchiveDetails() {
+        return archiveDetails;
+    }
+
+    boolean isIncremental() {
+        return incremental;
+    }
+
+    int getNumCounted() {
+        return numCounted;
+    }
+
+    /**
+     * Copies the similarities among the patients of the saved state into the similarity matrix of the cohort,
+     * if they were computed with the same settings.
+     * @param key            similarity key of this run (null if the similarities may not be reused)
+     * @param matrix         similarity matrix of the cohort
+     * @return boolean[]     true for the patients whose similarities to each other were copied, or null if
+     *                       none were
+     * @throws IOException   if problem reading the saved state
+     */
+    boolean[] copySavedSimilarities(byte[] key, SimilarityMatrix matrix) throws IOException {
+        numKnown = 0;
+        if (state == null || !state.copySimilarities(key, savedIndex, matrix)) {
+            return null;
+        }
+        boolean[] known = new boolean[cohort.length];
+        for (int p = 0; p < cohort.length; p++) {
+            known[p] = savedIndex[p] >= 0;
+            if (known[p]) {
+                numKnown++;
+            }
+        }
+        return known;
     }
 
-    Map<TermId, HpoTerm> getTermMap() {
-        return ontology.getTermMap();
+    /**
+     * Saves the state of this run in the results directory, for the next incremental run.
+     * @param key            similarity key of this run (null if the similarities may not be reused)
+     * @param matrix         similarity matrix of the cohort
+     * @throws IOException   if problem writing the state
+     */
+    void saveState(byte[] key, SimilarityMatrix matrix) throws IOException {
+        IncrementalState.write(new File(resultsPath), ontologyChecksum, cohort, groupOf, numGroups, termCounts,
+                termPatients, key, matrix);
+    }
+
+    List<HPOChiSquared> getTermChiSq() {
+        return termChiSq;
     }
 
     /**
@@ -273,6 +816,17 @@ public class PhenoCompare {
      *     -o directory where hp.obo file can be found
      *     -p full path including filename for file of patient data
      *     -r directory for output files
+     * and the optional options:
+     *     -t number of worker threads for the parallel stages (default 1)
+     *     -m patient similarity metric: jaccard, resnik, or lin (default jaccard)
+     *     -a annotation file (e.g. phenotype.hpoa) from which resnik and lin take information content
+     *        (default: information content computed from the patients)
+     *     -f format of dissimilarity matrix (or of sparse graph): tsv, lower, or binary (default tsv)
+     *     -s storage of similarity matrix: heap, offheap, or mmap (default heap)
+     *     -k number of nearest neighbours of each patient to write instead of the dissimilarity matrix
+     *     -q file of query patients whose nearest neighbours in the cohort are also written (requires -k)
+     *     -d similarity threshold of the pairs of patients to write as a sparse graph instead of the matrix
+     *     -x cluster the patients in process (PAM and average linkage) after writing the dissimilarity matrix
      * Sets the instance variables of this PhenoCompare object accordingly.
      * @param args    the arguments user typed on command line
      * @return boolean true if execution should continue, false if execution should terminate
@@ -284,45 +838,9 @@ public class PhenoCompare {
                 .required(false)
                 .hasArg(false)
                 .build();
-        Option genesOpt = Option.builder("g")
-                .longOpt("genes")
-                .desc("file containing list of genes for each group")
-                .hasArg()
-                .optionalArg(false)
-                .argName("path")
-                .required()
-                .build();
-        Option hpoOpt = Option.builder("o")
-                .longOpt("hpo")
-                .desc("directory containing hp.obo")
-                .hasArg()
-                .optionalArg(false)
-                .argName("directory")
-                .required()
-                .build();
-        Option patientsOpt = Option.builder("p")
-                .longOpt("patients")
-                .desc("file containing patient records")
-                .hasArg()
-                .optionalArg(false)
-                .argName("path")
-                .required()
-                .build();
-        Option resultsOpt = Option.builder("r")
-                .longOpt("results")
-                .desc("directory for results")
-                .hasArg()
-                .optionalArg(false)
-                .argName("directory")
-                .required()
-                .build();
         Options helpOptions = new Options();
         helpOptions.addOption(helpOpt);
-        Options reqOptions = new Options();
-        reqOptions.addOption(genesOpt);
-        reqOptions.addOption(hpoOpt);
-        reqOptions.addOption(patientsOpt);
-        reqOptions.addOption(resultsOpt);
+        Options reqOptions = requiredOptions();
         Options allOptions = reqOptions.addOption(helpOpt);
 
         // create the command line parser and help formatter
@@ -359,6 +877,189 @@ public class PhenoCompare {
         }
     }
 
+    /**
+     * Creates the command line options other than help.
+     * @return Options    the options
+     */
+    private static Options requiredOptions() {
+        Option genesOpt = Option.builder("g")
+                .longOpt("genes")
+                .desc("file containing list of genes for each group")
+                .hasArg()
+                .optionalArg(false)
+                .argName("path")
+                .required(false)
+                .build();
+        Option batchOpt = Option.builder("b")
+                .longOpt("batch")
+                .desc("manifest listing one genes file per line; runs each against the same patients, " +
+                        "in a results subdirectory named after the genes file")
+                .hasArg()
+                .optionalArg(false)
+                .argName("path")
+                .required(false)
+                .build();
+        Option hpoOpt = Option.builder("o")
+                .longOpt("hpo")
+                .desc("directory containing hp.obo")
+                .hasArg()
+                .optionalArg(false)
+                .argName("directory")
+                .required()
+                .build();
+        Option patientsOpt = Option.builder("p")
+                .longOpt("patients")
+                .desc("file containing patient records")
+                .hasArg()
+                .optionalArg(false)
+                .argName("path")
+                .required()
+                .build();
+        Option resultsOpt = Option.builder("r")
+                .longOpt("results")
+                .desc("directory for results")
+                .hasArg()
+                .optionalArg(false)
+                .argName("directory")
+                .required()
+                .build();
+        Option threadsOpt = Option.builder("t")
+                .longOpt("threads")
+                .desc("number of worker threads (default 1)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("count")
+                .required(false)
+                .build();
+        Option metricOpt = Option.builder("m")
+                .longOpt("metric")
+                .desc("patient similarity metric: jaccard, resnik, or lin (default jaccard)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("name")
+                .required(false)
+                .build();
+        Option annotationsOpt = Option.builder("a")
+                .longOpt("annotations")
+                .desc("annotation file for information content (default: computed from patients)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("path")
+                .required(false)
+                .build();
+        Option aliasesOpt = Option.builder("l")
+                .longOpt("aliases")
+                .desc("HGNC gene file giving alias and previous symbols of genes")
+                .hasArg()
+                .optionalArg(false)
+                .argName("path")
+                .required(false)
+                .build();
+        Option correctionOpt = Option.builder("c")
+                .longOpt("correction")
+                .desc("multiple-testing correction: bonferroni or maxt (default bonferroni)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("name")
+                .required(false)
+                .build();
+        Option permutationsOpt = Option.builder("n")
+                .longOpt("permutations")
+                .desc("largest number of permutations for maxt correction (default 10000)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("count")
+                .required(false)
+                .build();
+        Option exactOpt = Option.builder("e")
+                .longOpt("exact")
+                .desc("test terms too sparse for Chi-squared with an exact test")
+                .required(false)
+                .build();
+        Option archiveOpt = Option.builder("z")
+                .longOpt("archive")
+                .desc("write the term detail files into one archive, details.zip")
+                .required(false)
+                .build();
+        Option incrementalOpt = Option.builder("i")
+                .longOpt("incremental")
+                .desc("reuse the counts and similarities saved in the results directory by the previous " +
+                        "incremental run, and save them for the next")
+                .required(false)
+                .build();
+        Option formatOpt = Option.builder("f")
+                .longOpt("format")
+                .desc("dissimilarity matrix format: tsv, lower, or binary (default tsv)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("name")
+                .required(false)
+                .build();
+        Option storeOpt = Option.builder("s")
+                .longOpt("store")
+                .desc("similarity matrix storage: heap, offheap, or mmap (default heap)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("name")
+                .required(false)
+                .build();
+        Option neighboursOpt = Option.builder("k")
+                .longOpt("neighbours")
+                .desc("write the given number of nearest neighbours of each patient to knn.tsv instead " +
+                        "of the dissimilarity matrix")
+                .hasArg()
+                .optionalArg(false)
+                .argName("count")
+                .required(false)
+                .build();
+        Option queryOpt = Option.builder("q")
+                .longOpt("query")
+                .desc("file of query patient records whose nearest neighbours in the cohort are written " +
+                        "to knnQuery.tsv (requires -k)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("path")
+                .required(false)
+                .build();
+        Option thresholdOpt = Option.builder("d")
+                .longOpt("threshold")
+                .desc("write the pairs of patients whose similarity is at least the given value (above 0, at " +
+                        "most 1) to graph.tsv instead of the dissimilarity matrix")
+                .hasArg()
+                .optionalArg(false)
+                .argName("similarity")
+                .required(false)
+                .build();
+        Option clusterOpt = Option.builder("x")
+                .longOpt("cluster")
+                .desc("cluster the patients (PAM into 2 to 5 clusters, average linkage cut into 8) and write " +
+                        "the clusters and their silhouette widths")
+                .required(false)
+                .build();
+        Options reqOptions = new Options();
+        reqOptions.addOption(genesOpt);
+        reqOptions.addOption(batchOpt);
+        reqOptions.addOption(hpoOpt);
+        reqOptions.addOption(patientsOpt);
+        reqOptions.addOption(resultsOpt);
+        reqOptions.addOption(threadsOpt);
+        reqOptions.addOption(metricOpt);
+        reqOptions.addOption(annotationsOpt);
+        reqOptions.addOption(aliasesOpt);
+        reqOptions.addOption(correctionOpt);
+        reqOptions.addOption(permutationsOpt);
+        reqOptions.addOption(exactOpt);
+        reqOptions.addOption(archiveOpt);
+        reqOptions.addOption(incrementalOpt);
+        reqOptions.addOption(formatOpt);
+        reqOptions.addOption(storeOpt);
+        reqOptions.addOption(neighboursOpt);
+        reqOptions.addOption(queryOpt);
+        reqOptions.addOption(thresholdOpt);
+        reqOptions.addOption(clusterOpt);
+        return reqOptions;
+    }
+
     /**
      * Parses the command line arguments typed by user to look for the required (not help) options
      * @param psr                 command line parser
@@ -369,59 +1070,122 @@ public class PhenoCompare {
     private void parseRequiredOptions(CommandLineParser psr, Options reqOptions, String[] args) throws ParseException {
         CommandLine cmdl = psr.parse(reqOptions, args);
         genesPath = cmdl.getOptionValue("g");
+        batchPath = cmdl.getOptionValue("b");
+        if ((genesPath == null) == (batchPath == null)) {
+            throw new ParseException("Exactly one of the options -g and -b is required");
+        }
         hpoPath = fixFinalSeparator(cmdl.getOptionValue("o")) + "hp.obo";
         patientsPath = cmdl.getOptionValue("p");
         resultsPath = fixFinalSeparator(cmdl.getOptionValue("r"));
+        numThreads = parsePositiveInt(cmdl, "t", 1);
+        if (cmdl.hasOption("m")) {
+            try {
+                metric = PatientSimilarity.Metric.valueOf(cmdl.getOptionValue("m").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Option -m requires jaccard, resnik, or lin but was " +
+                        cmdl.getOptionValue("m"));
+            }
+        }
+        annotationsPath = cmdl.getOptionValue("a");
+        aliasesPath = cmdl.getOptionValue("l");
+        if (cmdl.hasOption("c")) {
+            try {
+                correction = HPOChiSquared.Correction.valueOf(cmdl.getOptionValue("c").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Option -c requires bonferroni or maxt but was " +
+                        cmdl.getOptionValue("c"));
+            }
+        }
+        maxPermutations = parsePositiveInt(cmdl, "n", maxPermutations);
+        exact = cmdl.hasOption("e");
+        archiveDetails = cmdl.hasOption("z");
+        incremental = cmdl.hasOption("i");
+        if (cmdl.hasOption("f")) {
+            try {
+                dissimFormat = DissimWriter.Format.valueOf(cmdl.getOptionValue("f").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Option -f requires tsv, lower, or binary but was " +
+                        cmdl.getOptionValue("f"));
+            }
+        }
+        neighbours = parsePositiveInt(cmdl, "k", 0);
+        queryPath = cmdl.getOptionValue("q");
+        if (queryPath != null && neighbours == 0) {
+            throw new ParseException("Option -q requires option -k");
+        }
+        if (neighbours > 0 && incremental) {
+            throw new ParseException("Options -k and -i cannot be used together");
+        }
+        cluster = cmdl.hasOption("x");
+        if (neighbours > 0 && cluster) {
+            throw new ParseException("Options -k and -x cannot be used together");
+        }
+        threshold = parseThreshold(cmdl);
+        if (threshold > 0.0 && (neighbours > 0 || incremental || cluster)) {
+            throw new ParseException("Option -d cannot be used together with -k, -i, or -x");
+        }
+        if ((neighbours > 0 || threshold > 0.0) && dissimFormat == DissimWriter.Format.LOWER) {
+            throw new ParseException("Options -k and -d require -f tsv or binary");
+        }
+        if (cmdl.hasOption("s")) {
+            try {
+                matrixStore = SimilarityMatrix.Store.valueOf(cmdl.getOptionValue("s").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Option -s requires heap, offheap, or mmap but was " +
+                        cmdl.getOptionValue("s"));
+            }
+        }
     }
 
     /**
-     * For an individual patient, adds patient to appropriate patient subgroup for each phenotype
-     * exhibited by the patient. This includes all nodes encountered between phenotypes mentioned
-     * in the patient's file and the root node of the ontology.
-     * @param p       patient whose phenotypes we are recording
-     * @param group   integer index for patient's group (0 .. numGroups - 1)
+     * Reads the value of an optional numeric command line option.
+     * @param cmdl                parsed command line
+     * @param opt                 name of the option
+     * @param defaultValue        value to use if the option is absent
+     * @return int                value of the option
+     * @throws ParseException     if the value is not a positive integer
      */
-    private void recordPatientPhenotypes(Patient p, int group) {
-        Set<TermId> ancestors = new HashSet<>();
-        for (TermId tid : p.getHpoTerms()) {
-            // Merging sets of TermIDs eliminates duplicates if a given ontology node appears
-            // in the induced graph for more than one of patient's HPO terms.
-            ancestors.addAll(ontology.getAncestorTermIds(tid));
+    private int parsePositiveInt(CommandLine cmdl, String opt, int defaultValue) throws ParseException {
+        if (!cmdl.hasOption(opt)) {
+            return defaultValue;
         }
-        // Add patient to list for the appropriate group in all the ontology nodes that
-        // cover the patient's reported phenotypes.
-        for (TermId ancestor : ancestors) {
-            updatePatientSubgroups(ancestor, p, group);
+        try {
+            int value = Integer.parseInt(cmdl.getOptionValue(opt));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the ParseException below
         }
+        throw new ParseException("Option -" + opt + " requires a positive integer but was " +
+                cmdl.getOptionValue(opt));
     }
 
     /**
-     * Adds patient to the appropriate subgroup for specified HPO term tid.
-     *
-     * @param group  index for patient group (0 .. numGroups - 1)
-     * @param pat    patient for which we are recording phenotypes
-     * @param tid    HPO term ID
+     * Reads the similarity threshold of the sparse graph.
+     * @param cmdl                parsed command line
+     * @return double             value of the -d option, or 0 if it is absent
+     * @throws ParseException     if the value is not a number above 0 and at most 1
      */
-    private void updatePatientSubgroups(TermId tid, Patient pat, int group) {
-        if (hpoPatientSubgroups.containsKey(tid)) {
-            // Have already seen this termID before, just add new patient to existing group.
-            hpoPatientSubgroups.get(tid)[group].addPatient(pat);
+    private double parseThreshold(CommandLine cmdl) throws ParseException {
+        if (!cmdl.hasOption("d")) {
+            return 0.0;
         }
-        else {
-            // First time we have seen this termID. Initialize patient subgroups, add pat to correct
-            // subgroup, and add new termID to mapping.
-            PatientGroup[] subgroups = new PatientGroup[numGroups];
-            for (int i = 0; i < numGroups; i++) {
-                subgroups[i] = new PatientGroup();
+        try {
+            double value = Double.parseDouble(cmdl.getOptionValue("d"));
+            if (value > 0.0 && value <= 1.0) {
+                return value;
             }
-            subgroups[group].addPatient(pat);
-            hpoPatientSubgroups.put(tid, subgroups);
+        } catch (NumberFormatException e) {
+            // fall through to the ParseException below
         }
+        throw new ParseException("Option -d requires a number above 0 and at most 1 but was " +
+                cmdl.getOptionValue("d"));
     }
 
     /**
      * Main method for PhenoCompare class. The constructor parses command line arguments to find
-     * input file and directory information. Creates the Ontology object for HPO from .obo file. Reads
+     * input file and directory information. Loads the HPO term index (from .obo file or its snapshot). Reads
      * groups of genes from genes file, then groups of patients from patients file. For each phenotype
      * mentioned in the patient files, counts the number of patients in each group who exhibit that
      * phenotype, while also updating counts for all ancestors of the phenotype in the HPO DAG.
@@ -430,33 +1194,27 @@ public class PhenoCompare {
      * @param args     command line arguments typed by user
      */
     public static void main(String[] args) {
+        RunReport report = new RunReport();
         try {
-            PhenoCompare phenoC = new PhenoCompare(args);
-            OutputMgr omgr = new OutputMgr(phenoC);
-
-            // Read genes file to form groups of genes
-            phenoC.geneGroups = new GeneGroups(phenoC.genesPath);
-            phenoC.numGroups = phenoC.geneGroups.howManyGroups();
-
-            // Read file of patient records and create patient groups corresponding to gene groups.
-            phenoC.createPatientGroups();
-
-            // For each node in the HPO ontology that covers one or more patients, count how many patients
-            // in each group fall under that node. Any node of the hierarchy that is not referenced has counts of
-            // 0 for each group.
-            phenoC.countPatients();
-
-            // For each HPO term whose expected frequency meets the minimum threshold, calculate the
-            // Chi-squared statistic.
-            phenoC.calculateChiSq();
-            // sort the Chi-squared values so that the most significant results (higher Chi-squared)
-            // are earlier in the list.
-            phenoC.termChiSq.sort(Comparator.reverseOrder());
-
-            // Output counts and Chi-squared stats for each node of the ontology that meets the threshold for
-            // Chi-squared to be meaningful. Write dissimilarity matrix.
-            omgr.writeChiSquared();
-            omgr.writeDissim();
+            PhenoCompare phenoC;
+            try (RunReport.Stage stage = report.start("loadOntology")) {
+                phenoC = new PhenoCompare(args);
+                stage.count("terms", phenoC.termIndex.size());
+            }
+            if (phenoC.batchPath != null) {
+                // Run each genes file of the manifest against the same patients, in its own subdirectory.
+                new File(phenoC.resultsPath).mkdirs();
+                BatchRun.run(phenoC, phenoC.batchPath, report);
+            } else {
+                OutputMgr omgr = new OutputMgr(phenoC);
+                phenoC.analyze(report);
+
+                // Output counts and Chi-squared stats for each node of the ontology that meets the threshold for
+                // Chi-squared to be meaningful. Write dissimilarity matrix.
+                phenoC.writeChiSquared(omgr, report);
+                phenoC.writeSimilarities(omgr, report);
+            }
+            report.write(new File(phenoC.resultsPath), phenoC.numThreads);
         } catch (ParseException e) {
             // Command line parsing indicates execution should terminate. parseCommandLine method already has
             // printed an error message, no need to do anything more
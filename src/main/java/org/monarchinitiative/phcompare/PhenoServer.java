@@ -0,0 +1,384 @@
+package org.monarchinitiative.phcompare;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.monarchinitiative.phcompare.ontology.OntologySnapshot;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * PhenoServer runs phenoCompare analyses as a long-running local HTTP server, so that the ontology is loaded
+ * once and the JIT stays warm across analyses. The server listens on the loopback address only, and runs
+ * up to -t analyses at a time on a fixed pool of worker threads; further analyses wait for a free worker.
+ * Requests are read and answered on a separate small pool of dispatcher threads, so health checks and
+ * rejected requests are answered at once however busy the workers are.
+ *
+ * POST /analyze runs one analysis. The request body is the genes file, then a line holding only #patients,
+ * then the patients file. Query parameters are the long names of the phenoCompare options (e.g.
+ * /analyze?metric=lin&amp;correction=maxt&amp;exact&amp;threads=2); the genes, batch, hpo, patients, results,
+ * incremental, archive and query options are set by the server or unavailable, and may not be given. The
+ * response is a series of sections, each a line "==&gt; name length" followed by exactly length bytes:
+ * chiSquared.tsv (sent as soon as it is written, before the patient similarities are computed), the
+ * cluster files (with the cluster option), the dissimilarity file(s) of the selected format (or the
+ * graph or knn files, with the threshold or neighbours option), and runReport.json, which measures only
+ * the threads of that analysis (see RunReport).
+ * An error found after the response has begun ends it with a section named error holding the message.
+ * Errors in the request are answered with status 400.
+ *
+ * GET /health answers "ok" and the number of terms of the resident ontology.
+ */
+public class PhenoServer {
+    static final String PATIENTS_SEPARATOR = "#patients";
+    // options that the server sets for each analysis
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+            "g", "genes", "b", "batch", "o", "hpo", "p", "patients", "r", "results", "i", "incremental",
+            "z", "archive", "q", "query", "h", "help"));
+    private static final int DEFAULT_PORT = 8765;
+    // threads handling requests, handing analyses to the workers
+    private static final int NUM_DISPATCHERS = 2;
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private String hpoDir;          // directory containing hp.obo
+    private TermIndex termIndex;    // resident index of the ontology, shared by all analyses
+    private HttpServer server;
+    private ExecutorService dispatchers;
+    private ExecutorService workers;
+
+    /**
+     * @param hpoDir       directory containing hp.obo
+     * @param termIndex    index of the ontology terms and their ancestors
+     */
+    PhenoServer(String hpoDir, TermIndex termIndex) {
+        this.hpoDir = hpoDir;
+        this.termIndex = termIndex;
+    }
+
+    /**
+     * Starts listening on the loopback address.
+     * @param port           port number (0 for any free port)
+     * @param numWorkers     number of analyses run at a time
+     * @throws IOException   if the server cannot bind to the port
+     */
+    void start(int port, int numWorkers) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/analyze", this::analyze);
+        server.createContext("/health", this::health);
+        dispatchers = Executors.newFixedThreadPool(NUM_DISPATCHERS);
+        workers = Executors.newFixedThreadPool(numWorkers);
+        server.setExecutor(dispatchers);
+        server.start();
+    }
+
+    /**
+     * @return int    port on which the server listens
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server; analyses in progress are interrupted.
+     */
+    void stop() {
+        server.stop(0);
+        dispatchers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        sendText(exchange, 200, "ok " + termIndex.size() + " terms\n");
+    }
+
+    /**
+     * Checks the method and the options of an analysis request, and hands the analysis to a worker.
+     */
+    private void analyze(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendText(exchange, 405, "Use POST to run an analysis\n");
+            return;
+        }
+        List<String> args;
+        try {
+            args = requestArgs(exchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    runAnalysis(exchange, args);
+                } catch (IOException e) {
+                    logger.warn("[PhenoServer.analyze] Unable to answer request: " + e.getMessage());
+                } finally {
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sendText(exchange, 503, "Server is stopping\n");
+        }
+    }
+
+    /**
+     * Runs one analysis in a temporary directory holding the genes and patients files of the request and
+     * the result files, and streams the results back.
+     */
+    private void runAnalysis(HttpExchange exchange, List<String> args) throws IOException {
+        String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        int separator = findSeparator(body);
+        if (separator < 0) {
+            sendText(exchange, 400, "Request body needs a line " + PATIENTS_SEPARATOR +
+                    " between the genes and the patients\n");
+            return;
+        }
+
+        Path workDir = Files.createTempDirectory("phenoCompare");
+        RunReport report = RunReport.forAnalysis();
+        try {
+            File genesFile = new File(workDir.toFile(), "genes.txt");
+            File patientsFile = new File(workDir.toFile(), "patients.tsv");
+            File resultsDir = new File(workDir.toFile(), "results");
+            Files.write(genesFile.toPath(), body.substring(0, separator).getBytes(StandardCharsets.UTF_8));
+            int patientsStart = body.indexOf('\n', separator);
+            Files.write(patientsFile.toPath(), (patientsStart < 0 ? "" : body.substring(patientsStart + 1))
+                    .getBytes(StandardCharsets.UTF_8));
+            args.addAll(Arrays.asList("-o", hpoDir, "-g", genesFile.getPath(), "-p", patientsFile.getPath(),
+                    "-r", resultsDir.getPath()));
+
+            PhenoCompare phenoC;
+            OutputMgr omgr;
+            try {
+                phenoC = new PhenoCompare(args.toArray(new String[0]), termIndex);
+                omgr = new OutputMgr(phenoC);
+                phenoC.analyze(report);
+            } catch (ParseException | EmptyGroupException e) {
+                sendText(exchange, 400, e.getMessage() + "\n");
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.error("[PhenoServer.analyze] Analysis failed", e);
+                sendText(exchange, 500, e.getMessage() + "\n");
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                try {
+                    phenoC.writeChiSquared(omgr, report);
+                    sendFile(out, new File(resultsDir, "chiSquared.tsv"));
+                    out.flush();
+                    phenoC.writeSimilarities(omgr, report);
+                    File[] dissimFiles = resultsDir.listFiles((dir, name) ->
+                            name.startsWith("dissim") || name.startsWith("knn") || name.startsWith("cluster") ||
+                            name.startsWith("graph"));
+                    if (dissimFiles != null) {
+                        Arrays.sort(dissimFiles);
+                        for (File f : dissimFiles) {
+                            sendFile(out, f);
+                        }
+                    }
+                    sendFile(out, report.write(resultsDir, phenoC.getNumThreads()));
+                } catch (IOException | RuntimeException e) {
+                    logger.error("[PhenoServer.analyze] Analysis failed", e);
+                    sendSection(out, "error", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            report.stopListening();
+            deleteTree(workDir);
+            exchange.close();
+        }
+    }
+
+    /**
+     * Converts the query parameters of a request to phenoCompare options.
+     * @param rawQuery      query of the request URI (may be null)
+     * @return List         options and their values
+     * @throws IllegalArgumentException    if a parameter names an option set by the server
+     */
+    static List<String> requestArgs(String rawQuery) {
+        List<String> args = new ArrayList<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return args;
+        }
+        for (String param : rawQuery.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            int eq = param.indexOf('=');
+            String name = decode(eq < 0 ? param : param.substring(0, eq));
+            if (RESERVED.contains(name)) {
+                throw new IllegalArgumentException("Option " + name + " is set by the server");
+            }
+            args.add((name.length() == 1 ? "-" : "--") + name);
+            if (eq >= 0) {
+                args.add(decode(param.substring(eq + 1)));
+            }
+        }
+        return args;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            // every Java platform is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return int    start of the line holding only PATIENTS_SEPARATOR, or -1 if there is none
+     */
+    static int findSeparator(String body) {
+        int start = 0;
+        while (start <= body.length()) {
+            int end = body.indexOf('\n', start);
+            String line = body.substring(start, end < 0 ? body.length() : end);
+            if (line.trim().equals(PATIENTS_SEPARATOR)) {
+                return start;
+            }
+            if (end < 0) {
+                return -1;
+            }
+            start = end + 1;
+        }
+        return -1;
+    }
+
+    private static void sendFile(OutputStream out, File file) throws IOException {
+        sendSection(out, file.getName(), Files.readAllBytes(file.toPath()));
+    }
+
+    private static void sendSection(OutputStream out, String name, byte[] contents) throws IOException {
+        out.write(("==> " + name + " " + contents.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(contents);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 16];
+        for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+            bytes.write(buf, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void deleteTree(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Unable to delete " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Main method for PhenoServer. Loads the term index (from hp.obo or its snapshot) and serves analyses
+     * until the process is stopped.
+     * @param args     command line arguments typed by user
+     */
+    public static void main(String[] args) {
+        Option hpoOpt = Option.builder("o")
+                .longOpt("hpo")
+                .desc("directory containing hp.obo")
+                .hasArg()
+                .optionalArg(false)
+                .argName("directory")
+                .required()
+                .build();
+        Option portOpt = Option.builder("P")
+                .longOpt("port")
+                .desc("port on the loopback address (default " + DEFAULT_PORT + ", 0 for any free port)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("number")
+                .required(false)
+                .build();
+        Option threadsOpt = Option.builder("t")
+                .longOpt("threads")
+                .desc("number of analyses run at a time (default: number of processors)")
+                .hasArg()
+                .optionalArg(false)
+                .argName("count")
+                .required(false)
+                .build();
+        Options options = new Options();
+        options.addOption(hpoOpt);
+        options.addOption(portOpt);
+        options.addOption(threadsOpt);
+
+        int port, numWorkers;
+        String hpoDir;
+        try {
+            CommandLine cmdl = new DefaultParser().parse(options, args);
+            hpoDir = cmdl.getOptionValue("o");
+            try {
+                port = Integer.parseInt(cmdl.getOptionValue("P", Integer.toString(DEFAULT_PORT)));
+                numWorkers = Integer.parseInt(cmdl.getOptionValue("t",
+                        Integer.toString(Runtime.getRuntime().availableProcessors())));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Options -P and -t require integers");
+            }
+            if (port < 0 || numWorkers < 1) {
+                throw new ParseException("Option -P requires a port number and -t a positive integer");
+            }
+        } catch (ParseException e) {
+            System.err.println("Incorrect command line arguments --- " + e.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(new PrintWriter(System.err, true), 80, "phenoServer", null, options,
+                    formatter.getLeftPadding(), formatter.getDescPadding(), null);
+            return;
+        }
+
+        try {
+            String hpoPath = (hpoDir.endsWith(File.separator) ? hpoDir : hpoDir + File.separator) + "hp.obo";
+            PhenoServer phenoServer = new PhenoServer(hpoDir, OntologySnapshot.load(hpoPath));
+            phenoServer.start(port, numWorkers);
+            logger.info("Listening on 127.0.0.1:" + phenoServer.getPort());
+            System.out.println("phenoServer listening on 127.0.0.1:" + phenoServer.getPort());
+        } catch (IOException e) {
+            logger.fatal("", e);
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+}
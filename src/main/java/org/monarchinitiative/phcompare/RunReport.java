@@ -0,0 +1,336 @@
+package org.monarchinitiative.phcompare;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RunReport records, for each stage of a run, the wall time, the CPU time (so that the worker threads of
+ * parallel stages are included), the bytes allocated on the heap, the peak heap use, and counts of the items
+ * the stage handled. The report is written as JSON (runReport.json) in the results directory, for schedulers
+ * that size jobs from past runs.
+ *
+ * A report of a whole process (new RunReport()) measures all threads together: CPU time of the process, and
+ * as allocation the heap in use at the end of a stage, less heap in use at its start, plus the bytes
+ * reclaimed by the garbage collections during the stage (reported by GC notifications). Peak heap is the sum
+ * of the peak use of the heap memory pools during the stage.
+ *
+ * A report of one analysis among others running in the same JVM (RunReport.forAnalysis(), used by the
+ * server and by the configurations of a batch run) measures CPU time and allocation only for the threads of
+ * the analysis, through an AllocationScope opened on the calling thread. The heap is shared by all analyses,
+ * so such a report has no peak heap; its "scope" is "analysis" rather than "process". Measures that the JVM
+ * does not provide are reported as -1.
+ *
+ * When the JVM has JDK Flight Recorder, each stage is also emitted as a StageEvent; the events are recorded
+ * only while a flight recording is running (e.g. java -XX:StartFlightRecording ...).
+ */
+class RunReport {
+    static final String REPORT_NAME = "runReport.json";
+    // longest wait for the notifications of garbage collections at the end of a stage
+    private static final long NOTIFICATION_WAIT_MILLIS = 200;
+
+    private final Instant startTime = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicLong reclaimed = new AtomicLong();   // bytes reclaimed by GC since the report began
+    private final AtomicLong notified = new AtomicLong();    // collections notified since the report began
+    private final long initialCollections = collections();
+    private final Map<NotificationEmitter, NotificationListener> listeners = new LinkedHashMap<>();
+    private final AllocationScope scope;    // threads of the analysis, or null for the whole process
+
+    /**
+     * Starts a report of the whole process.
+     */
+    RunReport() {
+        scope = null;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                NotificationListener listener = (notification, handback) -> {
+                    if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                            .equals(notification.getType())) {
+                        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                                (CompositeData) notification.getUserData());
+                        long freed = 0;
+                        for (Map.Entry<String, MemoryUsage> before :
+                                info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+                            MemoryUsage after = info.getGcInfo().getMemoryUsageAfterGc().get(before.getKey());
+                            if (after != null) {
+                                freed += before.getValue().getUsed() - after.getUsed();
+                            }
+                        }
+                        reclaimed.addAndGet(Math.max(0, freed));
+                        notified.incrementAndGet();
+                    }
+                };
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+                listeners.put((NotificationEmitter) gc, listener);
+            }
+        }
+    }
+
+    private RunReport(AllocationScope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Starts a report of one analysis, measuring the current thread and the worker threads of the pools it
+     * creates. Call stopListening (or write) on the same thread when the analysis ends.
+     * @return RunReport    the report
+     */
+    static RunReport forAnalysis() {
+        return new RunReport(AllocationScope.open());
+    }
+
+    /**
+     * Starts timing a stage. Close the stage (e.g. with try-with-resources) when it is complete.
+     * @param name      name of the stage in the report
+     * @return Stage    the running stage, to which item counts may be added
+     */
+    Stage start(String name) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        return stage;
+    }
+
+    List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Stops measuring (see stopListening) and writes the report to runReport.json in the results directory.
+     * @param resultsDir      directory for result files
+     * @param numThreads      number of worker threads of the run
+     * @return File           the report file
+     * @throws IOException    if problem writing the report
+     */
+    File write(File resultsDir, int numThreads) throws IOException {
+        stopListening();
+
+        File reportFile = new File(resultsDir, REPORT_NAME);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"startTime\": \"").append(startTime).append("\",\n");
+        sb.append("  \"scope\": \"").append(scope == null ? "process" : "analysis").append("\",\n");
+        sb.append("  \"wallMillis\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+        sb.append("  \"threads\": ").append(numThreads).append(",\n");
+        sb.append("  \"availableProcessors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        sb.append("  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            sb.append(i == 0 ? "\n" : ",\n");
+            stages.get(i).appendJson(sb);
+        }
+        sb.append("\n  ]\n}\n");
+        try (BufferedWriter bw = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+            bw.write(sb.toString());
+        } catch (IOException e) {
+            throw new IOException("[RunReport.write] Problem writing run report " + reportFile.getAbsolutePath(), e);
+        }
+        return reportFile;
+    }
+
+    /**
+     * Stops listening for garbage collections, or closes the allocation scope of the report of an analysis;
+     * for a report that will not be written (e.g. a failed analysis).
+     */
+    void stopListening() {
+        if (scope != null) {
+            scope.close();
+        }
+        for (Map.Entry<NotificationEmitter, NotificationListener> e : listeners.entrySet()) {
+            try {
+                e.getKey().removeNotificationListener(e.getValue());
+            } catch (ListenerNotFoundException ex) {
+                // already removed
+            }
+        }
+        listeners.clear();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * @return long    CPU time of the whole process in nanoseconds, or -1 if not available
+     */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * @return long    number of garbage collections since the JVM started
+     */
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * GC notifications are delivered on another thread, shortly after the collection. Waits (at most
+     * NOTIFICATION_WAIT_MILLIS) until the notifications of all collections so far have been counted.
+     */
+    private void awaitNotifications() {
+        long deadline = System.nanoTime() + NOTIFICATION_WAIT_MILLIS * 1_000_000L;
+        while (notified.get() < collections() - initialCollections && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Measures of one stage of the run.
+     */
+    class Stage implements AutoCloseable {
+        private final String name;
+        private final Map<String, Long> counts = new LinkedHashMap<>();
+        private final long startNanos;
+        private final long startCpu;
+        private final long startHeap;         // heap in use, or bytes allocated by the analysis
+        private final long startReclaimed;
+        private final Object event;    // StageEvent when flight recorder is available, otherwise null
+        private long wallNanos = -1;
+        private long cpuNanos = -1;
+        private long allocatedBytes = -1;
+        private long peakHeapBytes = -1;
+
+        private Stage(String name) {
+            this.name = name;
+            if (scope == null) {
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP) {
+                        pool.resetPeakUsage();
+                    }
+                }
+                awaitNotifications();
+                startHeap = heapUsed();
+                startReclaimed = reclaimed.get();
+                startCpu = processCpuNanos();
+            } else {
+                startHeap = scope.getAllocatedBytes();
+                startReclaimed = 0;
+                startCpu = scope.getCpuNanos();
+            }
+            event = StageEvent.begin(name);
+            startNanos = System.nanoTime();
+        }
+
+        /**
+         * Records the number of items of some kind handled by this stage.
+         * @param item     kind of item, e.g. patients
+         * @param count    number of items
+         * @return Stage   this stage
+         */
+        Stage count(String item, long count) {
+            counts.put(item, count);
+            return this;
+        }
+
+        String getName() { return name; }
+
+        long getWallNanos() { return wallNanos; }
+
+        long getAllocatedBytes() { return allocatedBytes; }
+
+        Map<String, Long> getCounts() { return counts; }
+
+        @Override
+        public void close() {
+            wallNanos = System.nanoTime() - startNanos;
+            if (scope != null) {
+                long cpu = scope.getCpuNanos();
+                cpuNanos = startCpu < 0 || cpu < 0 ? -1 : cpu - startCpu;
+                long allocated = scope.getAllocatedBytes();
+                allocatedBytes = startHeap < 0 || allocated < 0 ? -1 : Math.max(0, allocated - startHeap);
+            } else {
+                long cpu = processCpuNanos();
+                cpuNanos = startCpu < 0 || cpu < 0 ? -1 : cpu - startCpu;
+                awaitNotifications();
+                allocatedBytes = Math.max(0, heapUsed() - startHeap + reclaimed.get() - startReclaimed);
+                long peak = 0;
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                        peak += pool.getPeakUsage().getUsed();
+                    }
+                }
+                peakHeapBytes = peak;
+            }
+            if (event != null) {
+                StageEvent.commit(event, allocatedBytes, peakHeapBytes, counts.toString());
+            }
+        }
+
+        private void appendJson(StringBuilder sb) {
+            sb.append("    {\"name\": ").append(quote(name));
+            sb.append(", \"wallMillis\": ").append(millis(wallNanos));
+            sb.append(", \"cpuMillis\": ").append(cpuNanos < 0 ? "-1" : millis(cpuNanos));
+            sb.append(", \"allocatedBytes\": ").append(allocatedBytes);
+            if (scope == null) {
+                sb.append(", \"peakHeapBytes\": ").append(peakHeapBytes);
+            }
+            sb.append(", \"counts\": {");
+            String sep = "";
+            for (Map.Entry<String, Long> c : counts.entrySet()) {
+                sb.append(sep).append(quote(c.getKey())).append(": ").append(c.getValue());
+                sep = ", ";
+            }
+            sb.append("}}");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.monarchinitiative.phcompare;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * StageEvent emits the JDK Flight Recorder event for one stage of a run (see RunReport). The event type,
+ * org.monarchinitiative.phcompare.Stage, is defined at run time with jdk.jfr.EventFactory, and every jdk.jfr
+ * class is reached by reflection, so that phenoCompare compiles with any JDK from 8 on (JFR is only in JDK
+ * 11 and later, and in 8u262 and later) and runs on JVMs without JFR, where begin returns null.
+ */
+class StageEvent {
+    // position of each field in the event type
+    private static final int STAGE = 0;
+    private static final int ALLOCATED = 1;
+    private static final int PEAK_HEAP = 2;
+    private static final int COUNTS = 3;
+
+    private static final Object FACTORY;      // jdk.jfr.EventFactory of the event type, or null without JFR
+    private static final Method NEW_EVENT;    // EventFactory.newEvent()
+    private static final Method SET;          // Event.set(int, Object)
+    private static final Method BEGIN;        // Event.begin()
+    private static final Method END;          // Event.end()
+    private static final Method SHOULD_COMMIT;  // Event.shouldCommit()
+    private static final Method COMMIT;       // Event.commit()
+
+    static {
+        Object factory = null;
+        Method newEvent = null, set = null, begin = null, end = null, shouldCommit = null, commit = null;
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            List<Object> fields = Arrays.asList(
+                    field(String.class, "stage", annotation("Label", "Stage")),
+                    field(long.class, "allocatedBytes", annotation("Label", "Allocated"),
+                            annotation("DataAmount", "BYTES")),
+                    field(long.class, "peakHeapBytes", annotation("Label", "Peak Heap"),
+                            annotation("DataAmount", "BYTES")),
+                    field(String.class, "counts", annotation("Label", "Items")));
+            List<Object> type = Arrays.asList(annotation("Name", "org.monarchinitiative.phcompare.Stage"),
+                    annotation("Label", "phenoCompare Stage"),
+                    annotation("Category", new String[] {"phenoCompare"}));
+            factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, type, fields);
+            newEvent = factoryClass.getMethod("newEvent");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            commit = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            factory = null;
+        }
+        FACTORY = factory;
+        NEW_EVENT = newEvent;
+        SET = set;
+        BEGIN = begin;
+        END = end;
+        SHOULD_COMMIT = shouldCommit;
+        COMMIT = commit;
+    }
+
+    private StageEvent() { }
+
+    /**
+     * Creates a jdk.jfr.ValueDescriptor for a field of the event type.
+     */
+    private static Object field(Class<?> type, String name, Object... annotations)
+            throws ReflectiveOperationException {
+        Constructor<?> constructor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+                String.class, List.class);
+        return constructor.newInstance(type, name, Arrays.asList(annotations));
+    }
+
+    /**
+     * Creates a jdk.jfr.AnnotationElement for an annotation of package jdk.jfr.
+     */
+    private static Object annotation(String name, Object value) throws ReflectiveOperationException {
+        Class<?> annotationClass = Class.forName("jdk.jfr." + name);
+        Constructor<?> constructor = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class,
+                Object.class);
+        return constructor.newInstance(annotationClass.asSubclass(Annotation.class), value);
+    }
+
+    /**
+     * Starts the event of a stage.
+     * @param stage     name of the stage
+     * @return Object   the event, to be passed to commit, or null if the JVM has no flight recorder
+     */
+    static Object begin(String stage) {
+        if (FACTORY == null) {
+            return null;
+        }
+        try {
+            Object event = NEW_EVENT.invoke(FACTORY);
+            SET.invoke(event, STAGE, stage);
+            BEGIN.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ends the event of a stage and commits it to any running recording.
+     */
+    static void commit(Object event, long allocatedBytes, long peakHeapBytes, String counts) {
+        if (event == null) {
+            return;
+        }
+        try {
+            END.invoke(event);
+            if ((Boolean) SHOULD_COMMIT.invoke(event)) {
+                SET.invoke(event, ALLOCATED, allocatedBytes);
+                SET.invoke(event, PEAK_HEAP, peakHeapBytes);
+                SET.invoke(event, COUNTS, counts);
+                COMMIT.invoke(event);
+            }
+        } catch (ReflectiveOperationException e) {
+            // the event is lost; the run report still holds the stage
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.monarchinitiative.phcompare;
+
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * TermCounter counts, for a shard of the cohort, how many patients in each group exhibit the phenotype
+ * associated with each node of the ontology. Counts are kept in a flat term x group matrix: the count for
+ * dense term index t and group g is at position t * numGroups + g. A shard larger than the threshold is split
+ * in two halves that are counted by separate fork-join workers, each with its own count matrix; the two
+ * matrices are then summed. Run through compute() directly, the whole cohort is counted on the calling thread.
+ *
+ * As a side effect, the ancestor closure (including the root) of each patient in the shard is stored in the
+ * closures array at the patient's position in the cohort. Workers write disjoint positions of that array.
+ * Closures already in the array (e.g. cached by a batch run) are used as they are.
+ */
+class TermCounter extends RecursiveTask<int[]> {
+    private Patient[] cohort;      // all patients, ordered by group
+    private int[] groupOf;         // group index for each patient of the cohort
+    private int numGroups;         // number of patient groups
+    private TermIndex termIndex;   // dense index of the ontology terms
+    private int[][] closures;      // ancestor closure for each patient of the cohort (output, unless given)
+    private int from;              // first patient of this shard
+    private int to;                // one past the last patient of this shard
+    private int threshold;         // maximum number of patients counted without further splitting
+
+    TermCounter(Patient[] cohort, int[] groupOf, int numGroups, TermIndex termIndex, int[][] closures,
+                int from, int to, int threshold) {
+        this.cohort = cohort;
+        this.groupOf = groupOf;
+        this.numGroups = numGroups;
+        this.termIndex = termIndex;
+        this.closures = closures;
+        this.from = from;
+        this.to = to;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Counts the patients of this shard, splitting it among workers if it exceeds the threshold.
+     * @return int[]    term x group count matrix for the patients of this shard
+     */
+    @Override
+    protected int[] compute() {
+        if (to - from <= threshold) {
+            return countShard();
+        }
+        int mid = (from + to) >>> 1;
+        TermCounter left = new TermCounter(cohort, groupOf, numGroups, termIndex, closures, from, mid, threshold);
+        TermCounter right = new TermCounter(cohort, groupOf, numGroups, termIndex, closures, mid, to, threshold);
+        left.fork();
+        int[] counts = right.compute();
+        int[] leftCounts = left.join();
+        // reduction step: counts are integers, so the order of summation does not affect the result
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += leftCounts[i];
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the patients of this shard on the current thread.
+     * @return int[]    term x group count matrix for the patients of this shard
+     */
+    private int[] countShard() {
+        int[] counts = new int[termIndex.size() * numGroups];
+        for (int p = from; p < to; p++) {
+            int[] closure = closures[p];
+            if (closure == null) {
+                closure = termIndex.ancestorClosureOfHpoNumbers(cohort[p].getHpoIds(), true);
+                closures[p] = closure;
+            }
+            for (int t : closure) {
+                counts[t * numGroups + groupOf[p]]++;
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,72 @@
+package org.monarchinitiative.phcompare.ontology;
+
+import com.github.phenomics.ontolib.ontology.data.ImmutableTermId;
+import com.github.phenomics.ontolib.ontology.data.ImmutableTermPrefix;
+import com.github.phenomics.ontolib.ontology.data.TermId;
+import com.github.phenomics.ontolib.ontology.data.TermPrefix;
+
+/**
+ * HpoIds converts between HPO term ids and their numbers: HP:0001250 is number 1250. HPO ids always have
+ * seven digits, so the numbers of two ids are in the same order as the ids themselves.
+ */
+public final class HpoIds {
+    // number of digits in an HPO id
+    public static final int DIGITS = 7;
+    private static final TermPrefix HP = new ImmutableTermPrefix("HP");
+
+    private HpoIds() { }
+
+    /**
+     * Parses the number of an HPO id from characters from .. to - 1 of s, which must be exactly DIGITS digits.
+     * @param s       text containing the id
+     * @param from    position of first digit
+     * @param to      position after last digit
+     * @return int    number of the HPO id, or -1 if the characters are not DIGITS digits
+     */
+    public static int parse(CharSequence s, int from, int to) {
+        if (to - from != DIGITS) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /**
+     * @param tid     term id
+     * @return int    number of the HPO id, or -1 if tid is not an HPO id with DIGITS digits
+     */
+    public static int number(TermId tid) {
+        if (!HP.equals(tid.getPrefix())) {
+            return -1;
+        }
+        return parse(tid.getId(), 0, tid.getId().length());
+    }
+
+    /**
+     * @param number     number of an HPO id
+     * @return TermId    the HPO term id, e.g. HP:0001250 for 1250
+     */
+    public static TermId toTermId(int number) {
+        return new ImmutableTermId(HP, toString(number));
+    }
+
+    /**
+     * @param number     number of an HPO id
+     * @return String    the digits of the HPO id, zero-padded to DIGITS digits (e.g. 0001250)
+     */
+    public static String toString(int number) {
+        char[] digits = new char[DIGITS];
+        for (int i = DIGITS - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        return new String(digits);
+    }
+}
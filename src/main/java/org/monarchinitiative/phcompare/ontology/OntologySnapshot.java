@@ -0,0 +1,164 @@
+package org.monarchinitiative.phcompare.ontology;
+
+import com.github.phenomics.ontolib.formats.hpo.HpoTerm;
+import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
+import com.github.phenomics.ontolib.io.obo.hpo.HpoOboParser;
+import com.github.phenomics.ontolib.ontology.data.Ontology;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * OntologySnapshot saves the TermIndex of the phenotypic abnormality sub-ontology of HPO (term ids, names,
+ * is_a edges and ancestor closures) in a compact binary file next to hp.obo, so that later runs can load
+ * the index without parsing hp.obo. The snapshot begins with the SHA-256 checksum of the hp.obo it was built
+ * from; when hp.obo changes, the checksum no longer matches and the snapshot is rebuilt.
+ *
+ * Snapshot layout (big-endian): magic bytes PCOS, format version (int32), SHA-256 of hp.obo (32 bytes),
+ * then the index as written by TermIndex.writeTo.
+ */
+public class OntologySnapshot {
+    static final String SNAPSHOT_NAME = "hp.snapshot";
+    private static final byte[] MAGIC = { 'P', 'C', 'O', 'S' };
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = MAGIC.length + 4 + 32;
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private OntologySnapshot() { }
+
+    /**
+     * Loads the term index for an hp.obo file, from its snapshot if the snapshot is current, otherwise by
+     * parsing hp.obo and then saving a new snapshot in the same directory. A snapshot that cannot be
+     * written (e.g. read-only directory) is reported and skipped.
+     * @param hpoPath         path of hp.obo
+     * @return TermIndex      index of the phenotypic abnormality sub-ontology
+     * @throws IOException    if hp.obo cannot be read or parsed
+     */
+    public static TermIndex load(String hpoPath) throws IOException {
+        File oboFile = new File(hpoPath);
+        File snapshotFile = new File(oboFile.getAbsoluteFile().getParentFile(), SNAPSHOT_NAME);
+        byte[] checksum = checksum(oboFile);
+
+        TermIndex termIndex = read(snapshotFile, checksum);
+        if (termIndex != null) {
+            return termIndex;
+        }
+        termIndex = new TermIndex(parseObo(hpoPath));
+        try {
+            write(snapshotFile, checksum, termIndex);
+        } catch (IOException e) {
+            logger.warn("Unable to save ontology snapshot " + snapshotFile.getAbsolutePath() + ": " +
+                    e.getMessage());
+        }
+        return termIndex;
+    }
+
+    /**
+     * Parses hp.obo and extracts the phenotypic abnormality sub-ontology.
+     * @param hpoPath         path of hp.obo
+     * @return Ontology       the phenotypic abnormality sub-ontology
+     * @throws IOException    if hp.obo cannot be read or parsed
+     */
+    public static Ontology<HpoTerm, HpoTermRelation> parseObo(String hpoPath) throws IOException {
+        try {
+            HpoOboParser hpoOboParser = new HpoOboParser(new File(hpoPath));
+            return hpoOboParser.parse().getPhenotypicAbnormalitySubOntology();
+        } catch (IOException e) {
+            throw new IOException("[OntologySnapshot.parseObo] Unable to parse HPO OBO file at " +
+                    hpoPath, e);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 checksum of a file, reading it through a channel in large blocks.
+     */
+    public static byte[] checksum(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+            while (channel.read(buf) > 0) {
+                // Buffer's flip and clear: ByteBuffer's overrides exist only from Java 9
+                ((Buffer) buf).flip();
+                digest.update(buf);
+                ((Buffer) buf).clear();
+            }
+        } catch (IOException e) {
+            throw new IOException("[OntologySnapshot.checksum] Unable to read HPO OBO file at " +
+                    file.getPath(), e);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Reads a snapshot by memory-mapping it.
+     * @return TermIndex    the saved index, or null if the snapshot is missing, stale, or unreadable
+     */
+    static TermIndex read(File snapshotFile, byte[] checksum) {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < HEADER_BYTES) {
+                return null;
+            }
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            int version = buf.getInt();
+            byte[] saved = new byte[checksum.length];
+            buf.get(saved);
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION || !Arrays.equals(saved, checksum)) {
+                return null;
+            }
+            return TermIndex.readFrom(buf);
+        } catch (IOException | RuntimeException e) {
+            // a garbled snapshot may fail in any way while its arrays are read and checked
+            logger.warn("Ignoring unreadable ontology snapshot " + snapshotFile.getAbsolutePath() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, then moves it into place so that a concurrent run never
+     * sees a partly written snapshot.
+     */
+    static void write(File snapshotFile, byte[] checksum, TermIndex termIndex) throws IOException {
+        File tmp = File.createTempFile(SNAPSHOT_NAME, ".tmp", snapshotFile.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.write(checksum);
+                termIndex.writeTo(out);
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+    }
+}
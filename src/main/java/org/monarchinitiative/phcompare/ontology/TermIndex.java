@@ -0,0 +1,463 @@
+package org.monarchinitiative.phcompare.ontology;
+
+import com.github.phenomics.ontolib.formats.hpo.HpoTerm;
+import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
+import com.github.phenomics.ontolib.graph.data.Edge;
+import com.github.phenomics.ontolib.ontology.data.ImmutableTermId;
+import com.github.phenomics.ontolib.ontology.data.Ontology;
+import com.github.phenomics.ontolib.ontology.data.TermId;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * TermIndex is a one-time index over the terms of an ontology (in phenoCompare, the phenotypic abnormality
+ * sub-ontology of HPO). Every TermId is mapped to a dense int in the range 0 .. size() - 1, assigned in the
+ * natural order of the TermIds, so ascending ints visit the terms in the same order as a SortedMap keyed by
+ * TermId. Parent and child links are held in compact primitive arrays, and the ancestor closure of each term
+ * is precomputed as a sorted int[] so that counting, subtype lookup and similarity need no graph traversal.
+ * The descendant closures, the inverse of the ancestor closures, are precomputed in the same compact form.
+ *
+ * The ancestor closure of a term contains the term itself and the root, exactly as returned by
+ * Ontology.getAncestorTermIds. TermIds that are not vertices of the ontology graph (alternate ids,
+ * terms from other sub-ontologies) are not indexed, and have no ancestors, also as in ontolib.
+ */
+public class TermIndex {
+    private TermId[] termIds;                // TermId for each dense index
+    private Map<TermId, Integer> indexMap;   // dense index for each TermId
+    private String[] names;                  // name of each term
+    // hpoNumbers[i] is the number of an HPO term (see HpoIds), ascending; hpoDense[i] is its dense index
+    private int[] hpoNumbers;
+    private int[] hpoDense;
+    private int root;                        // dense index of the root term
+    // parents of term t are parents[parentStart[t] .. parentStart[t + 1] - 1]
+    private int[] parentStart;
+    private int[] parents;
+    // children of term t are children[childStart[t] .. childStart[t + 1] - 1]
+    private int[] childStart;
+    private int[] children;
+    // ancestors[t] is the sorted ancestor closure of term t (including t and the root)
+    private int[][] ancestors;
+    // descendant closure of term t (including t) is descendants[descendantStart[t] .. descendantStart[t + 1] - 1]
+    private int[] descendantStart;
+    private int[] descendants;
+
+    /**
+     * Builds the index from the graph of the ontology.
+     * @param ontology    ontology to be indexed
+     * @throws IllegalArgumentException   if the graph of the ontology contains a cycle
+     */
+    public TermIndex(Ontology<HpoTerm, HpoTermRelation> ontology) {
+        Collection<TermId> vertices = ontology.getGraph().getVertices();
+        termIds = vertices.toArray(new TermId[vertices.size()]);
+        Arrays.sort(termIds);
+        buildIndexMap();
+        names = new String[termIds.length];
+        Map<TermId, HpoTerm> termMap = ontology.getTermMap();
+        for (int t = 0; t < termIds.length; t++) {
+            HpoTerm term = termMap.get(termIds[t]);
+            names[t] = term == null ? "" : term.getName();
+        }
+        root = indexOf(ontology.getRootTermId());
+
+        // edges of the ontolib graph point from a term to its parent
+        List<int[]> edges = new ArrayList<>();
+        for (Edge<TermId> e : ontology.getGraph().getEdges()) {
+            edges.add(new int[] {indexOf(e.getSource()), indexOf(e.getDest())});
+        }
+        parentStart = new int[termIds.length + 1];
+        for (int[] e : edges) {
+            parentStart[e[0] + 1]++;
+        }
+        for (int t = 0; t < termIds.length; t++) {
+            parentStart[t + 1] += parentStart[t];
+        }
+        parents = new int[edges.size()];
+        int[] nextParent = Arrays.copyOf(parentStart, termIds.length);
+        for (int[] e : edges) {
+            parents[nextParent[e[0]]++] = e[1];
+        }
+        for (int t = 0; t < termIds.length; t++) {
+            Arrays.sort(parents, parentStart[t], parentStart[t + 1]);
+        }
+        buildChildren();
+        computeAncestors();
+        buildDescendants();
+    }
+
+    /**
+     * Rebuilds an index from the arrays saved by writeTo (see OntologySnapshot).
+     * @param termIds        TermId for each dense index, in TermId order
+     * @param names          name of each term
+     * @param root           dense index of the root term
+     * @param parentStart    parents of term t are parents[parentStart[t] .. parentStart[t + 1] - 1]
+     * @param parents        sorted parents of each term
+     * @param ancestors      sorted ancestor closure of each term
+     */
+    TermIndex(TermId[] termIds, String[] names, int root, int[] parentStart, int[] parents, int[][] ancestors) {
+        this.termIds = termIds;
+        this.names = names;
+        this.root = root;
+        this.parentStart = parentStart;
+        this.parents = parents;
+        this.ancestors = ancestors;
+        buildIndexMap();
+        buildChildren();
+        buildDescendants();
+    }
+
+    private void buildIndexMap() {
+        indexMap = new HashMap<>(termIds.length * 2);
+        long[] numbered = new long[termIds.length];
+        int n = 0;
+        for (int t = 0; t < termIds.length; t++) {
+            indexMap.put(termIds[t], t);
+            int number = HpoIds.number(termIds[t]);
+            if (number >= 0) {
+                numbered[n++] = (long) number << 32 | t;
+            }
+        }
+        // sort (number, dense index) pairs by number
+        Arrays.sort(numbered, 0, n);
+        hpoNumbers = new int[n];
+        hpoDense = new int[n];
+        for (int i = 0; i < n; i++) {
+            hpoNumbers[i] = (int) (numbered[i] >>> 32);
+            hpoDense[i] = (int) numbered[i];
+        }
+    }
+
+    /**
+     * Inverts the parent links. Children of each term come out sorted because terms are visited in order.
+     */
+    private void buildChildren() {
+        childStart = new int[termIds.length + 1];
+        for (int p : parents) {
+            childStart[p + 1]++;
+        }
+        for (int t = 0; t < termIds.length; t++) {
+            childStart[t + 1] += childStart[t];
+        }
+        children = new int[parents.length];
+        int[] nextChild = Arrays.copyOf(childStart, termIds.length);
+        for (int t = 0; t < termIds.length; t++) {
+            for (int i = parentStart[t]; i < parentStart[t + 1]; i++) {
+                children[nextChild[parents[i]]++] = t;
+            }
+        }
+    }
+
+    /**
+     * Inverts the ancestor closures. Descendants of each term come out sorted because terms are visited in
+     * order.
+     */
+    private void buildDescendants() {
+        descendantStart = new int[termIds.length + 1];
+        for (int[] anc : ancestors) {
+            for (int a : anc) {
+                descendantStart[a + 1]++;
+            }
+        }
+        for (int t = 0; t < termIds.length; t++) {
+            descendantStart[t + 1] += descendantStart[t];
+        }
+        descendants = new int[descendantStart[termIds.length]];
+        int[] nextDescendant = Arrays.copyOf(descendantStart, termIds.length);
+        for (int t = 0; t < termIds.length; t++) {
+            for (int a : ancestors[t]) {
+                descendants[nextDescendant[a]++] = t;
+            }
+        }
+    }
+
+    /**
+     * Writes the arrays of this index to out, to be read back by readFrom.
+     * @param out             destination
+     * @throws IOException    if problem writing
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(termIds.length);
+        out.writeInt(root);
+        for (int t = 0; t < termIds.length; t++) {
+            writeString(out, termIds[t].getIdWithPrefix());
+            writeString(out, names[t]);
+        }
+        for (int start : parentStart) {
+            out.writeInt(start);
+        }
+        for (int p : parents) {
+            out.writeInt(p);
+        }
+        for (int[] anc : ancestors) {
+            out.writeInt(anc.length);
+            for (int a : anc) {
+                out.writeInt(a);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads an index written by writeTo.
+     * @param buf           buffer positioned at the start of the index (big-endian)
+     * @return TermIndex    the index
+     * @throws java.nio.BufferUnderflowException   if the buffer ends too soon
+     * @throws IllegalArgumentException            if a size read from the buffer is impossible
+     */
+    static TermIndex readFrom(ByteBuffer buf) {
+        int size = checkedSize(buf.getInt(), buf.remaining() / 8);   // a term takes at least two lengths
+        int root = buf.getInt();
+        TermId[] termIds = new TermId[size];
+        String[] names = new String[size];
+        for (int t = 0; t < size; t++) {
+            termIds[t] = ImmutableTermId.constructWithPrefix(readString(buf));
+            names[t] = readString(buf);
+        }
+        IntBuffer ints = buf.asIntBuffer();
+        int[] parentStart = new int[size + 1];
+        ints.get(parentStart);
+        int[] parents = new int[checkedSize(parentStart[size], ints.remaining())];
+        ints.get(parents);
+        int[][] ancestors = new int[size][];
+        for (int t = 0; t < size; t++) {
+            ancestors[t] = new int[checkedSize(ints.get(), ints.remaining())];
+            ints.get(ancestors[t]);
+        }
+        ((Buffer) buf).position(buf.position() + 4 * ints.position());
+        return new TermIndex(termIds, names, root, parentStart, parents, ancestors);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[checkedSize(buf.getInt(), buf.remaining())];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks a size read from a buffer before an array of that size is allocated.
+     * @param size      size read
+     * @param limit     largest size the rest of the buffer can hold
+     * @return int      size
+     * @throws IllegalArgumentException   if size is negative or above limit
+     */
+    private static int checkedSize(int size, int limit) {
+        if (size < 0 || size > limit) {
+            throw new IllegalArgumentException("[TermIndex.readFrom] Impossible size " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the union of the ancestor closures of the specified terms as a sorted array of dense
+     * indices. Terms that are not in the index contribute nothing.
+     * @param terms          TermIds whose ancestors are wanted
+     * @param includeRoot    whether or not the root term should be part of the result
+     * @return int[]         sorted, duplicate-free dense indices of all ancestors of the terms
+     */
+    public int[] ancestorClosure(Collection<TermId> terms, boolean includeRoot) {
+        int[] idx = new int[terms.size()];
+        int n = 0;
+        for (TermId tid : terms) {
+            int t = indexOf(tid);
+            if (t >= 0) {
+                idx[n++] = t;
+            }
+        }
+        return ancestorClosure(idx, n, includeRoot);
+    }
+
+    /**
+     * Returns the union of the ancestor closures of HPO terms given by their numbers (see HpoIds).
+     * Terms that are not in the index contribute nothing.
+     * @param hpoNumbers     numbers of the HPO terms whose ancestors are wanted
+     * @param includeRoot    whether or not the root term should be part of the result
+     * @return int[]         sorted, duplicate-free dense indices of all ancestors of the terms
+     */
+    public int[] ancestorClosureOfHpoNumbers(int[] hpoNumbers, boolean includeRoot) {
+        int[] idx = new int[hpoNumbers.length];
+        int n = 0;
+        for (int number : hpoNumbers) {
+            int t = indexOfHpoNumber(number);
+            if (t >= 0) {
+                idx[n++] = t;
+            }
+        }
+        return ancestorClosure(idx, n, includeRoot);
+    }
+
+    /**
+     * Returns the union of the ancestor closures of the first n dense indices in terms.
+     * @param terms          dense indices of the terms whose ancestors are wanted
+     * @param n              number of entries of terms to be used
+     * @param includeRoot    whether or not the root term should be part of the result
+     * @return int[]         sorted, duplicate-free dense indices of all ancestors of the terms
+     */
+    public int[] ancestorClosure(int[] terms, int n, boolean includeRoot) {
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            total += ancestors[terms[i]].length;
+        }
+        int[] all = new int[total];
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            int[] anc = ancestors[terms[i]];
+            System.arraycopy(anc, 0, all, pos, anc.length);
+            pos += anc.length;
+        }
+        Arrays.sort(all);
+        int unique = 0;
+        for (int i = 0; i < total; i++) {
+            if ((unique == 0 || all[i] != all[unique - 1]) && (includeRoot || all[i] != root)) {
+                all[unique++] = all[i];
+            }
+        }
+        return unique == total ? all : Arrays.copyOf(all, unique);
+    }
+
+    /**
+     * Computes the ancestor closure of every term, visiting parents before children so that each
+     * closure is the merge of the closures of the term's parents plus the term itself.
+     */
+    private void computeAncestors() {
+        int size = termIds.length;
+        ancestors = new int[size][];
+        int[] pendingParents = new int[size];
+        int[] queue = new int[size];
+        int head = 0, tail = 0;
+        for (int t = 0; t < size; t++) {
+            pendingParents[t] = parentStart[t + 1] - parentStart[t];
+            if (pendingParents[t] == 0) {
+                queue[tail++] = t;
+            }
+        }
+        int[] self = new int[1];
+        while (head < tail) {
+            int t = queue[head++];
+            self[0] = t;
+            int[] closure = ancestorClosure(parents, parentStart[t], parentStart[t + 1], self);
+            ancestors[t] = closure;
+            for (int c = childStart[t]; c < childStart[t + 1]; c++) {
+                if (--pendingParents[children[c]] == 0) {
+                    queue[tail++] = children[c];
+                }
+            }
+        }
+        if (tail < size) {
+            throw new IllegalArgumentException("[TermIndex.computeAncestors] Ontology graph contains a cycle");
+        }
+    }
+
+    /**
+     * Merges the closures of parents[from .. to - 1] with the extra terms in self.
+     */
+    private int[] ancestorClosure(int[] parentArr, int from, int to, int[] self) {
+        int total = self.length;
+        for (int p = from; p < to; p++) {
+            total += ancestors[parentArr[p]].length;
+        }
+        int[] all = new int[total];
+        System.arraycopy(self, 0, all, 0, self.length);
+        int pos = self.length;
+        for (int p = from; p < to; p++) {
+            int[] anc = ancestors[parentArr[p]];
+            System.arraycopy(anc, 0, all, pos, anc.length);
+            pos += anc.length;
+        }
+        Arrays.sort(all);
+        int unique = 0;
+        for (int i = 0; i < total; i++) {
+            if (unique == 0 || all[i] != all[unique - 1]) {
+                all[unique++] = all[i];
+            }
+        }
+        return unique == total ? all : Arrays.copyOf(all, unique);
+    }
+
+    /**
+     * Returns the ancestor closure of term t, including t and the root. The array is shared; callers
+     * must not modify it.
+     * @param t        dense index of term
+     * @return int[]   sorted dense indices of the ancestors of t
+     */
+    public int[] getAncestors(int t) { return ancestors[t]; }
+
+    /**
+     * @param t        dense index of term
+     * @return int[]   sorted dense indices of the children (direct subtypes) of t
+     */
+    public int[] getChildren(int t) { return Arrays.copyOfRange(children, childStart[t], childStart[t + 1]); }
+
+    /**
+     * @param t        dense index of term
+     * @return int[]   sorted dense indices of t and all its descendants (subtypes)
+     */
+    public int[] getDescendants(int t) {
+        return Arrays.copyOfRange(descendants, descendantStart[t], descendantStart[t + 1]);
+    }
+
+    /**
+     * @param t        dense index of term
+     * @return int[]   sorted dense indices of the parents (direct supertypes) of t
+     */
+    public int[] getParents(int t) { return Arrays.copyOfRange(parents, parentStart[t], parentStart[t + 1]); }
+
+    /**
+     * @return    dense index of the root term of the ontology
+     */
+    public int getRoot() { return root; }
+
+    /**
+     * @param t         dense index of term
+     * @return TermId   the TermId for dense index t
+     */
+    public TermId getTermId(int t) { return termIds[t]; }
+
+    /**
+     * @param t         dense index of term
+     * @return String   the name of the term (empty if the ontology gave it none)
+     */
+    public String getName(int t) { return names[t]; }
+
+    /**
+     * @param tid    TermId to look up
+     * @return int   dense index of tid, or -1 if tid is not a term of the indexed ontology
+     */
+    public int indexOf(TermId tid) {
+        Integer t = indexMap.get(tid);
+        return t == null ? -1 : t;
+    }
+
+    /**
+     * @param number    number of an HPO term (see HpoIds)
+     * @return int      dense index of the term, or -1 if it is not a term of the indexed ontology
+     */
+    public int indexOfHpoNumber(int number) {
+        int i = Arrays.binarySearch(hpoNumbers, number);
+        return i < 0 ? -1 : hpoDense[i];
+    }
+
+    /**
+     * Indicates whether or not term anc is an ancestor of (or identical to) term t.
+     * @param anc        dense index of potential ancestor (supertype)
+     * @param t          dense index of potential descendant (subtype)
+     * @return boolean   true if anc is in the ancestor closure of t, false otherwise
+     */
+    public boolean isAncestor(int anc, int t) {
+        return Arrays.binarySearch(ancestors[t], anc) >= 0;
+    }
+
+    /**
+     * @return int    number of terms in the index
+     */
+    public int size() { return termIds.length; }
+}
@@ -0,0 +1,190 @@
+package org.monarchinitiative.phcompare.stats;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * AverageLinkage clusters patients hierarchically with average linkage (UPGMA), the default method of R's
+ * cluster::agnes: the two clusters with the smallest average dissimilarity between their patients are merged
+ * until one cluster is left. The merges are found by the nearest-neighbour chain algorithm, which follows
+ * nearest neighbours from cluster to cluster until two clusters are each other's nearest neighbour and
+ * merges them; average linkage is reducible, so this gives the same merges as always merging the closest
+ * pair, in O(n^2) time rather than O(n^3). The dissimilarities between clusters are updated by the
+ * Lance-Williams formula d(k, a + b) = (|a| d(k, a) + |b| d(k, b)) / (|a| + |b|).
+ *
+ * The merges are reported as R reports them, in increasing order of height: row i of the merge matrix holds
+ * the two clusters merged at step i + 1, a patient as -(its position + 1) and an earlier merge as its step.
+ * When several pairs of clusters are equally close, the chain prefers the cluster it came from, and then the
+ * first one in patient order, so equal-height merges may be made in another order than agnes makes them.
+ */
+public class AverageLinkage {
+    private int n;
+    private int[][] merge;       // clusters merged at each step, in R's notation
+    private double[] height;     // dissimilarity of the two clusters merged at each step
+    private int[][] joined;      // a patient of each of the two clusters merged at each step
+
+    /**
+     * Clusters the patients.
+     * @param dissim        dissimilarities of the patients
+     */
+    public AverageLinkage(Dissimilarities dissim) {
+        n = dissim.size();
+        // dissimilarities between clusters, each held at the position of one of its patients
+        double[][] d = new double[n][];
+        for (int r = 0; r < n; r++) {
+            d[r] = new double[r];
+            for (int c = 0; c < r; c++) {
+                d[r][c] = dissim.get(r, c);
+            }
+        }
+        boolean[] active = new boolean[n];
+        Arrays.fill(active, true);
+        int[] size = new int[n];
+        Arrays.fill(size, 1);
+        // height of the last merge of each cluster: a merge is never lower than the merges of its clusters,
+        // even where the rounding of the Lance-Williams update would make it a few ulps lower
+        double[] top = new double[n];
+
+        int steps = Math.max(n - 1, 0);
+        int[][] found = new int[steps][];
+        double[] foundHeight = new double[steps];
+        int[] chain = new int[n];
+        int length = 0;
+        int start = 0;
+        for (int step = 0; step < steps; ) {
+            if (length == 0) {
+                while (!active[start]) {
+                    start++;
+                }
+                chain[length++] = start;
+            }
+            int a = chain[length - 1];
+            int previous = length > 1 ? chain[length - 2] : -1;
+            int b = previous;
+            double best = previous >= 0 ? get(d, a, previous) : Double.POSITIVE_INFINITY;
+            for (int c = 0; c < n; c++) {
+                if (active[c] && c != a && get(d, a, c) < best) {
+                    best = get(d, a, c);
+                    b = c;
+                }
+            }
+            if (b != previous) {
+                chain[length++] = b;
+                continue;
+            }
+            // a and b are each other's nearest neighbours: merge b into the lower of the two positions
+            length -= 2;
+            int keep = Math.min(a, b);
+            int drop = Math.max(a, b);
+            double fa = (double) size[a] / (size[a] + size[b]);
+            double fb = (double) size[b] / (size[a] + size[b]);
+            for (int c = 0; c < n; c++) {
+                if (active[c] && c != a && c != b) {
+                    set(d, keep, c, fa * get(d, a, c) + fb * get(d, b, c));
+                }
+            }
+            active[drop] = false;
+            size[keep] = size[a] + size[b];
+            found[step] = new int[] {a, b};
+            foundHeight[step] = Math.max(best, Math.max(top[a], top[b]));
+            top[keep] = foundHeight[step];
+            step++;
+        }
+        order(found, foundHeight);
+    }
+
+    private static double get(double[][] d, int r, int c) {
+        return r > c ? d[r][c] : d[c][r];
+    }
+
+    private static void set(double[][] d, int r, int c, double value) {
+        if (r > c) {
+            d[r][c] = value;
+        } else {
+            d[c][r] = value;
+        }
+    }
+
+    /**
+     * Sorts the merges by height (keeping the order of equal ones) and writes them in R's notation.
+     */
+    private void order(int[][] found, double[] foundHeight) {
+        int steps = found.length;
+        Integer[] byHeight = new Integer[steps];
+        for (int i = 0; i < steps; i++) {
+            byHeight[i] = i;
+        }
+        Arrays.sort(byHeight, Comparator.comparingDouble(i -> foundHeight[i]));
+        merge = new int[steps][];
+        height = new double[steps];
+        joined = new int[steps][];
+        int[] parent = new int[n];
+        int[] label = new int[n];       // R label of the cluster whose root is each patient
+        for (int p = 0; p < n; p++) {
+            parent[p] = p;
+            label[p] = -(p + 1);
+        }
+        for (int s = 0; s < steps; s++) {
+            int[] pair = found[byHeight[s]];
+            int ra = find(parent, pair[0]);
+            int rb = find(parent, pair[1]);
+            int la = label[ra];
+            int lb = label[rb];
+            // as in R: singletons before clusters, then in increasing order of label magnitude
+            boolean aFirst = la < 0 && lb < 0 ? -la < -lb : la < 0 || (lb > 0 && la < lb);
+            merge[s] = aFirst ? new int[] {la, lb} : new int[] {lb, la};
+            height[s] = foundHeight[byHeight[s]];
+            joined[s] = pair;
+            parent[rb] = ra;
+            label[ra] = s + 1;
+        }
+    }
+
+    private static int find(int[] parent, int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    /**
+     * Cuts the tree into k clusters by undoing the last k - 1 merges, as R's cutree does.
+     * @param k          number of clusters, from 1 to the number of patients
+     * @return int[]     cluster of each patient, numbered from 1 in the order in which they first occur
+     */
+    public int[] cut(int k) {
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException("[AverageLinkage.cut] Number of clusters must be from 1 to " + n +
+                    " but was " + k);
+        }
+        int[] parent = new int[n];
+        for (int p = 0; p < n; p++) {
+            parent[p] = p;
+        }
+        for (int s = 0; s < n - k; s++) {
+            parent[find(parent, joined[s][1])] = find(parent, joined[s][0]);
+        }
+        int[] clusterOfRoot = new int[n];
+        int[] clustering = new int[n];
+        int numbered = 0;
+        for (int p = 0; p < n; p++) {
+            int root = find(parent, p);
+            if (clusterOfRoot[root] == 0) {
+                clusterOfRoot[root] = ++numbered;
+            }
+            clustering[p] = clusterOfRoot[root];
+        }
+        return clustering;
+    }
+
+    /**
+     * @return int[][]   the two clusters merged at each step, in R's notation
+     */
+    public int[][] getMerge() { return merge; }
+
+    /**
+     * @return double[]  height of each merge
+     */
+    public double[] getHeight() { return height; }
+}
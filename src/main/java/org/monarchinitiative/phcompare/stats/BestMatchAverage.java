@@ -0,0 +1,107 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.util.Arrays;
+
+/**
+ * BestMatchAverage scores pairs of patients by information-content-based semantic similarity. Each term of
+ * one patient is matched with the most similar term of the other patient, and the best-match similarities are
+ * averaged in both directions: sim(P, Q) = (avg over p in P of max over q in Q of sim(p, q) + avg over q in Q
+ * of max over p in P of sim(p, q)) / 2. The term similarity is either Resnik's (IC of the most informative
+ * common ancestor, divided by the largest IC so that scores lie in [0, 1]) or Lin's
+ * (2 IC(MICA) / (IC(p) + IC(q))). Term similarities come from a MicaTable over the terms annotating the cohort.
+ */
+class BestMatchAverage {
+    private int[][] profiles;      // positions in the MICA table of each patient's annotated terms
+    private MicaTable mica;        // IC of the most informative common ancestor of two terms
+    private double[] termIC;       // IC of the term at each position of the MICA table
+    private boolean lin;           // true for Lin's term similarity, false for Resnik's
+    private double maxIC;          // largest IC, used to normalize Resnik's similarity
+
+    /**
+     * Prepares the patients' profiles and the MICA table.
+     * @param annotated     sorted dense term indices of the terms annotating each patient (no ancestors added)
+     * @param termIndex     index of the ontology terms and their ancestors
+     * @param ic            information content of each term
+     * @param lin           true for Lin's term similarity, false for Resnik's
+     * @param numThreads    number of worker threads for precomputing the MICA table
+     */
+    BestMatchAverage(int[][] annotated, TermIndex termIndex, InformationContent ic, boolean lin, int numThreads) {
+        this.lin = lin;
+        maxIC = ic.getMaxIC();
+        // positions in the MICA table for the terms that annotate some patient
+        int[] position = new int[termIndex.size()];
+        Arrays.fill(position, -1);
+        for (int[] terms : annotated) {
+            for (int t : terms) {
+                position[t] = 0;
+            }
+        }
+        int numTerms = 0;
+        for (int t = 0; t < position.length; t++) {
+            if (position[t] == 0) {
+                position[t] = numTerms++;
+            }
+        }
+        int[] tableTerms = new int[numTerms];
+        termIC = new double[numTerms];
+        for (int t = 0; t < position.length; t++) {
+            if (position[t] >= 0) {
+                tableTerms[position[t]] = t;
+                termIC[position[t]] = ic.get(t);
+            }
+        }
+        profiles = new int[annotated.length][];
+        for (int p = 0; p < annotated.length; p++) {
+            profiles[p] = new int[annotated[p].length];
+            for (int i = 0; i < annotated[p].length; i++) {
+                profiles[p][i] = position[annotated[p][i]];
+            }
+        }
+        mica = new MicaTable(tableTerms, termIndex, ic, numThreads);
+    }
+
+    /**
+     * Similarity of two terms at positions i and j of the MICA table.
+     */
+    private double termSimilarity(int i, int j) {
+        double resnik = mica.get(i, j);
+        if (lin) {
+            double denominator = termIC[i] + termIC[j];
+            return denominator > 0.0 ? 2.0 * resnik / denominator : 1.0;
+        }
+        return maxIC > 0.0 ? resnik / maxIC : 0.0;
+    }
+
+    /**
+     * Best-match-average similarity of two patients.
+     * @param a          position of the first patient
+     * @param b          position of the second patient
+     * @return double    similarity in [0, 1] (0 if only one patient has no annotated terms, NaN if both
+     *                   have none, as for the Jaccard similarity)
+     */
+    double score(int a, int b) {
+        int[] pa = profiles[a];
+        int[] pb = profiles[b];
+        if (pa.length == 0 || pb.length == 0) {
+            return pa.length == pb.length ? Double.NaN : 0.0;
+        }
+        return (bestMatchSum(pa, pb) / pa.length + bestMatchSum(pb, pa) / pb.length) / 2.0;
+    }
+
+    /**
+     * Sums, over the terms of one profile, the similarity of the best-matching term of the other profile.
+     */
+    private double bestMatchSum(int[] from, int[] to) {
+        double sum = 0.0;
+        for (int i : from) {
+            double best = 0.0;
+            for (int j : to) {
+                best = Math.max(best, termSimilarity(i, j));
+            }
+            sum += best;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,108 @@
+package org.monarchinitiative.phcompare.stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * BufferMatrix holds the lower triangle of a similarity matrix in ByteBuffers outside the Java heap:
+ * either direct buffers (off-heap memory) or regions of a memory-mapped temporary file, which lets the
+ * operating system page the matrix to disk when it does not fit in memory. A ByteBuffer holds at most
+ * 2 GB, so the triangle is split into chunks of whole rows, each chunk in its own buffer.
+ */
+class BufferMatrix implements SimilarityMatrix {
+    // largest number of bytes in one chunk
+    static final long CHUNK_BYTES = 1L << 30;
+
+    private int dim;               // number of rows and columns
+    private ByteBuffer[] chunks;   // buffers holding consecutive ranges of rows
+    private int[] chunkOf;         // chunk holding each row
+    private int[] rowOffset;       // byte offset of each row in its chunk
+    private File file;             // memory-mapped file, or null for direct buffers
+
+    /**
+     * Allocates the buffers for the matrix.
+     * @param dim    number of patients (rows and columns)
+     * @param dir    directory for the memory-mapped file, or null for direct buffers
+     * @throws IOException    if the memory-mapped file cannot be created
+     */
+    BufferMatrix(int dim, File dir) throws IOException {
+        this.dim = dim;
+        chunkOf = new int[dim];
+        rowOffset = new int[dim];
+        // assign rows to chunks, starting a new chunk when the next row does not fit
+        long[] chunkBytes = new long[dim + 1];
+        int numChunks = 0;
+        long bytes = 0;
+        for (int r = 0; r < dim; r++) {
+            long rowBytes = 4L * (r + 1);
+            if (bytes + rowBytes > CHUNK_BYTES) {
+                chunkBytes[numChunks++] = bytes;
+                bytes = 0;
+            }
+            chunkOf[r] = numChunks;
+            rowOffset[r] = (int) bytes;
+            bytes += rowBytes;
+        }
+        chunkBytes[numChunks++] = bytes;
+
+        chunks = new ByteBuffer[numChunks];
+        if (dir == null) {
+            for (int i = 0; i < numChunks; i++) {
+                chunks[i] = ByteBuffer.allocateDirect((int) chunkBytes[i]).order(ByteOrder.nativeOrder());
+            }
+        } else {
+            file = File.createTempFile("similarity", ".mat", dir);
+            file.deleteOnExit();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                long position = 0;
+                for (int i = 0; i < numChunks; i++) {
+                    // the mapping remains valid after the channel is closed
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkBytes[i])
+                            .order(ByteOrder.nativeOrder());
+                    position += chunkBytes[i];
+                }
+            } catch (IOException e) {
+                file.delete();
+                throw new IOException("[BufferMatrix] Cannot map similarity matrix file " +
+                        file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    @Override
+    public int size() { return dim; }
+
+    @Override
+    public double get(int r, int c) {
+        if (r < c) {
+            int tmp = r;
+            r = c;
+            c = tmp;
+        }
+        return chunks[chunkOf[r]].getFloat(rowOffset[r] + 4 * c);
+    }
+
+    @Override
+    public void set(int r, int c, double value) {
+        if (r < c) {
+            int tmp = r;
+            r = c;
+            c = tmp;
+        }
+        chunks[chunkOf[r]].putFloat(rowOffset[r] + 4 * c, (float) value);
+    }
+
+    @Override
+    public void close() {
+        // buffers are released when they are garbage collected
+        chunks = new ByteBuffer[0];
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.monarchinitiative.phcompare.AllocationScope;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ChiSquaredKernel computes the Chi-squared statistic and p-value of every term's group x (have, don't have)
+ * table in one pass, reading the counts straight from the flat term x group count matrix (the count for dense
+ * term index t and group g at position t * numGroups + g) without building a long[][] per term. All tables
+ * have the same degrees of freedom, so one ChiSquaredDistribution serves every term; commons-math builds a
+ * new distribution, with its own random generator, for each call of chiSquareTest.
+ *
+ * The arithmetic is the same as that of commons-math chiSquare and chiSquareTest (row and column sums of
+ * integer counts are exact in double precision, and each cell is added in the same order), so statistics and
+ * p-values are identical to those of the HPOChiSquared(TermId, long[][]) constructor. Terms are split into
+ * ranges scored by fork-join workers; each worker writes its own range of the output arrays.
+ */
+public class ChiSquaredKernel {
+    // smallest expected count for which the Chi-squared approximation is used
+    public static final double MIN_EXPECTED = 5.0;
+    // maximum number of terms scored without further splitting
+    private static final int TERMS_PER_TASK = 1024;
+
+    private int numGroups;                       // number of patient groups
+    private int[] groupSize;                     // number of patients in each group
+    private ChiSquaredDistribution distribution; // distribution with (numGroups - 1) degrees of freedom
+
+    /**
+     * @param groupSize    number of patients in each group
+     */
+    public ChiSquaredKernel(int[] groupSize) {
+        this.numGroups = groupSize.length;
+        this.groupSize = groupSize.clone();
+        // no random generator: the distribution is never sampled
+        distribution = new ChiSquaredDistribution((RandomGenerator) null, numGroups - 1.0);
+    }
+
+    /**
+     * Scores all terms of the count matrix.
+     * @param termCounts    flat term x group count matrix
+     * @param statistic     filled with the statistic of each term, or NaN if the term covers no patient or
+     *                      some expected count is below MIN_EXPECTED
+     * @param pValue        filled with the p-value of each term (NaN where statistic is NaN)
+     * @param numThreads    number of worker threads
+     */
+    public void compute(int[] termCounts, double[] statistic, double[] pValue, int numThreads) {
+        int numTerms = termCounts.length / numGroups;
+        KernelTask all = new KernelTask(termCounts, statistic, pValue, 0, numTerms);
+        if (numThreads > 1) {
+            ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            all.compute();
+        }
+    }
+
+    /**
+     * Scores the terms from .. to - 1 of the count matrix on the calling thread.
+     */
+    void compute(int[] termCounts, double[] statistic, double[] pValue, int from, int to) {
+        for (int t = from; t < to; t++) {
+            int offset = t * numGroups;
+            long have = 0, total = 0;
+            for (int g = 0; g < numGroups; g++) {
+                have += termCounts[offset + g];
+                total += groupSize[g];
+            }
+            long dont = total - have;
+            double sumSq = 0.0;
+            boolean sparse = have == 0;
+            for (int g = 0; g < numGroups && !sparse; g++) {
+                // same test of the expected counts as PhenoCompare.createChiSq, in exact integer arithmetic
+                if (groupSize[g] * have < MIN_EXPECTED * total || groupSize[g] * dont < MIN_EXPECTED * total) {
+                    sparse = true;
+                    break;
+                }
+                double count = termCounts[offset + g];
+                double expected = ((double) groupSize[g] * (double) have) / total;
+                sumSq += ((count - expected) * (count - expected)) / expected;
+                count = groupSize[g] - termCounts[offset + g];
+                expected = ((double) groupSize[g] * (double) dont) / total;
+                sumSq += ((count - expected) * (count - expected)) / expected;
+            }
+            if (sparse) {
+                statistic[t] = Double.NaN;
+                pValue[t] = Double.NaN;
+            } else {
+                statistic[t] = sumSq;
+                pValue[t] = 1 - distribution.cumulativeProbability(sumSq);
+            }
+        }
+    }
+
+    /**
+     * Scores a range of terms, splitting the range among fork-join workers.
+     */
+    private class KernelTask extends RecursiveAction {
+        private int[] termCounts;
+        private double[] statistic;
+        private double[] pValue;
+        private int from;
+        private int to;
+
+        KernelTask(int[] termCounts, double[] statistic, double[] pValue, int from, int to) {
+            this.termCounts = termCounts;
+            this.statistic = statistic;
+            this.pValue = pValue;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TERMS_PER_TASK) {
+                ChiSquaredKernel.this.compute(termCounts, statistic, pValue, from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new KernelTask(termCounts, statistic, pValue, from, mid),
+                        new KernelTask(termCounts, statistic, pValue, mid, to));
+            }
+        }
+    }
+}
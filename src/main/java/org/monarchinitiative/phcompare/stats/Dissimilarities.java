@@ -0,0 +1,64 @@
+package org.monarchinitiative.phcompare.stats;
+
+/**
+ * Dissimilarities holds a symmetric matrix of patient dissimilarities rounded to hundredths, as they are
+ * written to dissim.tsv, for the clustering stage. Each pair is stored as one byte (0 to 100 hundredths) of
+ * a packed lower triangle, and read back as the double closest to the decimal value, which is the value R
+ * reads from the text file; so clustering in process sees exactly the dissimilarities that R clusters.
+ */
+public class Dissimilarities {
+    // double value of each number of hundredths
+    private static final double[] VALUE = new double[101];
+    static {
+        for (int h = 0; h < VALUE.length; h++) {
+            VALUE[h] = h / 100.0;
+        }
+    }
+
+    private byte[][] rows;    // rows[r][c] for c < r, in hundredths
+
+    /**
+     * Creates a matrix with all dissimilarities 0.
+     * @param dim      number of patients
+     */
+    public Dissimilarities(int dim) {
+        rows = new byte[dim][];
+        for (int r = 0; r < dim; r++) {
+            rows[r] = new byte[r];
+        }
+    }
+
+    /**
+     * @return int    number of patients
+     */
+    public int size() { return rows.length; }
+
+    /**
+     * Sets the dissimilarity of two different patients.
+     * @param r             position of the first patient
+     * @param c             position of the second patient
+     * @param hundredths    dissimilarity in hundredths, from 0 to 100
+     */
+    public void set(int r, int c, int hundredths) {
+        if (hundredths < 0 || hundredths > 100) {
+            throw new IllegalArgumentException("[Dissimilarities.set] Dissimilarity out of range: " + hundredths);
+        }
+        if (r > c) {
+            rows[r][c] = (byte) hundredths;
+        } else {
+            rows[c][r] = (byte) hundredths;
+        }
+    }
+
+    /**
+     * @param r          position of the first patient
+     * @param c          position of the second patient
+     * @return double    dissimilarity of the two patients (0 if r == c)
+     */
+    public double get(int r, int c) {
+        if (r == c) {
+            return 0.0;
+        }
+        return VALUE[r > c ? rows[r][c] : rows[c][r]];
+    }
+}
@@ -0,0 +1,193 @@
+package org.monarchinitiative.phcompare.stats;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * ExactTest computes exact p-values for the group x (have, don't have) tables of terms too sparse for the
+ * Chi-squared approximation (some expected count below 5). Given the group sizes and the number of patients
+ * having the term, the probability of a table is multivariate hypergeometric; the p-value is the total
+ * probability of all tables no more probable than the observed one. For 2 groups this is Fisher's exact test;
+ * for more groups it is the Freeman-Halton extension, enumerating every table with the observed margins when
+ * there are at most ENUMERATION_LIMIT of them, and otherwise estimated by Monte Carlo sampling of random
+ * tables with the same margins.
+ *
+ * Table probabilities are computed in log space from a table of log factorials sized to the cohort, which is
+ * built once, so each table costs a few additions per group.
+ */
+public class ExactTest {
+    // largest number of tables enumerated for an exact k-group test
+    static final long ENUMERATION_LIMIT = 1_000_000L;
+    // number of random tables sampled when there are too many to enumerate
+    static final int MONTE_CARLO_SAMPLES = 20000;
+    // tolerance on the log probability (so relative on the probability) for a table to count as
+    // no more probable than the observed one
+    private static final double TIE_TOLERANCE = 1e-7;
+
+    private double[] logFactorial;   // logFactorial[i] = log(i!)
+    private SplittableRandom random;
+
+    /**
+     * @param numPatients    size of the cohort (largest table total)
+     * @param seed           seed for Monte Carlo sampling
+     */
+    public ExactTest(int numPatients, long seed) {
+        logFactorial = new double[numPatients + 1];
+        for (int i = 2; i <= numPatients; i++) {
+            logFactorial[i] = logFactorial[i - 1] + Math.log(i);
+        }
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Computes the exact p-value of a table.
+     * @param observed    observed[g][0] patients of group g have the term, observed[g][1] do not
+     * @return double     exact (or, for large k-group tables, Monte Carlo) two-sided p-value
+     */
+    public double pValue(long[][] observed) {
+        int k = observed.length;
+        int[] groupSize = new int[k];
+        int have = 0, total = 0;
+        for (int g = 0; g < k; g++) {
+            groupSize[g] = (int) (observed[g][0] + observed[g][1]);
+            have += observed[g][0];
+            total += groupSize[g];
+        }
+        if (total >= logFactorial.length) {
+            throw new IllegalArgumentException("[ExactTest.pValue] Table total " + total +
+                    " exceeds cohort size " + (logFactorial.length - 1));
+        }
+        // distribute the smaller column, which keeps enumeration and sampling short
+        boolean swap = total - have < have;
+        int[] counts = new int[k];
+        for (int g = 0; g < k; g++) {
+            counts[g] = (int) observed[g][swap ? 1 : 0];
+        }
+        int column = swap ? total - have : have;
+
+        double constant = logFactorial[column] + logFactorial[total - column] - logFactorial[total];
+        for (int g = 0; g < k; g++) {
+            constant += logFactorial[groupSize[g]];
+        }
+        double cutoff = logProbability(counts, groupSize, constant) + TIE_TOLERANCE;
+        if (k == 2) {
+            return fisher(groupSize, column, constant, cutoff);
+        }
+        if (numTables(groupSize, column) <= ENUMERATION_LIMIT) {
+            double[] sum = new double[1];
+            enumerate(0, groupSize, column, constant, cutoff, sum);
+            return Math.min(sum[0], 1.0);
+        }
+        return monteCarlo(groupSize, column, total, constant, cutoff);
+    }
+
+    /**
+     * Log probability of a table under the multivariate hypergeometric distribution:
+     * product over groups of C(n_g, c_g), divided by C(N, T).
+     */
+    private double logProbability(int[] counts, int[] groupSize, double constant) {
+        double logP = constant;
+        for (int g = 0; g < counts.length; g++) {
+            logP -= logFactorial[counts[g]] + logFactorial[groupSize[g] - counts[g]];
+        }
+        return logP;
+    }
+
+    /**
+     * Fisher's exact test: the tables of two groups are determined by the count of the first group.
+     */
+    private double fisher(int[] groupSize, int column, double constant, double cutoff) {
+        double sum = 0.0;
+        int lo = Math.max(0, column - groupSize[1]);
+        int hi = Math.min(groupSize[0], column);
+        for (int c = lo; c <= hi; c++) {
+            double logP = constant - logFactorial[c] - logFactorial[groupSize[0] - c]
+                    - logFactorial[column - c] - logFactorial[groupSize[1] - column + c];
+            if (logP <= cutoff) {
+                sum += Math.exp(logP);
+            }
+        }
+        return Math.min(sum, 1.0);
+    }
+
+    /**
+     * Counts the tables with the given margins, stopping once the count exceeds ENUMERATION_LIMIT.
+     */
+    private static long numTables(int[] groupSize, int column) {
+        // ways[r] = number of ways to place r patients in the groups considered so far
+        long[] ways = new long[column + 1];
+        ways[0] = 1;
+        for (int size : groupSize) {
+            long[] next = new long[column + 1];
+            for (int r = 0; r <= column; r++) {
+                if (ways[r] == 0) {
+                    continue;
+                }
+                for (int c = 0; c <= size && r + c <= column; c++) {
+                    next[r + c] = Math.min(next[r + c] + ways[r], ENUMERATION_LIMIT + 1);
+                }
+            }
+            ways = next;
+        }
+        return ways[column];
+    }
+
+    /**
+     * Freeman-Halton test: adds up the probabilities of all tables no more probable than the observed one,
+     * choosing the count of group g and recursing on the remaining groups.
+     */
+    private void enumerate(int g, int[] groupSize, int remaining, double logP, double cutoff, double[] sum) {
+        int k = groupSize.length;
+        if (g == k - 1) {
+            if (remaining > groupSize[g]) {
+                return;
+            }
+            double p = logP - logFactorial[remaining] - logFactorial[groupSize[g] - remaining];
+            if (p <= cutoff) {
+                sum[0] += Math.exp(p);
+            }
+            return;
+        }
+        int rest = 0;
+        for (int h = g + 1; h < k; h++) {
+            rest += groupSize[h];
+        }
+        int lo = Math.max(0, remaining - rest);
+        int hi = Math.min(groupSize[g], remaining);
+        for (int c = lo; c <= hi; c++) {
+            enumerate(g + 1, groupSize, remaining - c,
+                    logP - logFactorial[c] - logFactorial[groupSize[g] - c], cutoff, sum);
+        }
+    }
+
+    /**
+     * Estimates the Freeman-Halton p-value from random tables with the observed margins, each drawn by
+     * choosing column patients of the cohort at random without replacement.
+     */
+    private double monteCarlo(int[] groupSize, int column, int total, double constant, double cutoff) {
+        int[] labels = new int[total];
+        int p = 0;
+        for (int g = 0; g < groupSize.length; g++) {
+            for (int i = 0; i < groupSize[g]; i++) {
+                labels[p++] = g;
+            }
+        }
+        int[] counts = new int[groupSize.length];
+        int extreme = 0;
+        for (int s = 0; s < MONTE_CARLO_SAMPLES; s++) {
+            Arrays.fill(counts, 0);
+            // partial Fisher-Yates shuffle: the first column labels are a random sample without replacement
+            for (int i = 0; i < column; i++) {
+                int j = i + random.nextInt(total - i);
+                int tmp = labels[i];
+                labels[i] = labels[j];
+                labels[j] = tmp;
+                counts[labels[i]]++;
+            }
+            if (logProbability(counts, groupSize, constant) <= cutoff) {
+                extreme++;
+            }
+        }
+        return (extreme + 1.0) / (MONTE_CARLO_SAMPLES + 1.0);
+    }
+}
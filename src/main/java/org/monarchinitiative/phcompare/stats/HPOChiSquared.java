@@ -10,10 +10,14 @@ import static org.apache.commons.math3.stat.inference.TestUtils.chiSquareTest;
  * @since 01 Sep 2017
  */
 public class HPOChiSquared implements Comparable<HPOChiSquared> {
+    // method of correcting p-values for multiple comparisons
+    public enum Correction {BONFERRONI, MAXT}
+
     private double chiSquare;    // chi-squared statistic
     private double chiSquareP;   // p-value associated with the chi-squared statistic for this HPO term
-    private double correctedP = -1.0;   // p-value after Bonferroni correction for multiple comparisons
+    private double correctedP = -1.0;   // p-value after correction for multiple comparisons
     private TermId HPOTermId;    // HPO term for which this is the chi-squared statistic
+    private boolean exact;       // true if chiSquareP comes from an exact test rather than the Chi-squared test
 
     public HPOChiSquared(TermId hpoTerm, long[][] observed) {
         chiSquare = chiSquare(observed);
@@ -21,6 +25,33 @@ public class HPOChiSquared implements Comparable<HPOChiSquared> {
         HPOTermId = hpoTerm;
     }
 
+    /**
+     * Creates an HPOChiSquared object from a statistic and p-value already computed, e.g. by ChiSquaredKernel.
+     * @param hpoTerm       HPO term id
+     * @param chiSquare     chi-squared statistic
+     * @param chiSquareP    p-value associated with the statistic
+     */
+    public HPOChiSquared(TermId hpoTerm, double chiSquare, double chiSquareP) {
+        this.chiSquare = chiSquare;
+        this.chiSquareP = chiSquareP;
+        HPOTermId = hpoTerm;
+    }
+
+    /**
+     * Creates an HPOChiSquared object for a table too sparse for the Chi-squared approximation. The
+     * chi-squared statistic is still computed, so that the term is ranked with the others, but the p-value
+     * is the one given by an exact test.
+     * @param hpoTerm     HPO term id
+     * @param observed    observed counts of patients in each group who have/do not have the phenotype
+     * @param exactP      p-value of an exact test of the table (see ExactTest)
+     */
+    public HPOChiSquared(TermId hpoTerm, long[][] observed, double exactP) {
+        chiSquare = chiSquare(observed);
+        chiSquareP = exactP;
+        HPOTermId = hpoTerm;
+        exact = true;
+    }
+
     /**
      * Compares the argument to this HPOChiSquared object. Orders first by chiSquare value, then by
      * HPOTermId.
@@ -41,6 +72,12 @@ public class HPOChiSquared implements Comparable<HPOChiSquared> {
         return correctedP;
     }
 
+    /**
+     * Records a p-value corrected outside this class, e.g. by MaxTPermutation.
+     * @param p    corrected p-value
+     */
+    public void setCorrectedP(double p) { correctedP = p; }
+
     /**
      * Two HPOChiSquared objects are considered equal if they have the same chiSquare value and
      * the same HPO term id.
@@ -65,6 +102,8 @@ public class HPOChiSquared implements Comparable<HPOChiSquared> {
 
     public TermId getHPOTermId() { return HPOTermId; }
 
+    public boolean isExact() { return exact; }
+
     @Override
     public int hashCode() {
         int result;
@@ -0,0 +1,113 @@
+package org.monarchinitiative.phcompare.stats;
+
+import com.github.phenomics.ontolib.ontology.data.ImmutableTermId;
+import com.github.phenomics.ontolib.ontology.data.TermId;
+import org.monarchinitiative.phcompare.Patient;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * InformationContent holds the information content (IC) of every term of the dense term index. The IC of a
+ * term t is -log(n(t) / n(root)), where n(t) is the number of annotated objects (patients or diseases) that
+ * are annotated with t or one of its descendants. A term that annotates no object is given the IC of a term
+ * annotating exactly one object, so that terms missing from the annotation source are treated as the most
+ * specific ones rather than being undefined.
+ */
+public class InformationContent {
+    private double[] ic;      // information content of each term, by dense term index
+    private double maxIC;     // largest information content in the table
+
+    /**
+     * Computes the information content of each term from the number of objects it covers.
+     * @param covered      number of objects annotated with each term or one of its descendants
+     * @param termIndex    index of the ontology terms and their ancestors
+     */
+    InformationContent(int[] covered, TermIndex termIndex) {
+        ic = new double[termIndex.size()];
+        double total = covered[termIndex.getRoot()];
+        for (int t = 0; t < ic.length; t++) {
+            ic[t] = total > 0 ? -Math.log(Math.max(covered[t], 1) / total) : 0.0;
+            maxIC = Math.max(maxIC, ic[t]);
+        }
+    }
+
+    /**
+     * Computes the information content of each term from the phenotypes of a cohort of patients.
+     * @param patients     patients whose HPO terms are the annotations
+     * @param termIndex    index of the ontology terms and their ancestors
+     * @return InformationContent   IC table for the cohort
+     */
+    public static InformationContent fromCohort(List<Patient> patients, TermIndex termIndex) {
+        int[] covered = new int[termIndex.size()];
+        for (Patient p : patients) {
+            for (int t : termIndex.ancestorClosureOfHpoNumbers(p.getHpoIds(), true)) {
+                covered[t]++;
+            }
+        }
+        return new InformationContent(covered, termIndex);
+    }
+
+    /**
+     * Computes the information content of each term from an annotation file such as HPO's phenotype.hpoa
+     * (first column is the object id, e.g. OMIM:123456) or the older phenotype_annotation.tab (first two
+     * columns are database and object id). The HPO term of each line is the first column that holds an
+     * HPO id; lines whose qualifier is NOT, comment lines, and lines without an HPO id are skipped.
+     * @param path         path of annotation file
+     * @param termIndex    index of the ontology terms and their ancestors
+     * @return InformationContent   IC table for the annotated objects
+     * @throws IOException if file cannot be found or read
+     */
+    public static InformationContent fromAnnotationFile(String path, TermIndex termIndex) throws IOException {
+        File annotationFile = new File(path);
+        if (!annotationFile.exists()) {
+            throw new IOException("[InformationContent.fromAnnotationFile] Cannot find annotation file " + path);
+        }
+        Map<String, Set<TermId>> annotations = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(annotationFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("#") || line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                String object = fields[0].contains(":") || fields.length < 2 ?
+                        fields[0] : fields[0] + ":" + fields[1];
+                TermId hpoTerm = null;
+                boolean negated = false;
+                for (String f : fields) {
+                    if (f.equals("NOT")) {
+                        negated = true;
+                    } else if (hpoTerm == null && f.startsWith("HP:")) {
+                        hpoTerm = ImmutableTermId.constructWithPrefix(f);
+                    }
+                }
+                if (hpoTerm != null && !negated) {
+                    annotations.computeIfAbsent(object, k -> new HashSet<>()).add(hpoTerm);
+                }
+            }
+        }
+        int[] covered = new int[termIndex.size()];
+        for (Set<TermId> terms : annotations.values()) {
+            for (int t : termIndex.ancestorClosure(terms, true)) {
+                covered[t]++;
+            }
+        }
+        return new InformationContent(covered, termIndex);
+    }
+
+    /**
+     * @param t          dense index of term
+     * @return double    information content of the term
+     */
+    public double get(int t) { return ic[t]; }
+
+    /**
+     * @return double    largest information content of any term
+     */
+    public double getMaxIC() { return maxIC; }
+}
@@ -0,0 +1,96 @@
+package org.monarchinitiative.phcompare.stats;
+
+/**
+ * JaccardKernel scores pairs of patients by the Jaccard similarity of their ancestor-closed profiles,
+ * using packed bitsets. Each profile is converted once to a long[] with one bit per term, and a pair is
+ * scored as popcount(AND) / popcount(OR), where popcount(OR) is derived from the cardinalities of the two
+ * profiles. Only the terms that occur in some profile are given a bit (in ascending order of their dense
+ * term index), which keeps the bitsets short for cohorts that touch a small part of the ontology. The
+ * range of non-zero words of each bitset is recorded so that a pair only scans the words where both
+ * profiles have terms.
+ *
+ * Scores are identical to ontolib's JaccardSimilarity: both count the same intersection and union, and
+ * divide the two counts as doubles (so a pair of empty profiles scores NaN).
+ */
+class JaccardKernel {
+    private long[][] bits;       // packed profile of each patient
+    private int[] cardinality;   // number of terms in each profile
+    private int[] firstWord;     // first non-zero word of each profile
+    private int[] lastWord;      // last non-zero word of each profile (firstWord - 1 if profile is empty)
+
+    /**
+     * Packs the profiles into bitsets.
+     * @param profiles    sorted, duplicate-free dense term indices for each patient
+     * @param numTerms    number of terms in the dense term index
+     */
+    JaccardKernel(int[][] profiles, int numTerms) {
+        // assign consecutive bit positions to the terms that occur in some profile
+        int[] bitOf = new int[numTerms];
+        for (int[] profile : profiles) {
+            for (int t : profile) {
+                bitOf[t] = 1;
+            }
+        }
+        int numBits = 0;
+        for (int t = 0; t < numTerms; t++) {
+            bitOf[t] = bitOf[t] == 0 ? -1 : numBits++;
+        }
+        int words = (numBits + 63) >>> 6;
+
+        int dim = profiles.length;
+        bits = new long[dim][];
+        cardinality = new int[dim];
+        firstWord = new int[dim];
+        lastWord = new int[dim];
+        for (int p = 0; p < dim; p++) {
+            long[] b = new long[words];
+            for (int t : profiles[p]) {
+                int bit = bitOf[t];
+                b[bit >>> 6] |= 1L << bit;
+            }
+            bits[p] = b;
+            cardinality[p] = profiles[p].length;
+            if (profiles[p].length == 0) {
+                firstWord[p] = 0;
+                lastWord[p] = -1;
+            } else {
+                firstWord[p] = bitOf[profiles[p][0]] >>> 6;
+                lastWord[p] = bitOf[profiles[p][profiles[p].length - 1]] >>> 6;
+            }
+        }
+    }
+
+    /**
+     * @param p       position of the patient
+     * @return int    number of terms in the patient's profile
+     */
+    int cardinality(int p) { return cardinality[p]; }
+
+    /**
+     * Counts the terms shared by two profiles.
+     * @param a       position of the first patient
+     * @param b       position of the second patient
+     * @return int    popcount of the AND of the two bitsets
+     */
+    int intersection(int a, int b) {
+        long[] bitsA = bits[a];
+        long[] bitsB = bits[b];
+        int end = Math.min(lastWord[a], lastWord[b]);
+        int common = 0;
+        for (int w = Math.max(firstWord[a], firstWord[b]); w <= end; w++) {
+            common += Long.bitCount(bitsA[w] & bitsB[w]);
+        }
+        return common;
+    }
+
+    /**
+     * Jaccard similarity of two profiles.
+     * @param a          position of the first patient
+     * @param b          position of the second patient
+     * @return double    size of intersection divided by size of union (NaN if both profiles are empty)
+     */
+    double score(int a, int b) {
+        int common = intersection(a, b);
+        return (double) common / (double) (cardinality[a] + cardinality[b] - common);
+    }
+}
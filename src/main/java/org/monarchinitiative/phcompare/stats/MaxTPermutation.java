@@ -0,0 +1,237 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.monarchinitiative.phcompare.AllocationScope;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * MaxTPermutation corrects the p-values of the term-level Chi-squared tests for multiple comparisons with the
+ * Westfall-Young step-down maxT procedure. The group labels of the patients are shuffled many times; for each
+ * permutation the Chi-squared statistic of every tested term is recomputed, and a term's adjusted p-value is
+ * the fraction of permutations in which the largest statistic among the terms ranked at or below it reaches
+ * its observed statistic. Unlike Bonferroni, this accounts for the strong correlation between HPO terms that
+ * share patients through the ontology.
+ *
+ * Every term keeps the same row and column totals under permutation, so the tests all have the same degrees of
+ * freedom and ordering by statistic is the same as ordering by p-value. Statistics are computed from primitive
+ * count arrays: the patients of each term are held as an int[] of cohort indices, and each permutation only
+ * relabels the patients. Permutations run in batches; within a batch they are split into tasks, each with its
+ * own SplittableRandom split from one seeded generator on the calling thread, so the result depends on the
+ * seed but not on the number of threads. After each batch the run stops early if every adjusted p-value is
+ * clearly on one side of the significance level.
+ */
+public class MaxTPermutation {
+    // number of permutations between checks for stable p-values
+    static final int BATCH = 1000;
+    // number of permutations scored by one fork-join task
+    private static final int PERMUTATIONS_PER_TASK = 50;
+    // an adjusted p-value is stable when it is this many standard errors away from the significance level
+    private static final double STABLE_Z = 3.0;
+    // relative tolerance for a permuted statistic to count as reaching the observed one
+    private static final double TIE_TOLERANCE = 1e-9;
+
+    private int[][] members;        // cohort indices of the patients covered by each term
+    private int[] groupOf;          // group of each patient of the cohort
+    private int numGroups;          // number of patient groups
+    private double[] groupInv;      // 1 / size of each group
+    private double[] groupShare;    // size of each group / size of cohort
+    private double[] termScale;     // N^2 / (T (N - T)) for each term with T patients in a cohort of N
+    private int[] order;            // terms in descending order of observed statistic
+    private double[] threshold;     // observed statistic of order[j], less the tie tolerance
+    private SplittableRandom random;
+    private long[] exceed;          // exceed[j]: permutations whose maximum over order[j..] reached threshold[j]
+    private int permutations;       // number of permutations run so far
+
+    /**
+     * @param members      cohort indices of the patients covered by each tested term
+     * @param groupOf      group of each patient of the cohort
+     * @param numGroups    number of patient groups
+     * @param seed         seed for the random permutations
+     */
+    public MaxTPermutation(int[][] members, int[] groupOf, int numGroups, long seed) {
+        this.members = members;
+        this.groupOf = groupOf;
+        this.numGroups = numGroups;
+        int n = groupOf.length;
+        int[] groupSize = new int[numGroups];
+        for (int g : groupOf) {
+            groupSize[g]++;
+        }
+        groupInv = new double[numGroups];
+        groupShare = new double[numGroups];
+        for (int g = 0; g < numGroups; g++) {
+            groupInv[g] = 1.0 / groupSize[g];
+            groupShare[g] = groupSize[g] / (double) n;
+        }
+        termScale = new double[members.length];
+        for (int i = 0; i < members.length; i++) {
+            double total = members[i].length;
+            termScale[i] = (double) n * n / (total * (n - total));
+        }
+
+        double[] observed = statistics(groupOf, new int[numGroups], new double[members.length]);
+        Integer[] byStat = new Integer[members.length];
+        for (int i = 0; i < byStat.length; i++) {
+            byStat[i] = i;
+        }
+        Arrays.sort(byStat, (a, b) -> Double.compare(observed[b], observed[a]));
+        order = new int[members.length];
+        threshold = new double[members.length];
+        for (int j = 0; j < order.length; j++) {
+            order[j] = byStat[j];
+            threshold[j] = observed[order[j]] * (1.0 - TIE_TOLERANCE);
+        }
+        random = new SplittableRandom(seed);
+        exceed = new long[members.length];
+    }
+
+    /**
+     * Runs permutations in batches until the adjusted p-values are stable or maxPermutations have been run.
+     * @param maxPermutations    largest number of permutations
+     * @param alpha              significance level at which stability is judged
+     * @param numThreads         number of worker threads
+     * @return double[]          adjusted p-value of each term, in the order of the members array
+     */
+    public double[] adjustedPvalues(int maxPermutations, double alpha, int numThreads) {
+        ForkJoinPool pool = numThreads > 1 ? AllocationScope.forkJoinPool(numThreads) : null;
+        try {
+            double[] adjusted;
+            do {
+                int batch = Math.min(BATCH, maxPermutations - permutations);
+                int numTasks = (batch + PERMUTATIONS_PER_TASK - 1) / PERMUTATIONS_PER_TASK;
+                SplittableRandom[] streams = new SplittableRandom[numTasks];
+                for (int i = 0; i < numTasks; i++) {
+                    streams[i] = random.split();
+                }
+                PermutationTask all = new PermutationTask(streams, batch, 0, numTasks);
+                long[] counts = pool != null ? pool.invoke(all) : all.compute();
+                for (int j = 0; j < exceed.length; j++) {
+                    exceed[j] += counts[j];
+                }
+                permutations += batch;
+                adjusted = currentPvalues();
+            } while (permutations < maxPermutations && !isStable(adjusted, alpha));
+            return adjusted;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return int    number of permutations run so far
+     */
+    public int getPermutations() { return permutations; }
+
+    /**
+     * Step-down adjusted p-values from the permutations run so far, made monotone in the order of the
+     * observed statistics.
+     */
+    private double[] currentPvalues() {
+        double[] adjusted = new double[order.length];
+        double previous = 0.0;
+        for (int j = 0; j < order.length; j++) {
+            double p = Math.max(previous, (exceed[j] + 1.0) / (permutations + 1.0));
+            adjusted[order[j]] = p;
+            previous = p;
+        }
+        return adjusted;
+    }
+
+    private boolean isStable(double[] adjusted, double alpha) {
+        for (double p : adjusted) {
+            double se = Math.sqrt(p * (1.0 - p) / permutations);
+            if (Math.abs(p - alpha) <= STABLE_Z * se) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the Chi-squared statistic of every term for one labelling of the cohort. With c patients of a
+     * group of size n having a term covering T of the N patients, the expected counts are E1 = nT/N and
+     * E0 = n(N-T)/N, and both cells of the group contribute (c - E1)^2, so the statistic is
+     * N^2 / (T (N-T)) * sum over groups of (c - nT/N)^2 / n.
+     * @param labels    group of each patient of the cohort
+     * @param counts    scratch array with one entry per group
+     * @param stats     array to be filled with the statistic of each term
+     * @return double[] stats
+     */
+    private double[] statistics(int[] labels, int[] counts, double[] stats) {
+        for (int i = 0; i < members.length; i++) {
+            Arrays.fill(counts, 0);
+            for (int p : members[i]) {
+                counts[labels[p]]++;
+            }
+            double total = members[i].length;
+            double sum = 0.0;
+            for (int g = 0; g < numGroups; g++) {
+                double diff = counts[g] - groupShare[g] * total;
+                sum += diff * diff * groupInv[g];
+            }
+            stats[i] = termScale[i] * sum;
+        }
+        return stats;
+    }
+
+    /**
+     * Scores a range of permutation tasks, splitting the range among fork-join workers.
+     */
+    private class PermutationTask extends RecursiveTask<long[]> {
+        private SplittableRandom[] streams;   // random stream of each task of the batch
+        private int batch;                    // number of permutations in the batch
+        private int from;
+        private int to;
+
+        PermutationTask(SplittableRandom[] streams, int batch, int from, int to) {
+            this.streams = streams;
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                PermutationTask left = new PermutationTask(streams, batch, from, mid);
+                left.fork();
+                long[] counts = new PermutationTask(streams, batch, mid, to).compute();
+                long[] leftCounts = left.join();
+                for (int j = 0; j < counts.length; j++) {
+                    counts[j] += leftCounts[j];
+                }
+                return counts;
+            }
+            long[] counts = new long[order.length];
+            int[] labels = groupOf.clone();
+            int[] scratch = new int[numGroups];
+            double[] stats = new double[members.length];
+            SplittableRandom rng = streams[from];
+            int end = Math.min(batch, (from + 1) * PERMUTATIONS_PER_TASK);
+            for (int perm = from * PERMUTATIONS_PER_TASK; perm < end; perm++) {
+                // Fisher-Yates shuffle; shuffling the previous permutation again gives a uniform permutation
+                for (int i = labels.length - 1; i > 0; i--) {
+                    int k = rng.nextInt(i + 1);
+                    int tmp = labels[i];
+                    labels[i] = labels[k];
+                    labels[k] = tmp;
+                }
+                statistics(labels, scratch, stats);
+                double max = Double.NEGATIVE_INFINITY;
+                for (int j = order.length - 1; j >= 0; j--) {
+                    max = Math.max(max, stats[order[j]]);
+                    if (max >= threshold[j]) {
+                        counts[j]++;
+                    }
+                }
+            }
+            return counts;
+        }
+    }
+}
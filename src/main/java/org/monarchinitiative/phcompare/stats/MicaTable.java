@@ -0,0 +1,160 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.monarchinitiative.phcompare.AllocationScope;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MicaTable gives the information content of the most informative common ancestor (MICA) of two terms,
+ * i.e. the Resnik similarity of the two terms. The table covers a fixed set of terms (in phenoCompare, the
+ * terms that annotate some patient), addressed by their position in that set. When the packed lower
+ * triangle of the table has at most MAX_ENTRIES cells it is precomputed, in parallel, as float values.
+ * Otherwise the MICAs are memoized as they are looked up, in a direct-mapped cache of CACHE_SLOTS term pairs
+ * (64 MB, the size of the largest precomputed table): a lookup intersects the two ancestor closures only when
+ * its pair is not in its slot, and then replaces the pair of the slot. The pairs of frequent terms, which
+ * most best-match comparisons look up, stay in the cache.
+ */
+class MicaTable {
+    // largest number of cells precomputed (64 MB of float values)
+    static final long MAX_ENTRIES = 16L * 1024 * 1024;
+    // smallest number of rows precomputed by one worker without further splitting
+    private static final int ROWS_PER_TASK = 16;
+    // number of slots of the cache used when the table is too large (64 MB of long values)
+    static final int CACHE_SLOTS = 1 << 23;
+    // largest number of terms whose pairs are memoized: a pair and its MICA must fit one long
+    private static final int MAX_CACHED_TERMS = 1 << 16;
+
+    private int[] terms;               // dense term index of each position of the table
+    private TermIndex termIndex;       // index of the ontology terms and their ancestors
+    private InformationContent ic;     // information content of each term
+    private float[] table;             // packed lower triangle, or null if computed on demand
+    // when computed on demand: each slot holds 1 + the packed lower triangle index of a pair of positions in
+    // its high 32 bits (0 for an empty slot) and the float bits of the pair's MICA in its low 32 bits
+    private AtomicLongArray cache;
+
+    /**
+     * Creates the table for a set of terms, precomputing it if it is small enough.
+     * @param terms         dense term indices covered by the table
+     * @param termIndex     index of the ontology terms and their ancestors
+     * @param ic            information content of each term
+     * @param numThreads    number of worker threads for precomputing the table
+     */
+    MicaTable(int[] terms, TermIndex termIndex, InformationContent ic, int numThreads) {
+        this(terms, termIndex, ic, numThreads, MAX_ENTRIES);
+    }
+
+    /**
+     * Creates the table for a set of terms, precomputing it if it has at most maxEntries cells.
+     */
+    MicaTable(int[] terms, TermIndex termIndex, InformationContent ic, int numThreads, long maxEntries) {
+        this.terms = terms;
+        this.termIndex = termIndex;
+        this.ic = ic;
+        long cells = (long) terms.length * (terms.length + 1) / 2;
+        if (cells > maxEntries) {
+            if (terms.length < MAX_CACHED_TERMS) {
+                cache = new AtomicLongArray(CACHE_SLOTS);
+            }
+        } else {
+            table = new float[(int) cells];
+            RowTask all = new RowTask(0, terms.length);
+            if (numThreads > 1) {
+                ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+                try {
+                    pool.invoke(all);
+                } finally {
+                    pool.shutdown();
+                }
+            } else {
+                all.compute();
+            }
+        }
+    }
+
+    /**
+     * Information content of the most informative common ancestor of the terms at two positions.
+     * @param i          position of the first term
+     * @param j          position of the second term
+     * @return double    IC of the MICA of the two terms
+     */
+    double get(int i, int j) {
+        if (table != null) {
+            return i >= j ? table[triangleIndex(i, j)] : table[triangleIndex(j, i)];
+        }
+        if (cache == null) {
+            // same precision as the precomputed table
+            return (float) computeMica(i, j);
+        }
+        long key = 1L + (i >= j ? triangleIndex(i, j) : triangleIndex(j, i));
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(CACHE_SLOTS)));
+        long entry = cache.get(slot);
+        if (entry >>> 32 == key) {
+            return Float.intBitsToFloat((int) entry);
+        }
+        float mica = (float) computeMica(i, j);
+        cache.lazySet(slot, key << 32 | (Float.floatToRawIntBits(mica) & 0xFFFFFFFFL));
+        return mica;
+    }
+
+    /**
+     * Intersects the ancestor closures of the terms at positions i and j, keeping the largest IC.
+     */
+    private double computeMica(int i, int j) {
+        int[] anc1 = termIndex.getAncestors(terms[i]);
+        int[] anc2 = termIndex.getAncestors(terms[j]);
+        double best = 0.0;
+        int a = 0, b = 0;
+        while (a < anc1.length && b < anc2.length) {
+            if (anc1[a] < anc2[b]) {
+                a++;
+            } else if (anc1[a] > anc2[b]) {
+                b++;
+            } else {
+                best = Math.max(best, ic.get(anc1[a]));
+                a++;
+                b++;
+            }
+        }
+        return best;
+    }
+
+    private static int triangleIndex(int i, int j) {
+        return (int) ((long) i * (i + 1) / 2 + j);
+    }
+
+    /**
+     * @return int    number of terms covered by the table
+     */
+    int size() { return terms.length; }
+
+    /**
+     * Precomputes a range of rows of the table, splitting the range among fork-join workers.
+     */
+    private class RowTask extends RecursiveAction {
+        private int from;
+        private int to;
+
+        RowTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    int rowStart = triangleIndex(i, 0);
+                    for (int j = 0; j <= i; j++) {
+                        table[rowStart + j] = (float) computeMica(i, j);
+                    }
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(from, mid), new RowTask(mid, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,749 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.monarchinitiative.phcompare.AllocationScope;
+import org.monarchinitiative.phcompare.Patient;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * NearestNeighbors finds the k patients of a cohort most similar to a given patient without scoring all
+ * pairs. An inverted index maps each term of the patients' ancestor-closed profiles to the cohort patients
+ * whose profiles hold it; only patients sharing a term with the query are candidates, and a candidate is
+ * scored only if an upper bound on its similarity can still beat the k-th best score found so far.
+ *    --- JACCARD: the terms of a profile are ordered from the rarest in the cohort to the most common, and
+ *    the postings of the query's terms are scanned in that order (prefix filtering). Once the terms left
+ *    after position i could not give an overlap reaching the k-th best score (|x| - i &lt; score |x|), no
+ *    unseen patient can enter the top k and the scan stops. A candidate is also skipped if the overlap
+ *    bound from its position and its profile size (length filter) cannot reach that score; the postings
+ *    of each term are sorted by profile size, so the candidates passing the length filter are found by
+ *    binary search rather than by scanning the whole posting list.
+ *    --- RESNIK: the postings of the query's terms with positive IC are scanned in decreasing order of IC.
+ *    A patient first met at a term shares no more informative term with the query, so its similarity is
+ *    at most IC(term) / max IC, and the scan stops once that bound falls below the k-th best score.
+ *    --- LIN: candidates are the patients sharing a term of positive IC with the query (or, like the
+ *    query, annotated with a term of IC 0); Lin's term similarity has no bound below 1, so all are scored.
+ * Patients with a similarity of 0 (or NaN) to the query are never neighbours. Scores are identical to those
+ * of PatientSimilarity, and ties are broken by position in the cohort, so the neighbours are exactly the
+ * first k of the row of the full similarity matrix sorted by decreasing similarity.
+ *
+ * Query patients that are not part of the cohort (e.g. newly referred patients) are given to the
+ * constructor after the cohort; they are scored against the cohort but never indexed.
+ *
+ * The same searches also find all pairs of cohort patients whose similarity reaches a fixed threshold (the
+ * edges of a sparse similarity graph): the bounds above are then compared with the threshold from the
+ * first key on, rather than with the k-th best score once k neighbours have been found. For JACCARD only the
+ * prefix of each cohort profile is indexed for this search, the terms a patient reaching the threshold must
+ * share with it, so the postings of the common terms, which end the profiles, are neither built nor scanned.
+ */
+public class NearestNeighbors {
+    // smallest number of query patients handled by one worker without further splitting
+    private static final int QUERIES_PER_TASK = 64;
+    // relative slack on the Resnik bound, for the rounding of the averages of BestMatchAverage
+    private static final double BOUND_SLACK = 1e-9;
+
+    private PatientSimilarity.Metric metric;
+    private int numIndexed;            // patients 0 .. numIndexed - 1 are the cohort, the rest are queries
+    private int[][] keys;              // terms of each patient in scan order (ranks for JACCARD, else term indices)
+    private int[] postingStart;        // postings of key t are postings[postingStart[t] .. postingStart[t + 1] - 1]
+    private int[] postings;            // cohort positions of the patients holding each key, in ascending order
+    private double[] keyBound;         // RESNIK: bound on the similarity of a patient first met at each key
+    private JaccardKernel jaccard;     // JACCARD scores (null for the other metrics)
+    private BestMatchAverage bma;      // RESNIK and LIN scores (null for JACCARD)
+    private LongAdder pairsScored = new LongAdder();
+    private LongAdder pairsSearched = new LongAdder();
+    private LongAdder pairsFound = new LongAdder();
+
+    /**
+     * A neighbour of a patient: its position in the cohort and its similarity to the patient.
+     */
+    public static final class Neighbor {
+        private final int position;
+        private final double similarity;
+
+        Neighbor(int position, double similarity) {
+            this.position = position;
+            this.similarity = similarity;
+        }
+
+        /**
+         * @return int       position of the neighbour in the cohort
+         */
+        public int getPosition() { return position; }
+
+        /**
+         * @return double    similarity of the neighbour to the query patient
+         */
+        public double getSimilarity() { return similarity; }
+    }
+
+    /**
+     * Neighbours of a patient held in two arrays, positions and similarities, rather than as Neighbor objects:
+     * the rows of a sparse similarity graph of a large cohort may hold many of them.
+     */
+    public static final class Edges {
+        private final int[] positions;
+        private final double[] similarities;
+
+        Edges(int[] positions, double[] similarities) {
+            this.positions = positions;
+            this.similarities = similarities;
+        }
+
+        /**
+         * Packs a list of neighbours, keeping their order.
+         * @param neighbors      neighbours of a patient
+         * @return Edges         the same neighbours in arrays
+         */
+        public static Edges of(List<Neighbor> neighbors) {
+            int[] positions = new int[neighbors.size()];
+            double[] similarities = new double[neighbors.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = neighbors.get(i).position;
+                similarities[i] = neighbors.get(i).similarity;
+            }
+            return new Edges(positions, similarities);
+        }
+
+        /**
+         * @return int       number of neighbours
+         */
+        public int size() { return positions.length; }
+
+        /**
+         * @param i          index of the neighbour
+         * @return int       position of the neighbour in the cohort
+         */
+        public int getPosition(int i) { return positions[i]; }
+
+        /**
+         * @param i          index of the neighbour
+         * @return double    similarity of the neighbour to the patient
+         */
+        public double getSimilarity(int i) { return similarities[i]; }
+    }
+
+    /**
+     * Builds the inverted index of a cohort.
+     * @param cohort          patients among which neighbours are found
+     * @param queries         further patients whose neighbours are wanted, not part of the cohort (may be empty)
+     * @param termIndex       index of the ontology terms and their ancestors
+     * @param metric          similarity metric
+     * @param ic              information content of each term (not used by JACCARD, may be null)
+     * @param numThreads      number of worker threads for precomputing the MICA table of RESNIK and LIN
+     */
+    public NearestNeighbors(List<Patient> cohort, List<Patient> queries, TermIndex termIndex,
+                            PatientSimilarity.Metric metric, InformationContent ic, int numThreads) {
+        this.metric = metric;
+        numIndexed = cohort.size();
+        List<Patient> all = new ArrayList<>(cohort);
+        all.addAll(queries);
+        int dim = all.size();
+        int numTerms = termIndex.size();
+        if (metric == PatientSimilarity.Metric.JACCARD) {
+            // profiles without the root, as scored by JaccardKernel
+            int[][] profiles = new int[dim][];
+            for (int p = 0; p < dim; p++) {
+                profiles[p] = termIndex.ancestorClosureOfHpoNumbers(all.get(p).getHpoIds(), false);
+            }
+            jaccard = new JaccardKernel(profiles, numTerms);
+            keys = rankProfiles(profiles, numTerms);
+        } else {
+            int[][] annotated = new int[dim][];
+            for (int p = 0; p < dim; p++) {
+                annotated[p] = PatientSimilarity.annotatedTerms(all.get(p), termIndex);
+            }
+            bma = new BestMatchAverage(annotated, termIndex, ic, metric == PatientSimilarity.Metric.LIN,
+                    numThreads);
+            keys = icKeys(all, annotated, termIndex, ic, metric == PatientSimilarity.Metric.LIN);
+            keyBound = new double[numTerms + 1];
+            for (int t = 0; t < numTerms; t++) {
+                keyBound[t] = ic.getMaxIC() > 0.0 ? (float) ic.get(t) / ic.getMaxIC() : 0.0;
+            }
+        }
+        buildPostings(metric == PatientSimilarity.Metric.JACCARD ? numTerms : numTerms + 1);
+    }
+
+    /**
+     * Converts profiles to ranks of their terms, the rarest term in the cohort having rank 0, and sorts each
+     * profile by rank. Terms that only occur in query profiles come first.
+     */
+    private int[][] rankProfiles(int[][] profiles, int numTerms) {
+        int[] frequency = new int[numTerms];
+        boolean[] occurs = new boolean[numTerms];
+        for (int p = 0; p < profiles.length; p++) {
+            for (int t : profiles[p]) {
+                occurs[t] = true;
+                if (p < numIndexed) {
+                    frequency[t]++;
+                }
+            }
+        }
+        List<Integer> terms = new ArrayList<>();
+        for (int t = 0; t < numTerms; t++) {
+            if (occurs[t]) {
+                terms.add(t);
+            }
+        }
+        terms.sort((a, b) -> frequency[a] != frequency[b] ? Integer.compare(frequency[a], frequency[b]) :
+                Integer.compare(a, b));
+        int[] rank = new int[numTerms];
+        for (int r = 0; r < terms.size(); r++) {
+            rank[terms.get(r)] = r;
+        }
+        int[][] ranked = new int[profiles.length][];
+        for (int p = 0; p < profiles.length; p++) {
+            ranked[p] = new int[profiles[p].length];
+            for (int i = 0; i < profiles[p].length; i++) {
+                ranked[p][i] = rank[profiles[p][i]];
+            }
+            Arrays.sort(ranked[p]);
+        }
+        return ranked;
+    }
+
+    /**
+     * Finds the keys of each patient for RESNIK and LIN: the terms of its ancestor closure with positive IC,
+     * in decreasing order of IC, and then, for LIN, numTerms if it is annotated with a term of IC 0 (two
+     * such terms have Lin similarity 1).
+     */
+    private static int[][] icKeys(List<Patient> all, int[][] annotated, TermIndex termIndex,
+                                  InformationContent ic, boolean lin) {
+        int[][] keys = new int[all.size()][];
+        for (int p = 0; p < keys.length; p++) {
+            int[] closure = termIndex.ancestorClosureOfHpoNumbers(all.get(p).getHpoIds(), true);
+            List<Integer> informative = new ArrayList<>();
+            for (int t : closure) {
+                if (ic.get(t) > 0.0) {
+                    informative.add(t);
+                }
+            }
+            informative.sort((a, b) -> ic.get(a) != ic.get(b) ? Double.compare(ic.get(b), ic.get(a)) :
+                    Integer.compare(a, b));
+            if (lin && Arrays.stream(annotated[p]).anyMatch(t -> ic.get(t) == 0.0)) {
+                informative.add(termIndex.size());
+            }
+            keys[p] = new int[informative.size()];
+            for (int i = 0; i < keys[p].length; i++) {
+                keys[p][i] = informative.get(i);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Builds the postings of each key from the keys of the cohort patients.
+     */
+    private void buildPostings(int numKeys) {
+        int[] indexed = new int[numIndexed];
+        for (int p = 0; p < numIndexed; p++) {
+            indexed[p] = keys[p].length;
+        }
+        int[][] index = buildPostings(numKeys, indexed);
+        postingStart = index[0];
+        postings = index[1];
+    }
+
+    /**
+     * Builds the postings of each key from the first indexed[p] keys of each cohort patient p. For JACCARD, the
+     * postings of each key are sorted by profile size (then position), so that the length filter selects a
+     * range of them.
+     * @return int[][]    start of the postings of each key, and the postings
+     */
+    private int[][] buildPostings(int numKeys, int[] indexed) {
+        int[] start = new int[numKeys + 1];
+        for (int p = 0; p < numIndexed; p++) {
+            for (int i = 0; i < indexed[p]; i++) {
+                start[keys[p][i] + 1]++;
+            }
+        }
+        for (int key = 0; key < numKeys; key++) {
+            start[key + 1] += start[key];
+        }
+        int[] entries = new int[start[numKeys]];
+        int[] next = Arrays.copyOf(start, numKeys);
+        for (int p = 0; p < numIndexed; p++) {
+            for (int i = 0; i < indexed[p]; i++) {
+                entries[next[keys[p][i]]++] = p;
+            }
+        }
+        if (jaccard != null) {
+            long[] sorted = new long[0];
+            for (int key = 0; key < numKeys; key++) {
+                int length = start[key + 1] - start[key];
+                if (sorted.length < length) {
+                    sorted = new long[length];
+                }
+                for (int j = 0; j < length; j++) {
+                    int y = entries[start[key] + j];
+                    sorted[j] = (long) jaccard.cardinality(y) << 32 | y;
+                }
+                Arrays.sort(sorted, 0, length);
+                for (int j = 0; j < length; j++) {
+                    entries[start[key] + j] = (int) sorted[j];
+                }
+            }
+        }
+        return new int[][] {start, entries};
+    }
+
+    /**
+     * Length of the JACCARD prefix of a profile of n terms for a threshold: a patient whose overlap with it
+     * reaches the threshold shares one of its first n - c + 1 terms, c being the smallest overlap for which
+     * c / n (a bound on the similarity) reaches the threshold.
+     */
+    private static int prefixLength(int n, double threshold) {
+        int c = (int) Math.ceil(threshold * n);
+        while (c > 1 && (double) (c - 1) / n >= threshold) {
+            c--;
+        }
+        while (c <= n && (double) c / n < threshold) {
+            c++;
+        }
+        return Math.max(0, n - Math.max(c, 1) + 1);
+    }
+
+    /**
+     * Bound on the Jaccard similarity of a query of n terms and a patient of size terms, first met at
+     * position i of the query: their overlap is at most min(n - i, size).
+     */
+    private static double jaccardBound(int n, int i, int size) {
+        int maxOverlap = Math.min(n - i, size);
+        return (double) maxOverlap / (double) (n + size - maxOverlap);
+    }
+
+    /**
+     * Finds the postings of a JACCARD key whose bound reaches the threshold. The bound increases with the
+     * profile size up to n - i and decreases after it, so the postings reaching it form one range.
+     * @return int[]    start and end of the range of postings
+     */
+    private int[] jaccardRange(int[] postingStart, int[] postings, int key, int n, int i, double threshold) {
+        int start = postingStart[key];
+        int end = postingStart[key + 1];
+        // first posting whose size is at least n - i
+        int peak = firstPosting(start, end, j -> jaccard.cardinality(postings[j]) >= n - i);
+        int from = firstPosting(start, peak,
+                j -> jaccardBound(n, i, jaccard.cardinality(postings[j])) >= threshold);
+        int to = firstPosting(peak, end,
+                j -> jaccardBound(n, i, jaccard.cardinality(postings[j])) < threshold);
+        return new int[] {from, to};
+    }
+
+    /**
+     * Binary search for the first position in [from, to) satisfying a predicate that is false up to some
+     * position and true after it.
+     */
+    private static int firstPosting(int from, int to, IntPredicate test) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (test.test(mid)) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Finds the k nearest neighbours of a cohort patient (other than the patient itself).
+     * @param p                 position of the patient in the cohort
+     * @param k                 number of neighbours wanted (at least 1)
+     * @return List<Neighbor>   at most k neighbours, by decreasing similarity
+     */
+    public List<Neighbor> nearest(int p, int k) {
+        return search(p, k, new Scratch(numIndexed, k));
+    }
+
+    /**
+     * Finds the k nearest neighbours in the cohort of a query patient.
+     * @param q                 position of the patient in the list of queries
+     * @param k                 number of neighbours wanted (at least 1)
+     * @return List<Neighbor>   at most k neighbours, by decreasing similarity
+     */
+    public List<Neighbor> nearestToQuery(int q, int k) {
+        return search(numIndexed + q, k, new Scratch(numIndexed, k));
+    }
+
+    /**
+     * Finds the k nearest neighbours of every cohort patient, or of every query patient, on a fork-join pool.
+     * @param k                 number of neighbours wanted (at least 1)
+     * @param ofQueries         true for the neighbours of the query patients, false for those of the cohort
+     * @param numThreads        number of worker threads (1 to search on the calling thread)
+     * @return List[]           neighbours of each patient, by decreasing similarity
+     */
+    public List<List<Neighbor>> allNearest(int k, boolean ofQueries, int numThreads) {
+        int from = ofQueries ? numIndexed : 0;
+        int to = ofQueries ? keys.length : numIndexed;
+        List<List<Neighbor>> result = new ArrayList<>(Collections.nCopies(to - from, null));
+        SearchTask all = new SearchTask(k, result, from, from, to);
+        if (numThreads > 1) {
+            ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            all.compute();
+        }
+        return result;
+    }
+
+    /**
+     * Finds, for every cohort patient, the patients before it in the cohort whose similarity to it is at least
+     * the threshold, on a fork-join pool. Each pair of patients whose similarity reaches the threshold is thus
+     * found once, in the row of the later of the two: together, the rows are the lower triangle of the
+     * sparse similarity graph.
+     * @param threshold         smallest similarity of a pair that is found (greater than 0)
+     * @param numThreads        number of worker threads (1 to search on the calling thread)
+     * @return List[]           patients before each cohort patient reaching the threshold, by position
+     */
+    public List<Edges> allAbove(double threshold, int numThreads) {
+        int[][] index = {postingStart, postings};
+        if (jaccard != null) {
+            // a pair reaching the threshold shares a term of the prefixes of both profiles
+            int[] indexed = new int[numIndexed];
+            for (int p = 0; p < numIndexed; p++) {
+                indexed[p] = prefixLength(keys[p].length, threshold);
+            }
+            index = buildPostings(postingStart.length - 1, indexed);
+        }
+        List<Edges> result = new ArrayList<>(Collections.nCopies(numIndexed, null));
+        AboveTask all = new AboveTask(threshold, index, result, 0, numIndexed);
+        if (numThreads > 1) {
+            ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            all.compute();
+        }
+        return result;
+    }
+
+    /**
+     * @return long    number of pairs scored so far, over all searches
+     */
+    public long getPairsScored() { return pairsScored.sum(); }
+
+    /**
+     * @return long    number of pairs that scoring every cohort patient would have scored, over all searches
+     */
+    public long getPairsSearched() { return pairsSearched.sum(); }
+
+    /**
+     * @return long    number of neighbours returned so far, over all searches
+     */
+    public long getPairsFound() { return pairsFound.sum(); }
+
+    /**
+     * Scans the postings of the keys of patient x, scoring the candidates whose bound can still enter the top k.
+     */
+    private List<Neighbor> search(int x, int k, Scratch scratch) {
+        scratch.clear();
+        int[] keysX = keys[x];
+        int n = keysX.length;
+        boolean jaccardMetric = metric == PatientSimilarity.Metric.JACCARD;
+        boolean resnik = metric == PatientSimilarity.Metric.RESNIK;
+        long scored = 0;
+        for (int i = 0; i < n; i++) {
+            int key = keysX[i];
+            if (scratch.isFull()) {
+                double threshold = scratch.worstSimilarity();
+                if (jaccardMetric && (double) (n - i) / n < threshold) {
+                    break;
+                }
+                if (resnik && keyBound[key] * (1.0 + BOUND_SLACK) < threshold) {
+                    break;
+                }
+            }
+            int from = postingStart[key];
+            int to = postingStart[key + 1];
+            if (jaccardMetric && scratch.isFull()) {
+                // length filter: a patient outside the range stays outside it at the later keys
+                int[] range = jaccardRange(postingStart, postings, key, n, i, scratch.worstSimilarity());
+                from = range[0];
+                to = range[1];
+            }
+            for (int j = from; j < to; j++) {
+                int y = postings[j];
+                if (y == x || !scratch.markSeen(y)) {
+                    continue;
+                }
+                double similarity;
+                if (jaccardMetric) {
+                    // overlap is at most the terms of x from position i on, and at most the size of y
+                    if (scratch.isFull() && jaccardBound(n, i, jaccard.cardinality(y)) < scratch.worstSimilarity()) {
+                        continue;
+                    }
+                    similarity = jaccard.score(x, y);
+                } else {
+                    similarity = bma.score(x, y);
+                }
+                scored++;
+                if (similarity > 0.0) {
+                    scratch.offer(y, similarity);
+                }
+            }
+        }
+        pairsScored.add(scored);
+        pairsSearched.add(x < numIndexed ? numIndexed - 1 : numIndexed);
+        List<Neighbor> neighbors = scratch.neighbors();
+        pairsFound.add(neighbors.size());
+        return neighbors;
+    }
+
+    /**
+     * Scans the postings of the keys of cohort patient x for the patients before it, scoring the candidates
+     * whose bound reaches the threshold. For JACCARD the postings hold only the prefixes of the profiles.
+     */
+    private Edges searchAbove(int x, double threshold, int[][] index, Scratch scratch) {
+        scratch.clear();
+        int[] keysX = keys[x];
+        int n = keysX.length;
+        boolean jaccardMetric = metric == PatientSimilarity.Metric.JACCARD;
+        boolean resnik = metric == PatientSimilarity.Metric.RESNIK;
+        long scored = 0;
+        for (int i = 0; i < n; i++) {
+            int key = keysX[i];
+            if (jaccardMetric && (double) (n - i) / n < threshold) {
+                break;
+            }
+            if (resnik && keyBound[key] * (1.0 + BOUND_SLACK) < threshold) {
+                break;
+            }
+            int from = index[0][key];
+            int to = index[0][key + 1];
+            if (jaccardMetric) {
+                int[] range = jaccardRange(index[0], index[1], key, n, i, threshold);
+                from = range[0];
+                to = range[1];
+            }
+            for (int j = from; j < to; j++) {
+                int y = index[1][j];
+                if (y >= x || !scratch.markSeen(y)) {
+                    continue;
+                }
+                double similarity = jaccardMetric ? jaccard.score(x, y) : bma.score(x, y);
+                scored++;
+                if (similarity >= threshold) {
+                    scratch.found(y, similarity);
+                }
+            }
+        }
+        pairsScored.add(scored);
+        pairsSearched.add(x);
+        Edges edges = scratch.edges();
+        pairsFound.add(edges.size());
+        return edges;
+    }
+
+    /**
+     * Per-search state: the patients already met, and a bounded heap of the best neighbours found so far whose
+     * root is the worst of them (lowest similarity, then highest position).
+     */
+    private static class Scratch {
+        private int[] seen;           // search number in which each cohort patient was last met
+        private int search;
+        private int k;
+        private int size;
+        private int[] heapPosition;
+        private double[] heapSimilarity;
+        private int numFound;         // patients reaching the threshold in this search, and their similarities
+        private int[] foundPosition = new int[16];
+        private double[] similarity;
+
+
+        Scratch(int numIndexed, int k) {
+            seen = new int[numIndexed];
+            this.k = k;
+            heapPosition = new int[k];
+            heapSimilarity = new double[k];
+        }
+
+        void clear() {
+            search++;
+            size = 0;
+            numFound = 0;
+        }
+
+        /**
+         * @return boolean    true if the patient was not yet met in this search
+         */
+        boolean markSeen(int y) {
+            if (seen[y] == search) {
+                return false;
+            }
+            seen[y] = search;
+            return true;
+        }
+
+        boolean isFull() { return size == k; }
+
+        double worstSimilarity() { return heapSimilarity[0]; }
+
+        private static boolean worse(double s1, int p1, double s2, int p2) {
+            return s1 < s2 || (s1 == s2 && p1 > p2);
+        }
+
+        void offer(int y, double similarity) {
+            if (size < k) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (!worse(similarity, y, heapSimilarity[parent], heapPosition[parent])) {
+                        break;
+                    }
+                    heapPosition[i] = heapPosition[parent];
+                    heapSimilarity[i] = heapSimilarity[parent];
+                    i = parent;
+                }
+                heapPosition[i] = y;
+                heapSimilarity[i] = similarity;
+            } else if (worse(heapSimilarity[0], heapPosition[0], similarity, y)) {
+                siftDown(y, similarity);
+            }
+        }
+
+        /**
+         * Replaces the root of the heap and restores the heap order.
+         */
+        private void siftDown(int y, double similarity) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && worse(heapSimilarity[child + 1], heapPosition[child + 1],
+                        heapSimilarity[child], heapPosition[child])) {
+                    child++;
+                }
+                if (!worse(heapSimilarity[child], heapPosition[child], similarity, y)) {
+                    break;
+                }
+                heapPosition[i] = heapPosition[child];
+                heapSimilarity[i] = heapSimilarity[child];
+                i = child;
+            }
+            heapPosition[i] = y;
+            heapSimilarity[i] = similarity;
+        }
+
+        /**
+         * Records a patient reaching the threshold.
+         */
+        void found(int y, double sim) {
+            if (similarity == null) {
+                similarity = new double[seen.length];
+            }
+            if (numFound == foundPosition.length) {
+                foundPosition = Arrays.copyOf(foundPosition, 2 * numFound);
+            }
+            foundPosition[numFound++] = y;
+            similarity[y] = sim;
+        }
+
+        /**
+         * @return Edges    the patients reaching the threshold, by position
+         */
+        Edges edges() {
+            int[] positions = Arrays.copyOf(foundPosition, numFound);
+            Arrays.sort(positions);
+            double[] similarities = new double[numFound];
+            for (int i = 0; i < numFound; i++) {
+                similarities[i] = similarity[positions[i]];
+            }
+            return new Edges(positions, similarities);
+        }
+
+        /**
+         * @return List<Neighbor>    the neighbours in the heap, by decreasing similarity then position
+         */
+        List<Neighbor> neighbors() {
+            List<Neighbor> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(new Neighbor(heapPosition[i], heapSimilarity[i]));
+            }
+            result.sort((a, b) -> a.similarity != b.similarity ? Double.compare(b.similarity, a.similarity) :
+                    Integer.compare(a.position, b.position));
+            return result;
+        }
+    }
+
+    /**
+     * Searches the neighbours of a range of patients, splitting the range among fork-join workers.
+     */
+    private class SearchTask extends RecursiveAction {
+        private int k;
+        private List<List<Neighbor>> result;
+        private int offset;    // position of the patient of result.get(0)
+        private int from;
+        private int to;
+
+        SearchTask(int k, List<List<Neighbor>> result, int offset, int from, int to) {
+            this.k = k;
+            this.result = result;
+            this.offset = offset;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= QUERIES_PER_TASK) {
+                Scratch scratch = new Scratch(numIndexed, k);
+                for (int x = from; x < to; x++) {
+                    result.set(x - offset, search(x, k, scratch));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SearchTask(k, result, offset, from, mid), new SearchTask(k, result, offset, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Searches the patients reaching the threshold for a range of cohort patients, splitting the range among
+     * fork-join workers.
+     */
+    private class AboveTask extends RecursiveAction {
+        private double threshold;
+        private int[][] index;    // start of the postings of each key, and the postings
+        private List<Edges> result;
+        private int from;
+        private int to;
+
+        AboveTask(double threshold, int[][] index, List<Edges> result, int from, int to) {
+            this.threshold = threshold;
+            this.index = index;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= QUERIES_PER_TASK) {
+                Scratch scratch = new Scratch(numIndexed, 0);
+                for (int x = from; x < to; x++) {
+                    result.set(x, searchAbove(x, threshold, index, scratch));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new AboveTask(threshold, index, result, from, mid),
+                        new AboveTask(threshold, index, result, mid, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.monarchinitiative.phcompare.stats;
+
+/**
+ * PackedFloatMatrix holds the lower triangle of a similarity matrix on the heap, one float[] per row
+ * (row r has r + 1 cells), so that no single array has to hold the whole triangle.
+ */
+class PackedFloatMatrix implements SimilarityMatrix {
+    private float[][] rows;    // rows[r][c] for c <= r
+
+    PackedFloatMatrix(int dim) {
+        rows = new float[dim][];
+        for (int r = 0; r < dim; r++) {
+            rows[r] = new float[r + 1];
+        }
+    }
+
+    @Override
+    public int size() { return rows.length; }
+
+    @Override
+    public double get(int r, int c) {
+        return r >= c ? rows[r][c] : rows[c][r];
+    }
+
+    @Override
+    public void set(int r, int c, double value) {
+        if (r >= c) {
+            rows[r][c] = (float) value;
+        } else {
+            rows[c][r] = (float) value;
+        }
+    }
+
+    @Override
+    public void close() {
+        rows = new float[0][];
+    }
+}
@@ -0,0 +1,256 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.monarchinitiative.phcompare.AllocationScope;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Pam clusters patients into k clusters by Partitioning Around Medoids, as R's cluster::pam does with a
+ * dissimilarity matrix. The BUILD phase chooses k initial medoids greedily, each time adding the patient
+ * that most reduces the total dissimilarity of the patients to their nearest medoid. The SWAP phase then
+ * repeatedly makes the single swap of a medoid with a non-medoid that most reduces that total, until no
+ * swap reduces it. Both phases scan the candidates in the order of R's implementation and break ties the
+ * same way, and the sums are accumulated in the same order, so the medoids are those R finds. Each SWAP
+ * step evaluates the candidate swaps on a fork-join pool; each task keeps the first best swap of its range
+ * of non-medoids, and the ranges are combined in order, so the result does not depend on the number of
+ * threads.
+ *
+ * Clusters are numbered from 1 in the order in which they first occur among the patients.
+ */
+public class Pam {
+    // smallest number of non-medoids evaluated by one worker without further splitting
+    private static final int CANDIDATES_PER_TASK = 16;
+    // R's threshold for a swap to count as an improvement: -16 DBL_EPSILON |total|
+    private static final double IMPROVEMENT = 16 * Math.ulp(1.0);
+
+    private Dissimilarities dissim;
+    private int n;
+    private boolean[] isMedoid;
+    private double[] nearest;        // dissimilarity of each patient to its nearest medoid
+    private double[] second;         // dissimilarity of each patient to its second nearest medoid
+    private int[] clustering;        // cluster of each patient, from 1
+    private int[] medoids;           // medoid of each cluster (cluster c + 1 has medoid medoids[c])
+    private double cost;             // total dissimilarity of the patients to their medoids
+    private int swaps;               // number of swaps made by the SWAP phase
+
+    /**
+     * Clusters the patients.
+     * @param dissim        dissimilarities of the patients
+     * @param k             number of clusters, from 1 to the number of patients
+     * @param numThreads    number of worker threads for evaluating swaps (1 to evaluate on the calling thread)
+     */
+    public Pam(Dissimilarities dissim, int k, int numThreads) {
+        this.dissim = dissim;
+        n = dissim.size();
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException("[Pam] Number of clusters must be from 1 to " + n + " but was " + k);
+        }
+        isMedoid = new boolean[n];
+        nearest = new double[n];
+        second = new double[n];
+        // larger than any dissimilarity, as in R
+        double big = 1.0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < i; j++) {
+                big = Math.max(big, dissim.get(i, j));
+            }
+        }
+        big = big * 1.1 + 1.0;
+
+        build(k, big);
+        ForkJoinPool pool = numThreads > 1 ? AllocationScope.forkJoinPool(numThreads) : null;
+        try {
+            swap(big, pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        assign(k, big);
+    }
+
+    /**
+     * BUILD phase: adds, k times, the non-medoid with the largest gain; on ties the last one found, as in R.
+     */
+    private void build(int k, double big) {
+        Arrays.fill(nearest, big);
+        for (int m = 0; m < k; m++) {
+            int best = -1;
+            double bestGain = 0.0;
+            for (int i = 0; i < n; i++) {
+                if (!isMedoid[i]) {
+                    double gain = 0.0;
+                    for (int j = 0; j < n; j++) {
+                        double g = nearest[j] - dissim.get(i, j);
+                        if (g > 0.0) {
+                            gain += g;
+                        }
+                    }
+                    if (bestGain <= gain) {
+                        bestGain = gain;
+                        best = i;
+                    }
+                }
+            }
+            isMedoid[best] = true;
+            for (int j = 0; j < n; j++) {
+                nearest[j] = Math.min(nearest[j], dissim.get(best, j));
+            }
+        }
+    }
+
+    /**
+     * Recomputes the dissimilarity of each patient to its nearest and second nearest medoid, and the total.
+     */
+    private void updateNearest(double big) {
+        cost = 0.0;
+        for (int j = 0; j < n; j++) {
+            nearest[j] = big;
+            second[j] = big;
+            for (int i = 0; i < n; i++) {
+                if (isMedoid[i]) {
+                    double d = dissim.get(i, j);
+                    if (nearest[j] > d) {
+                        second[j] = nearest[j];
+                        nearest[j] = d;
+                    } else if (second[j] > d) {
+                        second[j] = d;
+                    }
+                }
+            }
+            cost += nearest[j];
+        }
+    }
+
+    /**
+     * SWAP phase: makes the best swap while it reduces the total dissimilarity.
+     */
+    private void swap(double big, ForkJoinPool pool) {
+        while (true) {
+            updateNearest(big);
+            SwapTask all = new SwapTask(0, n);
+            double[] best = pool != null ? pool.invoke(all) : all.compute();
+            if (best[0] >= -IMPROVEMENT * Math.abs(cost)) {
+                return;
+            }
+            isMedoid[(int) best[1]] = true;
+            isMedoid[(int) best[2]] = false;
+            swaps++;
+        }
+    }
+
+    /**
+     * Finds the best swap of a non-medoid h in [from, to) with a medoid i, scanning h and then i in
+     * ascending order and keeping the first smallest change of the total, as R does.
+     * @return double[]    change of the total, non-medoid, medoid (change is +infinity if there is no swap)
+     */
+    private double[] bestSwap(int from, int to) {
+        double[] best = {Double.POSITIVE_INFINITY, -1, -1};
+        for (int h = from; h < to; h++) {
+            if (isMedoid[h]) {
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                if (!isMedoid[i]) {
+                    continue;
+                }
+                double change = 0.0;
+                for (int j = 0; j < n; j++) {
+                    double dij = dissim.get(i, j);
+                    double dhj = dissim.get(h, j);
+                    if (dij == nearest[j]) {
+                        change += Math.min(second[j], dhj) - nearest[j];
+                    } else if (dhj < nearest[j]) {
+                        change += dhj - nearest[j];
+                    }
+                }
+                if (best[0] > change) {
+                    best[0] = change;
+                    best[1] = h;
+                    best[2] = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Assigns each patient to its nearest medoid (the first of equally near ones, in ascending order) and
+     * numbers the clusters in order of first occurrence.
+     */
+    private void assign(int k, double big) {
+        updateNearest(big);
+        int[] medoidCluster = new int[n];
+        medoids = new int[k];
+        clustering = new int[n];
+        int numbered = 0;
+        for (int j = 0; j < n; j++) {
+            int closest = -1;
+            double d = big;
+            for (int i = 0; i < n; i++) {
+                if (isMedoid[i] && d > dissim.get(i, j)) {
+                    d = dissim.get(i, j);
+                    closest = i;
+                }
+            }
+            if (isMedoid[j]) {
+                closest = j;
+            }
+            if (medoidCluster[closest] == 0) {
+                medoidCluster[closest] = ++numbered;
+                medoids[numbered - 1] = closest;
+            }
+            clustering[j] = medoidCluster[closest];
+        }
+    }
+
+    /**
+     * @return int[]     cluster of each patient, numbered from 1
+     */
+    public int[] getClustering() { return clustering; }
+
+    /**
+     * @return int[]     position of the medoid of each cluster (the medoid of cluster c is at index c - 1)
+     */
+    public int[] getMedoids() { return medoids; }
+
+    /**
+     * @return double    total dissimilarity of the patients to the medoids of their clusters
+     */
+    public double getCost() { return cost; }
+
+    /**
+     * @return int       number of swaps made after the BUILD phase
+     */
+    public int getSwaps() { return swaps; }
+
+    /**
+     * Evaluates the swaps of a range of non-medoids, splitting the range among fork-join workers.
+     */
+    private class SwapTask extends RecursiveTask<double[]> {
+        private int from;
+        private int to;
+
+        SwapTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from <= CANDIDATES_PER_TASK) {
+                return bestSwap(from, to);
+            }
+            int mid = (from + to) >>> 1;
+            SwapTask left = new SwapTask(from, mid);
+            SwapTask right = new SwapTask(mid, to);
+            invokeAll(left, right);
+            double[] first = left.join();
+            double[] last = right.join();
+            // the left range comes first in R's scan, so it wins ties
+            return last[0] < first[0] ? last : first;
+        }
+    }
+}
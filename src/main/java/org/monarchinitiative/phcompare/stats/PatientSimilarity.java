@@ -5,9 +5,14 @@ import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
 import com.github.phenomics.ontolib.ontology.data.Ontology;
 import com.github.phenomics.ontolib.ontology.data.TermId;
 import com.github.phenomics.ontolib.ontology.similarity.JaccardSimilarity;
+import org.monarchinitiative.phcompare.AllocationScope;
 import org.monarchinitiative.phcompare.Patient;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Hannah Blau (blauh)
@@ -15,7 +20,22 @@ import java.util.List;
  * @since 07 Sep 2017
  */
 public class PatientSimilarity {
-    private double[][] similarityMatrix;
+    /**
+     * Similarity metrics for pairs of patients.
+     */
+    public enum Metric {
+        JACCARD,    // Jaccard similarity of the ancestor-closed profiles
+        RESNIK,     // best-match average of Resnik term similarity (normalized by the largest IC)
+        LIN         // best-match average of Lin term similarity
+    }
+
+    // number of rows and columns of the tiles into which the matrix is split for scoring
+    static final int TILE_SIZE = 64;
+    // smallest number of tiles scored by one worker without further splitting
+    private static final int TILES_PER_TASK = 4;
+
+    private SimilarityMatrix similarityMatrix;
+    private boolean[] known;    // patients whose similarities to each other are already in the matrix (may be null)
     /** Object to determine similarity between two patients by compairing the sets of HPO terms (as TermID objects)
      * representing the phgenotypic profiles of the two patients.
      */
@@ -30,25 +50,226 @@ public class PatientSimilarity {
     public PatientSimilarity(List<Patient> Patients,Ontology<HpoTerm, HpoTermRelation> ontology) {
         int dim = Patients.size();
         this.similarity =   new JaccardSimilarity<>(ontology);
-        similarityMatrix = new double[dim][dim];
+        similarityMatrix = new PackedFloatMatrix(dim);
         for (int r = 0; r < dim; r++) {
-            similarityMatrix[r][r] = 1.0;
+            similarityMatrix.set(r, r, 1.0);
             for (int c = 0; c < r; c++) {
-                similarityMatrix[r][c] = similarityMatrix[c][r] =
-                        getJaccardSimilarity(Patients.get(r).getListOfHpoTerms() , Patients.get(c).getListOfHpoTerms());
+                similarityMatrix.set(r, c,
+                        getJaccardSimilarity(Patients.get(r).getListOfHpoTerms() , Patients.get(c).getListOfHpoTerms()));
+            }
+        }
+    }
+
+    /**
+     * Computes Jaccard similarity matrix for a list of patients from the dense term index on one thread.
+     * @param patients        List of Patients for which pairwise similarity metric is computed.
+     * @param termIndex       index of the ontology terms and their ancestors
+     */
+    public PatientSimilarity(List<Patient> patients, TermIndex termIndex) {
+        this(patients, termIndex, 1);
+    }
+
+    /**
+     * Computes Jaccard similarity matrix for a list of patients from the dense term index. Each patient's
+     * ancestor closure (without the root, as in ontolib's JaccardSimilarity) is computed once and packed
+     * into a bitset, and each pair is scored by the popcount kernel of JaccardKernel. The lower triangle of the matrix is split into
+     * square tiles of TILE_SIZE x TILE_SIZE cells, so that each tile reuses the profiles of a small block of
+     * rows and columns while they are in cache, and the tiles are scored by a fork-join pool.
+     * @param patients        List of Patients for which pairwise similarity metric is computed.
+     * @param termIndex       index of the ontology terms and their ancestors
+     * @param numThreads      number of worker threads (1 to score all tiles on the calling thread)
+     */
+    public PatientSimilarity(List<Patient> patients, TermIndex termIndex, int numThreads) {
+        this(patients, termIndex, Metric.JACCARD, null, numThreads);
+    }
+
+    /**
+     * Computes similarity matrix for a list of patients with the selected metric. For JACCARD, each
+     * patient's ancestor closure (without the root) is packed into a bitset scored by JaccardKernel. For
+     * RESNIK and LIN, each patient's annotated terms are scored by BestMatchAverage, with term similarities
+     * taken from a table of the most informative common ancestors of the terms annotating the patients.
+     * In either case the lower triangle of the matrix is scored tile by tile on a fork-join pool.
+     * @param patients        List of Patients for which pairwise similarity metric is computed.
+     * @param termIndex       index of the ontology terms and their ancestors
+     * @param metric          similarity metric
+     * @param ic              information content of each term (not used by JACCARD, may be null)
+     * @param numThreads      number of worker threads (1 to score all tiles on the calling thread)
+     */
+    public PatientSimilarity(List<Patient> patients, TermIndex termIndex, Metric metric, InformationContent ic,
+                             int numThreads) {
+        this(patients, termIndex, metric, ic, new PackedFloatMatrix(patients.size()), numThreads);
+    }
+
+    /**
+     * Computes similarity matrix for a list of patients with the selected metric, storing it in the
+     * given (empty) matrix, whose backend may be on the heap, off the heap, or in a memory-mapped file.
+     * @param patients        List of Patients for which pairwise similarity metric is computed.
+     * @param termIndex       index of the ontology terms and their ancestors
+     * @param metric          similarity metric
+     * @param ic              information content of each term (not used by JACCARD, may be null)
+     * @param matrix          matrix of size patients.size() to hold the similarity values
+     * @param numThreads      number of worker threads (1 to score all tiles on the calling thread)
+     */
+    public PatientSimilarity(List<Patient> patients, TermIndex termIndex, Metric metric, InformationContent ic,
+                             SimilarityMatrix matrix, int numThreads) {
+        this(patients, termIndex, metric, ic, matrix, null, numThreads);
+    }
+
+    /**
+     * Completes a similarity matrix in which the similarities among some of the patients (e.g. those of an
+     * earlier run) are already known. Only the pairs with at least one other patient are scored; the cells
+     * of pairs of known patients are left as they are.
+     * @param patients        List of Patients for which pairwise similarity metric is computed.
+     * @param termIndex       index of the ontology terms and their ancestors
+     * @param metric          similarity metric
+     * @param ic              information content of each term (not used by JACCARD, may be null)
+     * @param matrix          matrix of size patients.size() to hold the similarity values
+     * @param known           true for the patients whose similarities to each other are already in the
+     *                        matrix (null to score all pairs)
+     * @param numThreads      number of worker threads (1 to score all tiles on the calling thread)
+     */
+    public PatientSimilarity(List<Patient> patients, TermIndex termIndex, Metric metric, InformationContent ic,
+                             SimilarityMatrix matrix, boolean[] known, int numThreads) {
+        int dim = patients.size();
+        similarityMatrix = matrix;
+        this.known = known;
+        if (metric != Metric.JACCARD) {
+            int[][] annotated = new int[dim][];
+            for (int p = 0; p < dim; p++) {
+                annotated[p] = annotatedTerms(patients.get(p), termIndex);
+            }
+            BestMatchAverage bma = new BestMatchAverage(annotated, termIndex, ic, metric == Metric.LIN,
+                    numThreads);
+            fillMatrix(bma::score, numThreads);
+            return;
+        }
+        int[][] profiles = new int[dim][];
+        for (int p = 0; p < dim; p++) {
+            profiles[p] = termIndex.ancestorClosureOfHpoNumbers(patients.get(p).getHpoIds(), false);
+        }
+        JaccardKernel kernel = new JaccardKernel(profiles, termIndex.size());
+        fillMatrix(kernel::score, numThreads);
+    }
+
+    /**
+     * Finds the dense indices of the terms annotating a patient. Terms that are not in the index are skipped.
+     * @param patient      patient whose terms are wanted
+     * @param termIndex    index of the ontology terms
+     * @return int[]       sorted, duplicate-free dense term indices
+     */
+    static int[] annotatedTerms(Patient patient, TermIndex termIndex) {
+        int[] hpoIds = patient.getHpoIds();
+        int[] idx = new int[hpoIds.length];
+        int n = 0;
+        for (int number : hpoIds) {
+            int t = termIndex.indexOfHpoNumber(number);
+            if (t >= 0) {
+                idx[n++] = t;
+            }
+        }
+        idx = Arrays.copyOf(idx, n);
+        Arrays.sort(idx);
+        return idx;
+    }
+
+    /**
+     * Fills the similarity matrix tile by tile. Each tile writes a disjoint set of cells of the lower
+     * triangle, so tiles can be scored concurrently without synchronization.
+     * @param scorer        similarity of the patients at two positions of the list
+     * @param numThreads    number of worker threads
+     */
+    private void fillMatrix(PairScorer scorer, int numThreads) {
+        int dim = similarityMatrix.size();
+        int blocks = (dim + TILE_SIZE - 1) / TILE_SIZE;
+        // tiles[i] = {row block, column block} for all tiles on or below the diagonal
+        int[][] tiles = new int[blocks * (blocks + 1) / 2][];
+        int i = 0;
+        for (int rb = 0; rb < blocks; rb++) {
+            for (int cb = 0; cb <= rb; cb++) {
+                tiles[i++] = new int[] {rb, cb};
+            }
+        }
+        TileTask all = new TileTask(scorer, tiles, 0, tiles.length);
+        if (numThreads > 1) {
+            ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            all.compute();
+        }
+    }
+
+    /**
+     * Scores the cells of a tile that lie below the diagonal (except those of pairs of known patients), and
+     * sets the diagonal to 1.0.
+     * @param scorer    similarity of the patients at two positions of the list
+     * @param rb        row block of the tile
+     * @param cb        column block of the tile
+     */
+    private void scoreTile(PairScorer scorer, int rb, int cb) {
+        int dim = similarityMatrix.size();
+        int rEnd = Math.min(dim, (rb + 1) * TILE_SIZE);
+        int cEnd = Math.min(dim, (cb + 1) * TILE_SIZE);
+        for (int r = rb * TILE_SIZE; r < rEnd; r++) {
+            for (int c = cb * TILE_SIZE; c < Math.min(cEnd, r); c++) {
+                if (known == null || !known[r] || !known[c]) {
+                    similarityMatrix.set(r, c, scorer.score(r, c));
+                }
+            }
+            if (rb == cb) {
+                similarityMatrix.set(r, r, 1.0);
             }
         }
     }
 
     /**
      * Returns matrix of this PatientSimilarity object.
-     * @return double[][]      matrix of similarity values
+     * @return SimilarityMatrix      matrix of similarity values
      */
-    public double[][] getSimilarityMatrix() {
+    public SimilarityMatrix getSimilarityMatrix() {
         return similarityMatrix;
     }
 
     private double getJaccardSimilarity(List<TermId> patient1, List<TermId> patient2) {
         return this.similarity.computeScore(patient1, patient2);
     }
+
+    /**
+     * Similarity of the patients at positions r and c of the list.
+     */
+    interface PairScorer {
+        double score(int r, int c);
+    }
+
+    /**
+     * Scores a range of tiles, splitting the range among fork-join workers.
+     */
+    private class TileTask extends RecursiveAction {
+        private PairScorer scorer;
+        private int[][] tiles;
+        private int from;
+        private int to;
+
+        TileTask(PairScorer scorer, int[][] tiles, int from, int to) {
+            this.scorer = scorer;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    scoreTile(scorer, tiles[i][0], tiles[i][1]);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(scorer, tiles, from, mid), new TileTask(scorer, tiles, mid, to));
+            }
+        }
+    }
 }
@@ -0,0 +1,120 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.monarchinitiative.phcompare.AllocationScope;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Silhouette computes the silhouette width of each patient of a clustering, as R's cluster::silhouette does:
+ * s(i) = (b(i) - a(i)) / max(a(i), b(i)), where a(i) is the average dissimilarity of patient i to the other
+ * patients of its cluster and b(i) is the smallest average dissimilarity of i to the patients of another
+ * cluster. A patient alone in its cluster has width 0. The patients are split among fork-join workers.
+ */
+public class Silhouette {
+    // smallest number of patients handled by one worker without further splitting
+    private static final int PATIENTS_PER_TASK = 64;
+
+    private Silhouette() { }
+
+    /**
+     * Computes the silhouette widths of a clustering.
+     * @param dissim        dissimilarities of the patients
+     * @param clustering    cluster of each patient, numbered from 1 to k
+     * @param k             number of clusters
+     * @param numThreads    number of worker threads (1 to compute on the calling thread)
+     * @return double[]     silhouette width of each patient
+     */
+    public static double[] widths(Dissimilarities dissim, int[] clustering, int k, int numThreads) {
+        int[] size = new int[k + 1];
+        for (int c : clustering) {
+            size[c]++;
+        }
+        double[] widths = new double[clustering.length];
+        WidthTask all = new WidthTask(dissim, clustering, size, widths, 0, widths.length);
+        if (numThreads > 1) {
+            ForkJoinPool pool = AllocationScope.forkJoinPool(numThreads);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            all.compute();
+        }
+        return widths;
+    }
+
+    /**
+     * Average of the silhouette widths.
+     * @param widths        silhouette width of each patient
+     * @return double       average width (NaN if there are no patients)
+     */
+    public static double average(double[] widths) {
+        double sum = 0.0;
+        for (double w : widths) {
+            sum += w;
+        }
+        return sum / widths.length;
+    }
+
+    private static double width(Dissimilarities dissim, int[] clustering, int[] size, int i, double[] sum) {
+        int own = clustering[i];
+        if (size[own] == 1) {
+            return 0.0;
+        }
+        Arrays.fill(sum, 0.0);
+        for (int j = 0; j < clustering.length; j++) {
+            sum[clustering[j]] += dissim.get(i, j);
+        }
+        double a = sum[own] / (size[own] - 1);
+        double b = Double.POSITIVE_INFINITY;
+        for (int c = 1; c < size.length; c++) {
+            if (c != own && size[c] > 0) {
+                b = Math.min(b, sum[c] / size[c]);
+            }
+        }
+        if (b == Double.POSITIVE_INFINITY) {
+            // only one cluster
+            return 0.0;
+        }
+        double max = Math.max(a, b);
+        return max > 0.0 ? (b - a) / max : 0.0;
+    }
+
+    /**
+     * Computes the widths of a range of patients, splitting the range among fork-join workers.
+     */
+    private static class WidthTask extends RecursiveAction {
+        private Dissimilarities dissim;
+        private int[] clustering;
+        private int[] size;
+        private double[] widths;
+        private int from;
+        private int to;
+
+        WidthTask(Dissimilarities dissim, int[] clustering, int[] size, double[] widths, int from, int to) {
+            this.dissim = dissim;
+            this.clustering = clustering;
+            this.size = size;
+            this.widths = widths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PATIENTS_PER_TASK) {
+                double[] sum = new double[size.length];
+                for (int i = from; i < to; i++) {
+                    widths[i] = width(dissim, clustering, size, i, sum);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new WidthTask(dissim, clustering, size, widths, from, mid),
+                        new WidthTask(dissim, clustering, size, widths, mid, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.monarchinitiative.phcompare.stats;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SimilarityMatrix is a symmetric matrix of patient similarities. Only the lower triangle (including the
+ * diagonal) is stored, as float values, so each pair of patients costs 4 bytes rather than the 16 bytes of
+ * a full double[][] matrix. The matrix can be held on the heap, in direct (off-heap) buffers, or in a
+ * memory-mapped file for cohorts whose matrix does not fit in memory; all three are read and written
+ * through this interface. Cells may be set concurrently from several threads as long as no two threads
+ * set the same cell.
+ */
+public interface SimilarityMatrix extends AutoCloseable {
+    /**
+     * Storage backends for the matrix.
+     */
+    enum Store {
+        HEAP,      // packed lower triangle of float on the Java heap
+        OFFHEAP,   // direct ByteBuffers outside the Java heap
+        MMAP       // memory-mapped temporary file
+    }
+
+    /**
+     * Creates an empty matrix.
+     * @param store         storage backend
+     * @param dim           number of patients (rows and columns)
+     * @param dir           directory for the temporary file of the MMAP backend (ignored by the others)
+     * @return SimilarityMatrix   matrix with all cells 0.0
+     * @throws IOException  if the file of the MMAP backend cannot be created
+     */
+    static SimilarityMatrix create(Store store, int dim, File dir) throws IOException {
+        switch (store) {
+            case OFFHEAP:
+                return new BufferMatrix(dim, null);
+            case MMAP:
+                return new BufferMatrix(dim, dir);
+            default:
+                return new PackedFloatMatrix(dim);
+        }
+    }
+
+    /**
+     * @return int    number of rows (and columns) of the matrix
+     */
+    int size();
+
+    /**
+     * @param r          row
+     * @param c          column
+     * @return double    similarity of the patients at positions r and c
+     */
+    double get(int r, int c);
+
+    /**
+     * Sets the similarity of the patients at positions r and c (and hence of c and r).
+     * @param r        row
+     * @param c        column
+     * @param value    similarity
+     */
+    void set(int r, int c, double value);
+
+    /**
+     * Releases the storage of the matrix (for the MMAP backend, deletes the file).
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,80 @@
+package org.monarchinitiative.phcompare;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the BatchRun class, using the small ontology in src/test/resources/hpoFiles.
+ */
+public class BatchRunTest {
+    private static final String HPO_DIR = "src/test/resources/hpoFiles/";
+    private static final String GENES = "src/main/resources/gpiGenesTwoGroups.txt";
+    private static final String PATIENTS = "src/test/resources/patientFiles/testOntologyPatients.tsv";
+
+    private static void writeLines(File file, String... lines) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), Arrays.asList(lines));
+    }
+
+    @Test
+    public void testConfigurationNames() {
+        List<String> names = BatchRun.configurationNames(Arrays.asList(new File("a/genes.txt"),
+                new File("b/genes.txt"), new File("other"), new File("c/genes.tsv")));
+        assertEquals(Arrays.asList("genes", "genes-2", "other", "genes-3"), names);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingGenesFile() throws IOException {
+        File manifest = new File("target/batchRunTest/missing/manifest.txt");
+        writeLines(manifest, "# one file that does not exist", "noSuchGenes.txt");
+        BatchRun.readManifest(manifest.getPath());
+    }
+
+    @Test
+    public void testBatchMatchesSingleRuns() throws Exception {
+        File dir = new File("target/batchRunTest/run");
+        File threeGroups = new File(dir, "threeGroups.txt");
+        writeLines(threeGroups, "#Early", "DPM2 PIGY PIGA PIGC PIGH PIGP PIGQ PIGL PIGM PIGX",
+                "#Middle", "PIGV PIGN PIGB PIGO PIGF PIGG PIGW DPM3 DPM1 MPDU1",
+                "#Late", "PIGT PIGK PIGS PIGU GPAA1 PGAP1 PGAP3 PGAP2 PGAP5");
+        File manifest = new File(dir, "manifest.txt");
+        writeLines(manifest, new File(GENES).getAbsolutePath(), "", "threeGroups.txt");
+
+        File batchResults = new File(dir, "results");
+        PhenoCompare batch = new PhenoCompare(new String[] {"-o", HPO_DIR, "-b", manifest.getPath(),
+                "-p", PATIENTS, "-r", batchResults.getPath(), "-t", "2"});
+        RunReport report = new RunReport();
+        BatchRun.run(batch, manifest.getPath(), report);
+        report.stopListening();
+
+        String[][] configurations = {{GENES, "gpiGenesTwoGroups"}, {threeGroups.getPath(), "threeGroups"}};
+        for (String[] config : configurations) {
+            File single = new File(dir, "single-" + config[1]);
+            PhenoCompare phenoC = new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", config[0],
+                    "-p", PATIENTS, "-r", single.getPath()});
+            OutputMgr omgr = new OutputMgr(phenoC);
+            RunReport singleReport = new RunReport();
+            phenoC.analyze(singleReport);
+            phenoC.writeChiSquared(omgr, singleReport);
+            phenoC.writeDissim(omgr, singleReport);
+            singleReport.stopListening();
+            for (String name : new String[] {"chiSquared.tsv", "dissim.tsv"}) {
+                assertArrayEquals(config[1] + "/" + name + " differs from a single run",
+                        Files.readAllBytes(new File(single, name).toPath()),
+                        Files.readAllBytes(new File(new File(batchResults, config[1]), name).toPath()));
+            }
+            String json = new String(Files.readAllBytes(
+                    new File(new File(batchResults, config[1]), RunReport.REPORT_NAME).toPath()),
+                    StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"scope\": \"analysis\""));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.monarchinitiative.phcompare;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.monarchinitiative.phcompare.stats.SimilarityMatrix;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the DissimWriter class.
+ */
+public class DissimWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String fixed2(double value) {
+        char[] buf = new char[64];
+        return new String(buf, 0, DissimWriter.appendFixed2(value, buf, 0));
+    }
+
+    @Test
+    public void testFixed2MatchesStringFormat() {
+        // Jaccard similarities are ratios of small integers, which land on rounding ties
+        for (int den = 1; den <= 400; den++) {
+            for (int num = 0; num <= den; num++) {
+                double value = 1.0 - (double) num / (double) den;
+                assertEquals(String.format(Locale.ROOT, "%4.2f", value), fixed2(value));
+            }
+        }
+        Random rand = new Random(17);
+        for (int i = 0; i < 100000; i++) {
+            double value = rand.nextDouble() * (i % 2 == 0 ? 1.0 : 1000.0);
+            assertEquals(String.format(Locale.ROOT, "%4.2f", value), fixed2(value));
+        }
+        for (double value : new double[] { 0.0, 0.005, 0.015, 0.125, 0.145, 1.0, -1e-17, Double.NaN }) {
+            assertEquals(String.format(Locale.ROOT, "%4.2f", value), fixed2(value));
+        }
+    }
+
+    @Test
+    public void testDissimFromFloatMatchesDouble() {
+        char[] buf = new char[64];
+        for (int den = 1; den <= 400; den++) {
+            for (int num = 0; num <= den; num++) {
+                double sim = (double) num / (double) den;
+                String actual = new String(buf, 0, DissimWriter.appendDissim((float) sim, buf, 0));
+                assertEquals(num + "/" + den, String.format(Locale.ROOT, "%4.2f", 1.0 - sim), actual);
+            }
+        }
+    }
+
+    @Test
+    public void testLowerAndBinaryMatchFull() throws Exception {
+        List<Patient> pats = new ArrayList<>();
+        int dim = 5;
+        SimilarityMatrix sim = SimilarityMatrix.create(SimilarityMatrix.Store.HEAP, dim, null);
+        for (int r = 0; r < dim; r++) {
+            pats.add(new Patient("P" + r + "-PIGA\tPIGA\t1\tAuthor\tAuthor;2018;PIGA\tvar\tHP:0001250"));
+            for (int c = 0; c <= r; c++) {
+                sim.set(r, c, r == c ? 1.0 : 1.0 / (1 + r + c));
+            }
+        }
+        File dir = folder.getRoot();
+        List<String> full = Files.readAllLines(DissimWriter.write(dir, DissimWriter.Format.TSV, pats, sim).toPath());
+        List<String> lower = Files.readAllLines(
+                DissimWriter.write(dir, DissimWriter.Format.LOWER, pats, sim).toPath());
+        assertEquals(full.get(0), lower.get(0));
+        for (int r = 1; r <= dim; r++) {
+            String[] fullCells = full.get(r).split("\t", -1);
+            String[] lowerCells = lower.get(r).split("\t", -1);
+            assertEquals(r, lowerCells.length);
+            for (int c = 1; c < lowerCells.length; c++) {
+                assertEquals(fullCells[c], lowerCells[c]);
+            }
+        }
+
+        byte[] bin = Files.readAllBytes(DissimWriter.write(dir, DissimWriter.Format.BINARY, pats, sim).toPath());
+        ByteBuffer buf = ByteBuffer.wrap(bin).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('P', buf.get());
+        assertEquals('C', buf.get());
+        assertEquals('D', buf.get());
+        assertEquals('M', buf.get());
+        assertEquals(DissimWriter.BINARY_VERSION, buf.getInt());
+        assertEquals(dim, buf.getInt());
+        assertEquals(4, buf.getInt());
+        for (int r = 1; r < dim; r++) {
+            for (int c = 0; c < r; c++) {
+                assertEquals((float) (1.0 - sim.get(r, c)), buf.getFloat(), 0.0f);
+            }
+        }
+        assertFalse(buf.hasRemaining());
+        assertEquals(dim, Files.readAllLines(new File(dir, "dissimIds.txt").toPath()).size());
+    }
+}
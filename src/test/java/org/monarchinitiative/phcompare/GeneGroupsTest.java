@@ -6,6 +6,7 @@ import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -49,4 +50,36 @@ public class GeneGroupsTest {
         assertTrue(midg.contains("PIGV"));
         assertTrue(lateg.contains("PIGG"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMultiMembership() throws Exception {
+        GeneGroups ggs = new GeneGroups("src/test/resources/geneFiles/multiGenes.txt");
+        assertEquals("Gene in two groups belongs to the first", 0, ggs.whichGroup("PIGA"));
+        assertArrayEquals(new int[] {0, 1}, ggs.whichGroups("PIGA"));
+        assertArrayEquals(new int[] {1}, ggs.whichGroups("PIGV"));
+        assertArrayEquals(new int[0], ggs.whichGroups("PIGX"));
+        assertEquals(-1, ggs.whichGroup("PIGX"));
+        assertEquals(1, ggs.getMultiGroupGenes().size());
+        assertTrue(ggs.getMultiGroupGenes().contains("PIGA"));
+    }
+
+    @Test
+    public void testAliases() throws Exception {
+        GeneGroups ggs = new GeneGroups("src/test/resources/geneFiles/multiGenes.txt",
+                "src/test/resources/geneFiles/hgncAliases.txt");
+        assertEquals("Alias symbol not resolved", 0, ggs.whichGroup("GPI3"));
+        assertEquals("Previous symbol not resolved", 0, ggs.whichGroup("PNH1"));
+        assertEquals(0, ggs.whichGroup("GPI-MT-I"));
+        assertEquals(1, ggs.whichGroup("PIG-V"));
+        assertEquals("Alias of genes in different groups should be ignored", -1, ggs.whichGroup("SHARED"));
+        assertEquals("Alias of unlisted gene should be ignored", -1, ggs.whichGroup("PIGX"));
+        assertEquals(1, ggs.whichGroup("PIGV"));
+    }
+
+    @Test
+    public void testMissingAliasFile() throws Exception {
+        thrown.expect(IOException.class);
+        thrown.expectMessage("Cannot find HGNC gene file");
+        new GeneGroups("src/test/resources/geneFiles/goodGenes.txt", "src/test/resources/geneFiles/missing.txt");
+    }
+}
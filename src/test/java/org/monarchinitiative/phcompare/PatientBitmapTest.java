@@ -0,0 +1,84 @@
+package org.monarchinitiative.phcompare;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PatientBitmap class.
+ */
+public class PatientBitmapTest {
+
+    /**
+     * Creates sorted indices spanning several 65536-patient chunks, with one dense chunk (bitmap container)
+     * and sparse chunks (array containers).
+     */
+    private static int[] sampleIndices() {
+        Random rand = new Random(42);
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < 65536; i++) {
+            if (rand.nextInt(4) == 0) indices.add(i);              // dense chunk
+        }
+        for (int i = 65536; i < 3 * 65536; i++) {
+            if (rand.nextInt(1000) == 0) indices.add(i);           // sparse chunks
+        }
+        indices.add(5 * 65536 + 7);                                // lone index in a distant chunk
+        int[] sorted = new int[indices.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = indices.get(i);
+        }
+        return sorted;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        int[] sorted = sampleIndices();
+        PatientBitmap bitmap = new PatientBitmap(sorted, sorted.length);
+        assertEquals(sorted.length, bitmap.cardinality());
+        assertArrayEquals(sorted, bitmap.toArray());
+        for (int index : sorted) {
+            assertTrue(bitmap.contains(index));
+        }
+        assertFalse(bitmap.contains(4 * 65536));
+        assertFalse(bitmap.contains(sorted[sorted.length - 1] + 1));
+    }
+
+    @Test
+    public void testNextIndex() {
+        int[] sorted = sampleIndices();
+        PatientBitmap bitmap = new PatientBitmap(sorted, sorted.length);
+        int i = 0;
+        for (int p = bitmap.nextIndex(0); p >= 0; p = bitmap.nextIndex(p + 1)) {
+            assertEquals(sorted[i++], p);
+        }
+        assertEquals(sorted.length, i);
+        assertEquals(5 * 65536 + 7, bitmap.nextIndex(3 * 65536));
+        assertEquals(-1, bitmap.nextIndex(5 * 65536 + 8));
+    }
+
+    @Test
+    public void testRangeCardinality() {
+        int[] sorted = sampleIndices();
+        PatientBitmap bitmap = new PatientBitmap(sorted, sorted.length);
+        int[][] ranges = {{0, 100}, {1000, 70000}, {0, 65536}, {65536, 2 * 65536}, {50, 6 * 65536}};
+        for (int[] range : ranges) {
+            int expected = 0;
+            for (int index : sorted) {
+                if (index >= range[0] && index < range[1]) expected++;
+            }
+            assertEquals(expected, bitmap.rangeCardinality(range[0], range[1]));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        PatientBitmap bitmap = new PatientBitmap(new int[] {3, 4}, 0);
+        assertEquals(0, bitmap.cardinality());
+        assertEquals(-1, bitmap.nextIndex(0));
+        assertEquals(0, bitmap.toArray().length);
+    }
+}
@@ -0,0 +1,76 @@
+package org.monarchinitiative.phcompare;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PatientFileReader class.
+ */
+public class PatientFileReaderTest {
+    private static final String PATIENTS = "src/test/resources/patientFiles/testOntologyPatients.tsv";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Reads the file line by line, as PhenoCompare did before PatientFileReader.
+     */
+    private static void readLineByLine(File file, List<Patient> patients, List<String> warnings)
+            throws Exception {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("#")) {
+                try {
+                    patients.add(new Patient(line));
+                } catch (DataFormatException e) {
+                    warnings.add(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void assertSameRecords(File file, int numThreads, int blockBytes) throws Exception {
+        List<Patient> expectedPatients = new ArrayList<>();
+        List<String> expectedWarnings = new ArrayList<>();
+        readLineByLine(file, expectedPatients, expectedWarnings);
+        List<Patient> patients = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        PatientFileReader.read(file, numThreads, blockBytes, patients::add, warnings::add);
+        assertEquals(expectedPatients, patients);
+        assertEquals(expectedWarnings, warnings);
+    }
+
+    @Test
+    public void testMatchesLineByLine() throws Exception {
+        File file = new File(PATIENTS);
+        assertSameRecords(file, 1, PatientFileReader.BLOCK_BYTES);
+        // blocks much shorter than a record, so that lines are split across many blocks
+        assertSameRecords(file, 1, 50);
+        assertSameRecords(file, 4, 50);
+        assertSameRecords(file, 4, 1000);
+    }
+
+    @Test
+    public void testWindowsLineEndingsAndMissingFinalNewline() throws Exception {
+        String text = new String(Files.readAllBytes(new File(PATIENTS).toPath()), StandardCharsets.UTF_8);
+        File crlf = folder.newFile("crlf.tsv");
+        Files.write(crlf.toPath(), text.trim().replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8));
+        List<Patient> expected = new ArrayList<>();
+        List<String> expectedWarnings = new ArrayList<>();
+        readLineByLine(new File(PATIENTS), expected, expectedWarnings);
+        List<Patient> patients = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        PatientFileReader.read(crlf, 3, 128, patients::add, warnings::add);
+        assertEquals(expected, patients);
+        assertEquals(expectedWarnings, warnings);
+    }
+}
@@ -120,4 +120,35 @@ public class PatientTest {
         assertTrue("Patient from file does not equal new patient with same elements." +
                 System.lineSeparator() + p.toString() + r.toString(), p.equals(r));
     }
+
+    @Test
+    public void testFieldSplittingMatchesStringSplit() throws Exception {
+        String good = "P1-PIGA\tPIGA\t1\tAuthor\tAuthor;2018;PIGA\tvar\t";
+        // trailing empty fields and terms are ignored, as by String.split
+        Patient p = new Patient(good + "HP:0001250;HP:0000118;;\t\t");
+        assertEquals(2, p.getHpoTerms().size());
+        // empty term in the middle of the list ends the list
+        p = new Patient(good + "HP:0001250;;HP:0000118");
+        assertEquals(1, p.getHpoTerms().size());
+        for (String bad : new String[] {"", "\t\t", good, good + "HP:1\tx", good + ";;"}) {
+            try {
+                new Patient(bad);
+                fail("Record should not parse: " + bad);
+            } catch (DataFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCompactTerms() throws Exception {
+        String good = "P1-PIGA\tPIGA\t12345\tAuthor\tAuthor;2018;PIGA\tvar\t";
+        Patient p = new Patient(good + "HP:0001250;HP:0000118;HP:0001250;HP:12;HP:0000501");
+        assertArrayEquals(new int[] {118, 501, 1250}, p.getHpoIds());
+        assertEquals("HP:0000118", p.getListOfHpoTerms().get(0).getIdWithPrefix());
+        // gene names and PubMed IDs are shared between patients
+        Patient q = new Patient(good.replace("P1-", "P2-") + "HP:0000501");
+        assertSame(p.getGene(), q.getGene());
+        assertSame(p.getPmid(), q.getPmid());
+    }
 }
@@ -0,0 +1,354 @@
+package org.monarchinitiative.phcompare;
+
+import com.github.phenomics.ontolib.ontology.data.TermId;
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+import org.monarchinitiative.phcompare.stats.HPOChiSquared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PhenoCompare class, using the small ontology in src/test/resources/hpoFiles.
+ */
+public class PhenoCompareTest {
+    private static final String HPO_DIR = "src/test/resources/hpoFiles/";
+    private static final String GENES = "src/main/resources/gpiGenesTwoGroups.txt";
+    private static final String PATIENTS = "src/test/resources/patientFiles/testOntologyPatients.tsv";
+
+    /**
+     * Runs the counting and Chi-squared stages with the specified number of threads.
+     */
+    private PhenoCompare analyze(String threads) throws Exception {
+        String[] args = {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS, "-r", "target/phenoCompareTest", "-t", threads};
+        PhenoCompare phc = new PhenoCompare(args);
+        phc.createGeneGroups();
+        phc.createPatientGroups();
+        phc.countPatients();
+        phc.calculateChiSq();
+        return phc;
+    }
+
+    @Test
+    public void testCountsMatchBitmaps() throws Exception {
+        PhenoCompare phc = analyze("1");
+        int numGroups = phc.getNumGroups();
+        int[] counts = phc.getTermCounts();
+        int[] groupStart = phc.getGroupStart();
+        PatientBitmap[] termPatients = phc.getTermPatients();
+        for (int t = 0; t < termPatients.length; t++) {
+            TermId tid = phc.getTermIndex().getTermId(t);
+            for (int g = 0; g < numGroups; g++) {
+                int inGroup = termPatients[t] == null ? 0 :
+                        termPatients[t].rangeCardinality(groupStart[g], groupStart[g + 1]);
+                assertEquals("Count for " + tid.getIdWithPrefix() + " differs from bitmap",
+                        inGroup, counts[t * numGroups + g]);
+            }
+            if (termPatients[t] != null) {
+                for (int p : termPatients[t].toArray()) {
+                    int[] closure = phc.getTermIndex().ancestorClosureOfHpoNumbers(
+                            phc.getCohort()[p].getHpoIds(), true);
+                    assertTrue(tid.getIdWithPrefix() + " does not cover patient " + phc.getCohort()[p].getPid(),
+                            Arrays.binarySearch(closure, t) >= 0);
+                }
+            }
+        }
+        // every patient with a phenotypic abnormality falls under the root of the sub-ontology
+        int root = phc.getTermIndex().getRoot();
+        for (int g = 0; g < numGroups; g++) {
+            assertTrue(counts[root * numGroups + g] > 0);
+            assertTrue(counts[root * numGroups + g] <= phc.getPatientGroups()[g].size());
+        }
+    }
+
+    @Test
+    public void testParallelCountsMatchSequential() throws Exception {
+        PhenoCompare sequential = analyze("1");
+        PhenoCompare parallel = analyze("4");
+        assertArrayEquals("Parallel counts differ from sequential counts",
+                sequential.getTermCounts(), parallel.getTermCounts());
+        PatientBitmap[] seqPatients = sequential.getTermPatients();
+        PatientBitmap[] parPatients = parallel.getTermPatients();
+        for (int t = 0; t < seqPatients.length; t++) {
+            assertEquals(seqPatients[t] == null, parPatients[t] == null);
+            if (seqPatients[t] != null) {
+                assertArrayEquals(seqPatients[t].toArray(), parPatients[t].toArray());
+            }
+        }
+        List<HPOChiSquared> seqChiSq = sequential.getTermChiSq();
+        List<HPOChiSquared> parChiSq = parallel.getTermChiSq();
+        assertEquals(seqChiSq, parChiSq);
+    }
+
+    @Test
+    public void testDetailIndexMatchesAncestors() throws Exception {
+        PhenoCompare phc = analyze("1");
+        TermIndex termIndex = phc.getTermIndex();
+        Patient[] cohort = phc.getCohort();
+        DetailIndex index = new DetailIndex(cohort, termIndex);
+        for (int target = 0; target < termIndex.size(); target++) {
+            long[] pairs = index.annotationsUnder(target);
+            int n = 0;
+            for (int p = 0; p < cohort.length; p++) {
+                for (int number : cohort[p].getHpoIds()) {
+                    int t = termIndex.indexOfHpoNumber(number);
+                    if (t >= 0 && termIndex.isAncestor(target, t)) {
+                        assertEquals(p, DetailIndex.patientOf(pairs[n]));
+                        assertEquals(t, DetailIndex.termOf(pairs[n]));
+                        n++;
+                    }
+                }
+            }
+            assertEquals("Wrong number of annotations under " + termIndex.getTermId(target), n, pairs.length);
+        }
+    }
+
+    @Test
+    public void testDetailArchiveMatchesFiles() throws Exception {
+        PhenoCompare phc = analyze("1");
+        TermIndex termIndex = phc.getTermIndex();
+        File filesDir = new File("target/phenoCompareTest/detailFiles");
+        File archiveDir = new File("target/phenoCompareTest/detailArchive");
+        filesDir.mkdirs();
+        archiveDir.mkdirs();
+        try (DetailWriter sequential = new DetailWriter(filesDir, phc.getCohort(), phc.getGroupStart(),
+                termIndex, false, 1);
+             DetailWriter parallel = new DetailWriter(archiveDir, phc.getCohort(), phc.getGroupStart(),
+                     termIndex, true, 3)) {
+            for (int t = 0; t < termIndex.size(); t++) {
+                sequential.write(t);
+                parallel.write(t);
+            }
+        }
+        // the archive holds the same files, in the order they were written
+        int t = 0;
+        try (ZipInputStream zip = new ZipInputStream(
+                new FileInputStream(new File(archiveDir, DetailWriter.ARCHIVE_NAME)))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry(), t++) {
+                String name = termIndex.getTermId(t).getIdWithPrefix().replace(':', '-') + ".tsv";
+                assertEquals(name, entry.getName());
+                assertArrayEquals("Archived " + name + " differs from detail file",
+                        Files.readAllBytes(new File(filesDir, name).toPath()), readAll(zip));
+            }
+        }
+        assertEquals(termIndex.size(), t);
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Runs the counting, Chi-squared and similarity stages in incremental mode.
+     */
+    private PhenoCompare analyzeIncrementally(String patients, File resultsDir) throws Exception {
+        String[] args = {"-o", HPO_DIR, "-g", GENES, "-p", patients, "-r", resultsDir.getPath(), "-t", "2", "-i"};
+        PhenoCompare phc = new PhenoCompare(args);
+        phc.createGeneGroups();
+        phc.createPatientGroups();
+        phc.countPatients();
+        phc.calculateChiSq();
+        new OutputMgr(phc).writeDissim();
+        return phc;
+    }
+
+    @Test
+    public void testIncrementalMatchesFullRun() throws Exception {
+        File resultsDir = new File("target/phenoCompareTest/incremental");
+        resultsDir.mkdirs();
+        new File(resultsDir, IncrementalState.STATE_NAME).delete();
+        // the first run leaves out every third patient, in both groups
+        List<String> lines = Files.readAllLines(Paths.get(PATIENTS));
+        List<String> subset = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i == 0 || i % 3 != 0) {
+                subset.add(lines.get(i));
+            }
+        }
+        File subsetFile = new File(resultsDir, "subsetPatients.tsv");
+        Files.write(subsetFile.toPath(), subset);
+        PhenoCompare first = analyzeIncrementally(subsetFile.getPath(), resultsDir);
+        PhenoCompare incremental = analyzeIncrementally(PATIENTS, resultsDir);
+        assertEquals("Only the added patients should be counted",
+                incremental.getCohort().length - first.getCohort().length, incremental.getNumCounted());
+
+        PhenoCompare full = analyze("1");
+        new OutputMgr(full).writeDissim();
+        assertArrayEquals("Incremental counts differ from full counts",
+                full.getTermCounts(), incremental.getTermCounts());
+        PatientBitmap[] fullPatients = full.getTermPatients();
+        PatientBitmap[] incPatients = incremental.getTermPatients();
+        for (int t = 0; t < fullPatients.length; t++) {
+            assertEquals(fullPatients[t] == null, incPatients[t] == null);
+            if (fullPatients[t] != null) {
+                assertArrayEquals(fullPatients[t].toArray(), incPatients[t].toArray());
+            }
+        }
+        assertEquals(full.getTermChiSq(), incremental.getTermChiSq());
+        assertArrayEquals("Incremental similarities differ from full similarities",
+                Files.readAllBytes(Paths.get("target/phenoCompareTest/dissim.tsv")),
+                Files.readAllBytes(new File(resultsDir, "dissim.tsv").toPath()));
+    }
+
+    @Test
+    public void testNeighboursReplaceMatrix() throws Exception {
+        File resultsDir = new File("target/phenoCompareTest/neighbours");
+        PhenoCompare phc = new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS,
+                "-r", resultsDir.getPath(), "-k", "3", "-q", PATIENTS});
+        OutputMgr omgr = new OutputMgr(phc);
+        RunReport report = new RunReport();
+        phc.analyze(report);
+        phc.writeSimilarities(omgr, report);
+        report.stopListening();
+
+        assertFalse(new File(resultsDir, "dissim.tsv").exists());
+        List<String> lines = Files.readAllLines(new File(resultsDir, "knn.tsv").toPath());
+        assertEquals("#Patient\tRank\tNeighbour\tSimilarity", lines.get(0));
+        assertTrue(lines.size() > 1 && lines.size() <= 1 + 3 * phc.getCohort().length);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            assertNotEquals("A patient is not its own neighbour", fields[0], fields[2]);
+            double sim = Double.parseDouble(fields[3]);
+            assertTrue(sim > 0.0 && sim <= 1.0);
+        }
+        // each patient of the cohort, as a query patient, has itself as its nearest neighbour
+        for (String line : Files.readAllLines(new File(resultsDir, "knnQuery.tsv").toPath())) {
+            String[] fields = line.split("\t");
+            if (fields[1].equals("1")) {
+                assertEquals("1.0000", fields[3]);
+            }
+        }
+
+        try {
+            new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS, "-r",
+                    resultsDir.getPath(), "-q", PATIENTS}, phc.getTermIndex());
+            fail("-q without -k should be rejected");
+        } catch (ParseException e) {
+            assertTrue(e.getMessage().contains("-q"));
+        }
+    }
+
+    @Test
+    public void testCluster() throws Exception {
+        File resultsDir = new File("target/phenoCompareTest/cluster");
+        PhenoCompare phc = new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS,
+                "-r", resultsDir.getPath(), "-x"});
+        OutputMgr omgr = new OutputMgr(phc);
+        RunReport report = new RunReport();
+        phc.analyze(report);
+        phc.writeSimilarities(omgr, report);
+        report.stopListening();
+
+        assertTrue(new File(resultsDir, "dissim.tsv").exists());
+        List<String> lines = Files.readAllLines(new File(resultsDir, "clusters.tsv").toPath());
+        assertTrue(lines.get(0).startsWith("#Patient\tpam2\tsilhouette_pam2\tpam3"));
+        assertEquals(1 + phc.getCohort().length, lines.size());
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            assertEquals(11, fields.length);
+            assertTrue(Integer.parseInt(fields[1]) <= 2 && Integer.parseInt(fields[9]) <= 8);
+            double width = Double.parseDouble(fields[2]);
+            assertTrue(width >= -1.0 && width <= 1.0);
+        }
+        List<String> summary = Files.readAllLines(new File(resultsDir, "clusterSummary.tsv").toPath());
+        assertEquals(6, summary.size());
+        assertTrue(summary.get(5).startsWith("agnes\t8\t"));
+        List<String> tree = Files.readAllLines(new File(resultsDir, "clusterTree.tsv").toPath());
+        assertEquals(phc.getCohort().length, tree.size());
+
+        try {
+            new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS, "-r",
+                    resultsDir.getPath(), "-x", "-k", "3"}, phc.getTermIndex());
+            fail("-x with -k should be rejected");
+        } catch (ParseException e) {
+            assertTrue(e.getMessage().contains("-x"));
+        }
+    }
+
+    @Test
+    public void testThresholdGraph() throws Exception {
+        File resultsDir = new File("target/phenoCompareTest/graph");
+        PhenoCompare phc = new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS,
+                "-r", resultsDir.getPath(), "-d", "0.5"});
+        OutputMgr omgr = new OutputMgr(phc);
+        RunReport report = new RunReport();
+        phc.analyze(report);
+        phc.writeSimilarities(omgr, report);
+        report.stopListening();
+
+        assertFalse(new File(resultsDir, "dissim.tsv").exists());
+        List<String> lines = Files.readAllLines(new File(resultsDir, "graph.tsv").toPath());
+        assertEquals("#Patient\tNeighbour\tSimilarity", lines.get(0));
+        int n = phc.getCohort().length;
+        assertTrue(lines.size() > 1 && lines.size() <= 1 + n * (n - 1) / 2);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            assertNotEquals("A patient is not its own neighbour", fields[0], fields[1]);
+            double sim = Double.parseDouble(fields[2]);
+            assertTrue(sim >= 0.5 && sim <= 1.0);
+        }
+
+        // the same graph as compressed sparse rows
+        PhenoCompare binary = new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS,
+                "-r", resultsDir.getPath(), "-d", "0.5", "-f", "binary"}, phc.getTermIndex());
+        binary.analyze(new RunReport());
+        binary.writeSimilarities(new OutputMgr(binary), new RunReport());
+        ByteBuffer csr = ByteBuffer.wrap(Files.readAllBytes(new File(resultsDir, "graph.csr").toPath()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('P', csr.get());
+        assertEquals('C', csr.get());
+        assertEquals('S', csr.get());
+        assertEquals('G', csr.get());
+        assertEquals(GraphWriter.CSR_VERSION, csr.getInt());
+        assertEquals(n, csr.getInt());
+        assertEquals(n, csr.getInt());
+        long numEdges = csr.getLong();
+        assertEquals(lines.size() - 1, numEdges);
+        assertEquals(24 + 8 * (n + 1) + 8 * numEdges, csr.capacity());
+        long[] offsets = new long[n + 1];
+        for (int r = 0; r <= n; r++) {
+            offsets[r] = csr.getLong();
+        }
+        assertEquals(numEdges, offsets[n]);
+        int columnsStart = csr.position();
+        for (int r = 0; r < n; r++) {
+            for (long e = offsets[r]; e < offsets[r + 1]; e++) {
+                int column = csr.getInt(columnsStart + (int) (4 * e));
+                assertTrue("Each pair is in the row of its later patient", column < r);
+            }
+        }
+        assertEquals(n, Files.readAllLines(new File(resultsDir, "graphIds.txt").toPath()).size());
+
+        for (String[] bad : new String[][] {{"-d", "0"}, {"-d", "1.5"}, {"-d", "0.5", "-k", "3"},
+                {"-d", "0.5", "-x"}, {"-d", "0.5", "-f", "lower"}}) {
+            List<String> args = new ArrayList<>(Arrays.asList("-o", HPO_DIR, "-g", GENES, "-p", PATIENTS, "-r",
+                    resultsDir.getPath()));
+            args.addAll(Arrays.asList(bad));
+            try {
+                new PhenoCompare(args.toArray(new String[0]), phc.getTermIndex());
+                fail(String.join(" ", bad) + " should be rejected");
+            } catch (ParseException e) {
+                assertTrue(e.getMessage().contains("-d"));
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.monarchinitiative.phcompare;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.monarchinitiative.phcompare.ontology.OntologySnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PhenoServer class, running the server on a free port of the loopback address with the small
+ * ontology in src/test/resources/hpoFiles.
+ */
+public class PhenoServerTest {
+    private static final String HPO_DIR = "src/test/resources/hpoFiles/";
+    private static final String GENES = "src/main/resources/gpiGenesTwoGroups.txt";
+    private static final String PATIENTS = "src/test/resources/patientFiles/testOntologyPatients.tsv";
+    private static PhenoServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new PhenoServer(HPO_DIR, OntologySnapshot.load(HPO_DIR + "hp.obo"));
+        server.start(0, 2);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    private static HttpURLConnection connect(String path) throws Exception {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Posts the genes and patients files to /analyze and splits the response into its sections.
+     */
+    private static Map<String, byte[]> analyze(String query) throws Exception {
+        HttpURLConnection conn = connect("/analyze" + query);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(Files.readAllBytes(Paths.get(GENES)));
+            out.write(("\n" + PhenoServer.PATIENTS_SEPARATOR + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(Files.readAllBytes(Paths.get(PATIENTS)));
+        }
+        assertEquals(200, conn.getResponseCode());
+        byte[] body;
+        try (InputStream in = conn.getInputStream()) {
+            body = readAll(in);
+        }
+        Map<String, byte[]> sections = new LinkedHashMap<>();
+        int pos = 0;
+        while (pos < body.length) {
+            int eol = pos;
+            while (body[eol] != '\n') {
+                eol++;
+            }
+            String[] header = new String(body, pos, eol - pos, StandardCharsets.UTF_8).split(" ");
+            assertEquals("==>", header[0]);
+            int length = Integer.parseInt(header[2]);
+            sections.put(header[1], Arrays.copyOfRange(body, eol + 1, eol + 1 + length));
+            pos = eol + 1 + length;
+        }
+        return sections;
+    }
+
+    @Test
+    public void testResponseMatchesCommandLine() throws Exception {
+        File resultsDir = new File("target/phenoServerTest");
+        PhenoCompare phenoC = new PhenoCompare(new String[] {"-o", HPO_DIR, "-g", GENES, "-p", PATIENTS,
+                "-r", resultsDir.getPath(), "-f", "lower"});
+        OutputMgr omgr = new OutputMgr(phenoC);
+        RunReport report = new RunReport();
+        phenoC.analyze(report);
+        phenoC.writeChiSquared(omgr, report);
+        phenoC.writeDissim(omgr, report);
+        report.stopListening();
+
+        Map<String, byte[]> sections = analyze("?format=lower&threads=2");
+        assertEquals(Arrays.asList("chiSquared.tsv", "dissimLower.tsv", RunReport.REPORT_NAME),
+                new ArrayList<>(sections.keySet()));
+        assertArrayEquals(Files.readAllBytes(new File(resultsDir, "chiSquared.tsv").toPath()),
+                sections.get("chiSquared.tsv"));
+        assertArrayEquals(Files.readAllBytes(new File(resultsDir, "dissimLower.tsv").toPath()),
+                sections.get("dissimLower.tsv"));
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<String, byte[]>>> responses = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                responses.add(clients.submit(() -> analyze("?metric=resnik")));
+            }
+            Map<String, byte[]> first = responses.get(0).get();
+            for (Future<Map<String, byte[]>> f : responses) {
+                Map<String, byte[]> sections = f.get();
+                assertArrayEquals(first.get("chiSquared.tsv"), sections.get("chiSquared.tsv"));
+                assertArrayEquals(first.get("dissim.tsv"), sections.get("dissim.tsv"));
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    @Test
+    public void testBadRequests() throws Exception {
+        HttpURLConnection conn = connect("/analyze?results=/tmp");
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.getOutputStream().close();
+        assertEquals(400, conn.getResponseCode());
+
+        conn = connect("/analyze?metric=cosine");
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(Files.readAllBytes(Paths.get(GENES)));
+            out.write(("\n" + PhenoServer.PATIENTS_SEPARATOR + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(Files.readAllBytes(Paths.get(PATIENTS)));
+        }
+        assertEquals(400, conn.getResponseCode());
+
+        assertEquals(405, connect("/analyze").getResponseCode());
+        assertEquals(200, connect("/health").getResponseCode());
+    }
+
+    @Test
+    public void testHealthWhileWorkersBusy() throws Exception {
+        // two analyses whose bodies never finish arriving hold both workers
+        List<HttpURLConnection> stalled = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; i++) {
+                HttpURLConnection conn = connect("/analyze");
+                conn.setRequestMethod("POST");
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(1 << 20);
+                OutputStream out = conn.getOutputStream();
+                out.write(Files.readAllBytes(Paths.get(GENES)));
+                out.flush();
+                stalled.add(conn);
+            }
+            Thread.sleep(200);
+            HttpURLConnection health = connect("/health");
+            health.setReadTimeout(5000);
+            assertEquals(200, health.getResponseCode());
+            HttpURLConnection get = connect("/analyze");
+            get.setReadTimeout(5000);
+            assertEquals(405, get.getResponseCode());
+        } finally {
+            for (HttpURLConnection conn : stalled) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestArgs() {
+        assertEquals(Arrays.asList("--metric", "lin", "--exact", "-n", "500"),
+                PhenoServer.requestArgs("metric=lin&exact&n=500"));
+        assertEquals(0, PhenoServer.requestArgs(null).size());
+        assertEquals(0, PhenoServer.findSeparator("#patients\nP1\t..."));
+        assertEquals(-1, PhenoServer.findSeparator("PIGA PIGB\n#ID\tSYMBOL"));
+    }
+}
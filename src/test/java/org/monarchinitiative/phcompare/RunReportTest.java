@@ -0,0 +1,88 @@
+package org.monarchinitiative.phcompare;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the RunReport class.
+ */
+public class RunReportTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStagesReported() throws Exception {
+        RunReport report = new RunReport();
+        long[][] blocks = new long[16][];
+        try (RunReport.Stage stage = report.start("allocate")) {
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = new long[1 << 17];    // 1 MB each
+            }
+            stage.count("blocks", blocks.length);
+        }
+        try (RunReport.Stage stage = report.start("sleep \"quoted\"")) {
+            Thread.sleep(20);
+            stage.count("naps", 1).count("dreams", 0);
+        }
+        assertEquals(2, report.getStages().size());
+        RunReport.Stage allocate = report.getStages().get(0);
+        assertTrue("Allocation of 16 MB not seen: " + allocate.getAllocatedBytes(),
+                allocate.getAllocatedBytes() >= 16L << 20);
+        RunReport.Stage sleep = report.getStages().get(1);
+        assertTrue(sleep.getWallNanos() >= 20_000_000L);
+        assertEquals(2, sleep.getCounts().size());
+
+        File reportFile = report.write(folder.getRoot(), 4);
+        assertEquals(RunReport.REPORT_NAME, reportFile.getName());
+        String json = new String(Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"threads\": 4"));
+        assertTrue(json.contains("\"scope\": \"process\""));
+        assertTrue(json.contains("{\"name\": \"allocate\""));
+        assertTrue(json.contains("\"counts\": {\"blocks\": 16}"));
+        assertTrue(json.contains("{\"name\": \"sleep \\\"quoted\\\"\""));
+        assertTrue(json.contains("\"counts\": {\"naps\": 1, \"dreams\": 0}"));
+    }
+
+    @Test
+    public void testAnalysisMeasuresOwnThreads() throws Exception {
+        long[][] blocks = new long[16][];
+        long[][] others = new long[64][];
+        RunReport report = RunReport.forAnalysis();
+        try (RunReport.Stage stage = report.start("allocate")) {
+            // 16 MB allocated by the workers of a pool of the analysis
+            ForkJoinPool pool = AllocationScope.forkJoinPool(2);
+            try {
+                pool.submit(() -> java.util.stream.IntStream.range(0, blocks.length).parallel()
+                        .forEach(i -> blocks[i] = new long[1 << 17])).get();
+            } finally {
+                pool.shutdown();
+            }
+            // 64 MB allocated meanwhile by a thread of some other work
+            Thread other = new Thread(() -> {
+                for (int i = 0; i < others.length; i++) {
+                    others[i] = new long[1 << 17];
+                }
+            });
+            other.start();
+            other.join();
+        }
+        RunReport.Stage allocate = report.getStages().get(0);
+        assertTrue("Allocation of 16 MB not seen: " + allocate.getAllocatedBytes(),
+                allocate.getAllocatedBytes() >= 16L << 20);
+        assertTrue("Allocation of another thread counted: " + allocate.getAllocatedBytes(),
+                allocate.getAllocatedBytes() < 48L << 20);
+
+        File reportFile = report.write(folder.getRoot(), 2);
+        String json = new String(Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"scope\": \"analysis\""));
+        assertFalse(json.contains("peakHeapBytes"));
+    }
+}
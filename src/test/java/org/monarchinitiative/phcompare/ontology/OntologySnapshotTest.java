@@ -0,0 +1,102 @@
+package org.monarchinitiative.phcompare.ontology;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the OntologySnapshot class, using the small ontology in src/test/resources/hpoFiles.
+ */
+public class OntologySnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File copyObo() throws Exception {
+        File obo = new File(folder.getRoot(), "hp.obo");
+        Files.copy(new File("src/test/resources/hpoFiles/hp.obo").toPath(), obo.toPath());
+        return obo;
+    }
+
+    private static void assertSameIndex(TermIndex expected, TermIndex actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getRoot(), actual.getRoot());
+        for (int t = 0; t < expected.size(); t++) {
+            assertEquals(expected.getTermId(t), actual.getTermId(t));
+            assertEquals(t, actual.indexOf(expected.getTermId(t)));
+            assertEquals(expected.getName(t), actual.getName(t));
+            assertArrayEquals(expected.getParents(t), actual.getParents(t));
+            assertArrayEquals(expected.getChildren(t), actual.getChildren(t));
+            assertArrayEquals(expected.getAncestors(t), actual.getAncestors(t));
+        }
+    }
+
+    @Test
+    public void testSnapshotMatchesParsedOntology() throws Exception {
+        File obo = copyObo();
+        TermIndex parsed = new TermIndex(OntologySnapshot.parseObo(obo.getPath()));
+        TermIndex first = OntologySnapshot.load(obo.getPath());
+        File snapshot = new File(folder.getRoot(), OntologySnapshot.SNAPSHOT_NAME);
+        assertTrue("Snapshot was not written", snapshot.isFile());
+        assertSameIndex(parsed, first);
+
+        TermIndex fromSnapshot = OntologySnapshot.read(snapshot, OntologySnapshot.checksum(obo));
+        assertNotNull("Snapshot was not accepted", fromSnapshot);
+        assertSameIndex(parsed, fromSnapshot);
+        assertSameIndex(parsed, OntologySnapshot.load(obo.getPath()));
+    }
+
+    @Test
+    public void testSnapshotRebuiltWhenOboChanges() throws Exception {
+        File obo = copyObo();
+        OntologySnapshot.load(obo.getPath());
+        File snapshot = new File(folder.getRoot(), OntologySnapshot.SNAPSHOT_NAME);
+        byte[] oldChecksum = OntologySnapshot.checksum(obo);
+
+        Files.write(obo.toPath(), "\n! edited\n".getBytes(), StandardOpenOption.APPEND);
+        byte[] newChecksum = OntologySnapshot.checksum(obo);
+        assertFalse(Arrays.equals(oldChecksum, newChecksum));
+        assertNull("Stale snapshot was accepted", OntologySnapshot.read(snapshot, newChecksum));
+
+        OntologySnapshot.load(obo.getPath());
+        assertNotNull("Snapshot was not rebuilt", OntologySnapshot.read(snapshot, newChecksum));
+    }
+
+    @Test
+    public void testCorruptSnapshotIgnored() throws Exception {
+        File obo = copyObo();
+        File snapshot = new File(folder.getRoot(), OntologySnapshot.SNAPSHOT_NAME);
+        TermIndex parsed = OntologySnapshot.load(obo.getPath());
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        Files.write(snapshot.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(OntologySnapshot.read(snapshot, OntologySnapshot.checksum(obo)));
+        assertSameIndex(parsed, OntologySnapshot.load(obo.getPath()));
+    }
+
+    @Test
+    public void testGarbledSizesIgnored() throws Exception {
+        File obo = copyObo();
+        File snapshot = new File(folder.getRoot(), OntologySnapshot.SNAPSHOT_NAME);
+        TermIndex parsed = OntologySnapshot.load(obo.getPath());
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        byte[] checksum = OntologySnapshot.checksum(obo);
+        // number of terms, length of the first term id, and the last ancestor of the last term
+        int[] offsets = {OntologySnapshot.HEADER_BYTES, OntologySnapshot.HEADER_BYTES + 8, bytes.length - 4};
+        for (int offset : offsets) {
+            for (int garbage : new int[] {-7, Integer.MAX_VALUE, 1 << 20}) {
+                ByteBuffer garbled = ByteBuffer.wrap(bytes.clone());
+                garbled.putInt(offset, garbage);
+                Files.write(snapshot.toPath(), garbled.array());
+                assertNull(OntologySnapshot.read(snapshot, checksum));
+            }
+        }
+        assertSameIndex(parsed, OntologySnapshot.load(obo.getPath()));
+    }
+}
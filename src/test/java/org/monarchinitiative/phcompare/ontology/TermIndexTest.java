@@ -0,0 +1,129 @@
+package org.monarchinitiative.phcompare.ontology;
+
+import com.github.phenomics.ontolib.formats.hpo.HpoTerm;
+import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
+import com.github.phenomics.ontolib.io.obo.hpo.HpoOboParser;
+import com.github.phenomics.ontolib.ontology.data.ImmutableTermId;
+import com.github.phenomics.ontolib.ontology.data.Ontology;
+import com.github.phenomics.ontolib.ontology.data.TermId;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.monarchinitiative.phcompare.Patient.HPOPREFIX;
+
+/**
+ * Tests for the TermIndex class, using the small ontology in src/test/resources/hpoFiles.
+ */
+public class TermIndexTest {
+    private static Ontology<HpoTerm, HpoTermRelation> ontology;
+    private static TermIndex termIndex;
+
+    @BeforeClass
+    public static void before() throws Exception {
+        HpoOboParser parser = new HpoOboParser(new File("src/test/resources/hpoFiles/hp.obo"));
+        ontology = parser.parse().getPhenotypicAbnormalitySubOntology();
+        termIndex = new TermIndex(ontology);
+    }
+
+    @Test
+    public void testIndexOrder() {
+        assertEquals("Number of indexed terms is wrong", ontology.getGraph().countVertices(), termIndex.size());
+        for (int t = 1; t < termIndex.size(); t++) {
+            assertTrue("Dense indices are not in TermId order",
+                    termIndex.getTermId(t - 1).compareTo(termIndex.getTermId(t)) < 0);
+        }
+        for (int t = 0; t < termIndex.size(); t++) {
+            assertEquals(t, termIndex.indexOf(termIndex.getTermId(t)));
+        }
+        assertEquals(ontology.getRootTermId(), termIndex.getTermId(termIndex.getRoot()));
+    }
+
+    @Test
+    public void testAncestorsMatchOntolib() {
+        for (int t = 0; t < termIndex.size(); t++) {
+            TermId tid = termIndex.getTermId(t);
+            Set<TermId> fromIndex = new HashSet<>();
+            for (int a : termIndex.getAncestors(t)) {
+                fromIndex.add(termIndex.getTermId(a));
+            }
+            assertEquals("Ancestors of " + tid.getIdWithPrefix() + " differ from ontolib",
+                    ontology.getAncestorTermIds(tid), fromIndex);
+        }
+    }
+
+    @Test
+    public void testParentsAndChildren() {
+        int severeDelay = termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0011344"));
+        int globalDelay = termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0001263"));
+        int intellectual = termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0001249"));
+        int[] expected = {intellectual, globalDelay};
+        Arrays.sort(expected);
+        assertArrayEquals(expected, termIndex.getParents(severeDelay));
+        assertArrayEquals(new int[] {severeDelay}, termIndex.getChildren(globalDelay));
+        assertEquals(0, termIndex.getParents(termIndex.getRoot()).length);
+    }
+
+    @Test
+    public void testAncestorClosure() {
+        List<TermId> terms = new ArrayList<>();
+        terms.add(new ImmutableTermId(HPOPREFIX, "0011344"));   // severe global developmental delay
+        terms.add(new ImmutableTermId(HPOPREFIX, "0001250"));   // seizures
+        terms.add(new ImmutableTermId(HPOPREFIX, "0001270"));   // alternate id, not indexed
+        terms.add(new ImmutableTermId(HPOPREFIX, "0000007"));   // mode of inheritance sub-ontology
+        Set<TermId> expected = ontology.getAllAncestorTermIds(terms, false);
+
+        int[] closure = termIndex.ancestorClosure(terms, false);
+        Set<TermId> fromIndex = new HashSet<>();
+        for (int i = 0; i < closure.length; i++) {
+            if (i > 0) {
+                assertTrue("Closure is not sorted", closure[i - 1] < closure[i]);
+            }
+            fromIndex.add(termIndex.getTermId(closure[i]));
+        }
+        assertEquals(expected, fromIndex);
+        assertEquals(closure.length + 1, termIndex.ancestorClosure(terms, true).length);
+        assertEquals(-1, termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0001270")));
+    }
+
+    @Test
+    public void testIsAncestor() {
+        int metabolism = termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0001939"));
+        int bacteriuria = termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0012461"));
+        int glaucoma = termIndex.indexOf(new ImmutableTermId(HPOPREFIX, "0000501"));
+        assertTrue(termIndex.isAncestor(metabolism, bacteriuria));
+        assertTrue(termIndex.isAncestor(metabolism, metabolism));
+        assertFalse(termIndex.isAncestor(bacteriuria, metabolism));
+        assertFalse(termIndex.isAncestor(metabolism, glaucoma));
+    }
+
+    @Test
+    public void testDescendants() {
+        for (int t = 0; t < termIndex.size(); t++) {
+            int[] desc = termIndex.getDescendants(t);
+            int n = 0;
+            for (int u = 0; u < termIndex.size(); u++) {
+                if (termIndex.isAncestor(t, u)) {
+                    assertEquals("Descendants of " + termIndex.getTermId(t) + " are wrong", u, desc[n++]);
+                }
+            }
+            assertEquals(n, desc.length);
+        }
+    }
+
+    @Test
+    public void testHpoNumbers() {
+        for (int t = 0; t < termIndex.size(); t++) {
+            TermId tid = termIndex.getTermId(t);
+            int number = HpoIds.number(tid);
+            assertEquals(tid, HpoIds.toTermId(number));
+            assertEquals(t, termIndex.indexOfHpoNumber(number));
+        }
+        assertEquals(-1, termIndex.indexOfHpoNumber(9999999));
+        assertEquals(-1, HpoIds.parse("HP:123", 3, 6));
+        assertEquals(1250, HpoIds.parse("HP:0001250", 3, 10));
+    }
+}
@@ -0,0 +1,87 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the batch Chi-squared kernel agrees exactly with the object-per-term path of HPOChiSquared.
+ */
+public class ChiSquaredKernelTest {
+
+    /**
+     * Random term x group count matrix; about half the terms are sparse.
+     */
+    private static int[] randomCounts(int numTerms, int[] groupSize, long seed) {
+        SplittableRandom rng = new SplittableRandom(seed);
+        int[] counts = new int[numTerms * groupSize.length];
+        for (int t = 0; t < numTerms; t++) {
+            for (int g = 0; g < groupSize.length; g++) {
+                counts[t * groupSize.length + g] = rng.nextInt(groupSize[g] + 1);
+            }
+        }
+        return counts;
+    }
+
+    private static void checkAgainstHPOChiSquared(int[] groupSize) {
+        int numGroups = groupSize.length;
+        int numTerms = 5000;
+        int[] counts = randomCounts(numTerms, groupSize, numGroups);
+        double[] statistic = new double[numTerms];
+        double[] pValue = new double[numTerms];
+        new ChiSquaredKernel(groupSize).compute(counts, statistic, pValue, 1);
+
+        int tested = 0;
+        for (int t = 0; t < numTerms; t++) {
+            long[][] observed = new long[numGroups][2];
+            long have = 0, total = 0;
+            for (int g = 0; g < numGroups; g++) {
+                observed[g][0] = counts[t * numGroups + g];
+                observed[g][1] = groupSize[g] - observed[g][0];
+                have += observed[g][0];
+                total += groupSize[g];
+            }
+            boolean sparse = have == 0;
+            for (int g = 0; g < numGroups; g++) {
+                sparse |= groupSize[g] * have / (double) total < 5.0 ||
+                        groupSize[g] * (total - have) / (double) total < 5.0;
+            }
+            if (sparse) {
+                assertTrue("Sparse term " + t + " should be NaN", Double.isNaN(statistic[t]));
+                assertTrue(Double.isNaN(pValue[t]));
+            } else {
+                HPOChiSquared hcs = new HPOChiSquared(null, observed);
+                assertEquals("Statistic differs for term " + t, hcs.getChiSquare(), statistic[t], 0.0);
+                assertEquals("p-value differs for term " + t, hcs.getChiSquareP(), pValue[t], 0.0);
+                tested++;
+            }
+        }
+        assertTrue(tested > 0);
+    }
+
+    @Test
+    public void testTwoGroups() {
+        checkAgainstHPOChiSquared(new int[] {93, 59});
+    }
+
+    @Test
+    public void testSeveralGroups() {
+        checkAgainstHPOChiSquared(new int[] {40, 120, 70, 300});
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        int[] groupSize = {500, 800, 650};
+        int numTerms = 20000;
+        int[] counts = randomCounts(numTerms, groupSize, 11L);
+        ChiSquaredKernel kernel = new ChiSquaredKernel(groupSize);
+        double[] seqStat = new double[numTerms], seqP = new double[numTerms];
+        double[] parStat = new double[numTerms], parP = new double[numTerms];
+        kernel.compute(counts, seqStat, seqP, 1);
+        kernel.compute(counts, parStat, parP, 4);
+        assertArrayEquals(seqStat, parStat, 0.0);
+        assertArrayEquals(seqP, parP, 0.0);
+    }
+}
@@ -0,0 +1,230 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Pam, AverageLinkage and Silhouette classes on random dissimilarities, comparing them with
+ * direct computations from the definitions.
+ */
+public class ClusteringTest {
+    private static final double DELTA = 1e-9;
+    private static Dissimilarities random;    // 150 patients, random dissimilarities
+    private static Dissimilarities distinct;  // 12 patients, all dissimilarities different
+
+    @BeforeClass
+    public static void before() {
+        Random rnd = new Random(24);
+        random = new Dissimilarities(150);
+        for (int r = 0; r < random.size(); r++) {
+            for (int c = 0; c < r; c++) {
+                random.set(r, c, rnd.nextInt(101));
+            }
+        }
+        List<Integer> values = new ArrayList<>();
+        for (int h = 0; h <= 100; h++) {
+            values.add(h);
+        }
+        Collections.shuffle(values, rnd);
+        distinct = new Dissimilarities(12);
+        int next = 0;
+        for (int r = 0; r < distinct.size(); r++) {
+            for (int c = 0; c < r; c++) {
+                distinct.set(r, c, values.get(next++));
+            }
+        }
+    }
+
+    @Test
+    public void testDissimilarities() {
+        Dissimilarities dissim = new Dissimilarities(3);
+        dissim.set(0, 2, 37);
+        assertEquals(0.37, dissim.get(2, 0), 0.0);
+        assertEquals(0.37, dissim.get(0, 2), 0.0);
+        assertEquals(0.0, dissim.get(1, 1), 0.0);
+        assertEquals(3, dissim.size());
+        try {
+            dissim.set(0, 1, 101);
+            fail("A dissimilarity above 100 hundredths should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static double cost(Dissimilarities dissim, boolean[] isMedoid) {
+        double total = 0.0;
+        for (int j = 0; j < dissim.size(); j++) {
+            double nearest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < dissim.size(); i++) {
+                if (isMedoid[i]) {
+                    nearest = Math.min(nearest, dissim.get(i, j));
+                }
+            }
+            total += nearest;
+        }
+        return total;
+    }
+
+    @Test
+    public void testPam() {
+        for (int k = 1; k <= 5; k++) {
+            Pam pam = new Pam(random, k, 1);
+            Pam parallel = new Pam(random, k, 4);
+            assertArrayEquals(pam.getMedoids(), parallel.getMedoids());
+            assertArrayEquals(pam.getClustering(), parallel.getClustering());
+            assertEquals(k, pam.getMedoids().length);
+
+            boolean[] isMedoid = new boolean[random.size()];
+            for (int m : pam.getMedoids()) {
+                isMedoid[m] = true;
+            }
+            double cost = cost(random, isMedoid);
+            assertEquals(cost, pam.getCost(), DELTA);
+            // no single swap of a medoid with a non-medoid lowers the cost
+            for (int m : pam.getMedoids()) {
+                for (int h = 0; h < random.size(); h++) {
+                    if (!isMedoid[h]) {
+                        isMedoid[m] = false;
+                        isMedoid[h] = true;
+                        assertTrue(cost(random, isMedoid) >= cost - DELTA);
+                        isMedoid[h] = false;
+                        isMedoid[m] = true;
+                    }
+                }
+            }
+            // each patient is in the cluster of a nearest medoid, and each medoid in its own cluster
+            int[] clustering = pam.getClustering();
+            int[] medoids = pam.getMedoids();
+            for (int j = 0; j < random.size(); j++) {
+                int own = medoids[clustering[j] - 1];
+                for (int m : medoids) {
+                    assertTrue(random.get(own, j) <= random.get(m, j));
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                assertEquals(c + 1, clustering[medoids[c]]);
+            }
+        }
+    }
+
+    /**
+     * Average linkage by repeatedly merging the two clusters with the smallest average dissimilarity.
+     */
+    private static double[] bruteForceHeights(Dissimilarities dissim) {
+        List<List<Integer>> clusters = new ArrayList<>();
+        for (int p = 0; p < dissim.size(); p++) {
+            clusters.add(new ArrayList<>(Collections.singletonList(p)));
+        }
+        double[] heights = new double[dissim.size() - 1];
+        for (int step = 0; step < heights.length; step++) {
+            double best = Double.POSITIVE_INFINITY;
+            int bestA = -1;
+            int bestB = -1;
+            for (int a = 0; a < clusters.size(); a++) {
+                for (int b = a + 1; b < clusters.size(); b++) {
+                    double sum = 0.0;
+                    for (int x : clusters.get(a)) {
+                        for (int y : clusters.get(b)) {
+                            sum += dissim.get(x, y);
+                        }
+                    }
+                    double average = sum / (clusters.get(a).size() * clusters.get(b).size());
+                    if (average < best) {
+                        best = average;
+                        bestA = a;
+                        bestB = b;
+                    }
+                }
+            }
+            clusters.get(bestA).addAll(clusters.remove(bestB));
+            heights[step] = best;
+        }
+        return heights;
+    }
+
+    @Test
+    public void testAverageLinkage() {
+        AverageLinkage agnes = new AverageLinkage(distinct);
+        double[] heights = agnes.getHeight();
+        assertArrayEquals(bruteForceHeights(distinct), heights, DELTA);
+        for (int s = 1; s < heights.length; s++) {
+            assertTrue(heights[s - 1] <= heights[s]);
+        }
+
+        // R's notation: each patient and each earlier merge is used exactly once
+        int[][] merge = agnes.getMerge();
+        boolean[] used = new boolean[2 * distinct.size()];
+        for (int s = 0; s < merge.length; s++) {
+            for (int label : merge[s]) {
+                assertTrue(label < 0 ? -label <= distinct.size() : label <= s);
+                int index = label < 0 ? -label - 1 : distinct.size() + label - 1;
+                assertFalse(used[index]);
+                used[index] = true;
+            }
+            if (merge[s][0] > 0) {
+                assertTrue(merge[s][1] > merge[s][0]);
+            } else if (merge[s][1] < 0) {
+                assertTrue(-merge[s][0] < -merge[s][1]);
+            }
+        }
+
+        for (int k = 1; k <= distinct.size(); k++) {
+            int[] clustering = agnes.cut(k);
+            int seen = 0;
+            for (int c : clustering) {
+                assertTrue("Clusters are numbered in order of first occurrence", c <= seen + 1);
+                seen = Math.max(seen, c);
+            }
+            assertEquals(k, seen);
+        }
+        assertEquals(1, new AverageLinkage(random).cut(1)[random.size() - 1]);
+    }
+
+    @Test
+    public void testSilhouette() {
+        int k = 3;
+        int[] clustering = new Pam(random, k, 1).getClustering();
+        double[] widths = Silhouette.widths(random, clustering, k, 1);
+        assertArrayEquals(widths, Silhouette.widths(random, clustering, k, 4), 0.0);
+        for (int i = 0; i < random.size(); i++) {
+            double[] average = new double[k + 1];
+            int[] count = new int[k + 1];
+            for (int j = 0; j < random.size(); j++) {
+                if (j != i) {
+                    average[clustering[j]] += random.get(i, j);
+                    count[clustering[j]]++;
+                }
+            }
+            double a = average[clustering[i]] / count[clustering[i]];
+            double b = Double.POSITIVE_INFINITY;
+            for (int c = 1; c <= k; c++) {
+                if (c != clustering[i]) {
+                    b = Math.min(b, average[c] / count[c]);
+                }
+            }
+            assertEquals((b - a) / Math.max(a, b), widths[i], DELTA);
+            assertTrue(widths[i] >= -1.0 && widths[i] <= 1.0);
+        }
+        double sum = 0.0;
+        for (double w : widths) {
+            sum += w;
+        }
+        assertEquals(sum / widths.length, Silhouette.average(widths), DELTA);
+
+        // a patient alone in its cluster, and a single cluster, have width 0
+        int[] alone = new int[random.size()];
+        Arrays.fill(alone, 1);
+        alone[5] = 2;
+        assertEquals(0.0, Silhouette.widths(random, alone, 2, 1)[5], 0.0);
+        Arrays.fill(alone, 1);
+        assertArrayEquals(new double[random.size()], Silhouette.widths(random, alone, 1, 1), 0.0);
+    }
+}
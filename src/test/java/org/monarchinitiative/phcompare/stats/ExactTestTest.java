@@ -0,0 +1,98 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.apache.commons.math3.util.CombinatoricsUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the exact tests of sparse group x (have, don't have) tables.
+ */
+public class ExactTestTest {
+    private static double epsilon = .0000001;
+
+    /**
+     * Brute-force Freeman-Halton p-value: sums the probabilities of all tables with the margins of the
+     * observed table that are no more probable than it, computing each probability from binomial coefficients.
+     */
+    private static double bruteForce(long[][] observed) {
+        int k = observed.length;
+        int[] size = new int[k];
+        int have = 0, total = 0;
+        for (int g = 0; g < k; g++) {
+            size[g] = (int) (observed[g][0] + observed[g][1]);
+            have += observed[g][0];
+            total += size[g];
+        }
+        int[] counts = new int[k];
+        for (int g = 0; g < k; g++) {
+            counts[g] = (int) observed[g][0];
+        }
+        double pObs = probability(counts, size, have, total);
+        double sum = 0.0;
+        int[] c = new int[k];
+        while (true) {
+            int placed = 0;
+            for (int x : c) {
+                placed += x;
+            }
+            if (placed == have) {
+                double p = probability(c, size, have, total);
+                if (p <= pObs * (1 + 1e-7)) {
+                    sum += p;
+                }
+            }
+            int g = 0;
+            while (g < k && c[g] == size[g]) {
+                c[g++] = 0;
+            }
+            if (g == k) {
+                return sum;
+            }
+            c[g]++;
+        }
+    }
+
+    private static double probability(int[] counts, int[] size, int have, int total) {
+        double p = 1.0 / CombinatoricsUtils.binomialCoefficientDouble(total, have);
+        for (int g = 0; g < counts.length; g++) {
+            p *= CombinatoricsUtils.binomialCoefficientDouble(size[g], counts[g]);
+        }
+        return p;
+    }
+
+    @Test
+    public void testFisher() {
+        ExactTest et = new ExactTest(200, 1L);
+        // Fisher's tea-tasting experiment: two-sided p-value 34/70
+        assertEquals(34.0 / 70.0, et.pValue(new long[][] {{3, 1}, {1, 3}}), epsilon);
+        long[][] sparse = {{1, 92}, {7, 52}};
+        assertEquals(bruteForce(sparse), et.pValue(sparse), epsilon);
+        // swapping the columns does not change the test
+        assertEquals(et.pValue(sparse), et.pValue(new long[][] {{92, 1}, {52, 7}}), epsilon);
+    }
+
+    @Test
+    public void testFreemanHalton() {
+        ExactTest et = new ExactTest(200, 1L);
+        long[][] sparse = {{0, 40}, {3, 30}, {6, 22}};
+        assertEquals(bruteForce(sparse), et.pValue(sparse), epsilon);
+        long[][] balanced = {{2, 8}, {2, 8}, {2, 8}, {2, 8}};
+        assertEquals(1.0, et.pValue(balanced), epsilon);
+    }
+
+    @Test
+    public void testMonteCarlo() {
+        // too many tables to enumerate, and expected counts large enough for the Chi-squared approximation
+        long[][] large = {{40, 160}, {60, 140}, {50, 150}, {45, 155}, {55, 145}, {70, 130}};
+        ExactTest et = new ExactTest(1200, 1L);
+        double p = et.pValue(large);
+        assertEquals(new HPOChiSquared(null, large).getChiSquareP(), p, 0.02);
+        assertEquals("Monte Carlo estimate should be reproducible", p, new ExactTest(1200, 1L).pValue(large), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTableLargerThanCohort() {
+        new ExactTest(10, 1L).pValue(new long[][] {{3, 5}, {2, 6}});
+    }
+}
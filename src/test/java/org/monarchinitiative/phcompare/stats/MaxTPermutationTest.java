@@ -0,0 +1,98 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Westfall-Young maxT correction on a synthetic cohort of two groups of 100 patients.
+ */
+public class MaxTPermutationTest {
+    private static final int GROUP_SIZE = 100;
+
+    /**
+     * Builds the cohort: term 0 covers 40 patients of group 0 and 5 of group 1 (strong difference), term 1
+     * covers nearly the same patients as term 0 (a correlated term), and terms 2 and 3 cover random patients
+     * of both groups with the same frequency (no difference).
+     */
+    private static int[][] members() {
+        int[][] members = new int[4][];
+        members[0] = concat(range(0, 40), range(GROUP_SIZE, GROUP_SIZE + 5));
+        members[1] = concat(range(0, 38), range(GROUP_SIZE, GROUP_SIZE + 6));
+        SplittableRandom rng = new SplittableRandom(7);
+        for (int t = 2; t < 4; t++) {
+            members[t] = rng.ints(0, 2 * GROUP_SIZE).distinct().limit(60).sorted().toArray();
+        }
+        return members;
+    }
+
+    private static int[] groupOf() {
+        int[] groupOf = new int[2 * GROUP_SIZE];
+        Arrays.fill(groupOf, GROUP_SIZE, groupOf.length, 1);
+        return groupOf;
+    }
+
+    private static int[] range(int from, int to) {
+        int[] r = new int[to - from];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = from + i;
+        }
+        return r;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    @Test
+    public void testAdjustedPvalues() {
+        MaxTPermutation maxT = new MaxTPermutation(members(), groupOf(), 2, 42L);
+        double[] adjusted = maxT.adjustedPvalues(5000, 0.05, 1);
+        assertTrue("Strong difference should be significant", adjusted[0] < 0.01);
+        assertTrue("Correlated term should be significant", adjusted[1] < 0.01);
+        assertTrue("Random term should not be significant", adjusted[2] > 0.05);
+        assertTrue("Random term should not be significant", adjusted[3] > 0.05);
+        for (double p : adjusted) {
+            assertTrue(p > 0.0 && p <= 1.0);
+        }
+    }
+
+    @Test
+    public void testNotBelowUncorrectedPvalue() {
+        int[][] members = members();
+        int[] groupOf = groupOf();
+        double[] adjusted = new MaxTPermutation(members, groupOf, 2, 42L).adjustedPvalues(5000, 0.05, 1);
+        for (int t = 0; t < members.length; t++) {
+            long[][] observed = new long[2][2];
+            for (int p : members[t]) {
+                observed[groupOf[p]][0]++;
+            }
+            for (int g = 0; g < 2; g++) {
+                observed[g][1] = GROUP_SIZE - observed[g][0];
+            }
+            double raw = new HPOChiSquared(null, observed).getChiSquareP();
+            // allow for the sampling error of the permutation estimate
+            assertTrue("maxT p-value far below raw p-value for term " + t, adjusted[t] >= raw - 0.02);
+        }
+    }
+
+    @Test
+    public void testIndependentOfThreads() {
+        double[] sequential = new MaxTPermutation(members(), groupOf(), 2, 42L).adjustedPvalues(3000, 0.05, 1);
+        double[] parallel = new MaxTPermutation(members(), groupOf(), 2, 42L).adjustedPvalues(3000, 0.05, 4);
+        assertArrayEquals(sequential, parallel, 0.0);
+    }
+
+    @Test
+    public void testEarlyStop() {
+        MaxTPermutation maxT = new MaxTPermutation(members(), groupOf(), 2, 42L);
+        maxT.adjustedPvalues(100000, 0.05, 2);
+        assertTrue("Permutations should stop once p-values are stable", maxT.getPermutations() < 100000);
+        assertEquals(0, maxT.getPermutations() % MaxTPermutation.BATCH);
+    }
+}
@@ -0,0 +1,208 @@
+package org.monarchinitiative.phcompare.stats;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.monarchinitiative.phcompare.Patient;
+import org.monarchinitiative.phcompare.ontology.OntologySnapshot;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the NearestNeighbors class, comparing its neighbours with those found by scoring all pairs, using
+ * the small ontology in src/test/resources/hpoFiles.
+ */
+public class NearestNeighborsTest {
+    private static TermIndex termIndex;
+    private static List<Patient> patients;
+
+    @BeforeClass
+    public static void before() throws Exception {
+        termIndex = OntologySnapshot.load("src/test/resources/hpoFiles/hp.obo");
+        patients = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(
+                "src/test/resources/patientFiles/testOntologyPatients.tsv"))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.startsWith("#")) {
+                    try {
+                        patients.add(new Patient(line));
+                    } catch (DataFormatException e) {
+                        // the file contains one malformed record
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the k nearest neighbours of patient x among patients 0 .. numIndexed - 1 by scoring all of them.
+     */
+    private static List<NearestNeighbors.Neighbor> bruteForce(PatientSimilarity.PairScorer scorer, int x,
+                                                              int numIndexed, int k) {
+        List<NearestNeighbors.Neighbor> all = new ArrayList<>();
+        for (int y = 0; y < numIndexed; y++) {
+            double sim = scorer.score(x, y);
+            if (y != x && sim > 0.0) {
+                all.add(new NearestNeighbors.Neighbor(y, sim));
+            }
+        }
+        all.sort((a, b) -> a.getSimilarity() != b.getSimilarity() ?
+                Double.compare(b.getSimilarity(), a.getSimilarity()) :
+                Integer.compare(a.getPosition(), b.getPosition()));
+        return all.subList(0, Math.min(k, all.size()));
+    }
+
+    private static void assertSameNeighbours(List<NearestNeighbors.Neighbor> expected,
+                                             List<NearestNeighbors.Neighbor> actual, String message) {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + " rank " + i, expected.get(i).getPosition(), actual.get(i).getPosition());
+            assertEquals(message + " rank " + i, expected.get(i).getSimilarity(), actual.get(i).getSimilarity(), 0.0);
+        }
+    }
+
+    /**
+     * Scores pairs of patients of the whole list as PatientSimilarity does.
+     */
+    private static PatientSimilarity.PairScorer scorer(PatientSimilarity.Metric metric, InformationContent ic) {
+        if (metric == PatientSimilarity.Metric.JACCARD) {
+            int[][] profiles = new int[patients.size()][];
+            for (int p = 0; p < profiles.length; p++) {
+                profiles[p] = termIndex.ancestorClosureOfHpoNumbers(patients.get(p).getHpoIds(), false);
+            }
+            return new JaccardKernel(profiles, termIndex.size())::score;
+        } else {
+            int[][] annotated = new int[patients.size()][];
+            for (int p = 0; p < annotated.length; p++) {
+                annotated[p] = PatientSimilarity.annotatedTerms(patients.get(p), termIndex);
+            }
+            return new BestMatchAverage(annotated, termIndex, ic, metric == PatientSimilarity.Metric.LIN, 1)::score;
+        }
+    }
+
+    /**
+     * Checks the neighbours of the cohort (the first numIndexed patients) and of the query patients (the rest).
+     */
+    private static void checkMetric(PatientSimilarity.Metric metric, int numIndexed, int k, int numThreads) {
+        List<Patient> cohort = patients.subList(0, numIndexed);
+        List<Patient> queries = patients.subList(numIndexed, patients.size());
+        InformationContent ic = metric == PatientSimilarity.Metric.JACCARD ? null :
+                InformationContent.fromCohort(cohort, termIndex);
+        NearestNeighbors knn = new NearestNeighbors(cohort, queries, termIndex, metric, ic, numThreads);
+
+        PatientSimilarity.PairScorer scorer = scorer(metric, ic);
+
+        List<List<NearestNeighbors.Neighbor>> all = knn.allNearest(k, false, numThreads);
+        for (int x = 0; x < numIndexed; x++) {
+            List<NearestNeighbors.Neighbor> expected = bruteForce(scorer, x, numIndexed, k);
+            assertSameNeighbours(expected, all.get(x), metric + " patient " + x);
+            assertSameNeighbours(expected, knn.nearest(x, k), metric + " single patient " + x);
+        }
+        List<List<NearestNeighbors.Neighbor>> ofQueries = knn.allNearest(k, true, numThreads);
+        for (int q = 0; q < queries.size(); q++) {
+            List<NearestNeighbors.Neighbor> expected = bruteForce(scorer, numIndexed + q, numIndexed, k);
+            assertSameNeighbours(expected, ofQueries.get(q), metric + " query " + q);
+            assertSameNeighbours(expected, knn.nearestToQuery(q, k), metric + " single query " + q);
+        }
+    }
+
+    @Test
+    public void testJaccardMatchesBruteForce() {
+        checkMetric(PatientSimilarity.Metric.JACCARD, patients.size(), 5, 1);
+        checkMetric(PatientSimilarity.Metric.JACCARD, 60, 1, 3);
+        checkMetric(PatientSimilarity.Metric.JACCARD, 60, patients.size(), 2);
+    }
+
+    @Test
+    public void testResnikMatchesBruteForce() {
+        checkMetric(PatientSimilarity.Metric.RESNIK, patients.size(), 5, 1);
+        checkMetric(PatientSimilarity.Metric.RESNIK, 60, 3, 3);
+    }
+
+    @Test
+    public void testLinMatchesBruteForce() {
+        checkMetric(PatientSimilarity.Metric.LIN, patients.size(), 5, 2);
+        checkMetric(PatientSimilarity.Metric.LIN, 60, 1, 1);
+    }
+
+    @Test
+    public void testPruning() {
+        NearestNeighbors knn = new NearestNeighbors(patients, new ArrayList<>(), termIndex,
+                PatientSimilarity.Metric.JACCARD, null, 1);
+        knn.allNearest(2, false, 1);
+        long n = patients.size();
+        assertTrue("Pairs scored: " + knn.getPairsScored(), knn.getPairsScored() < n * (n - 1));
+    }
+
+    /**
+     * Checks the pairs of cohort patients (the first numIndexed patients) reaching the threshold against
+     * those found by scoring all pairs.
+     */
+    private static void checkAbove(PatientSimilarity.Metric metric, int numIndexed, double threshold,
+                                   int numThreads) {
+        List<Patient> cohort = patients.subList(0, numIndexed);
+        InformationContent ic = metric == PatientSimilarity.Metric.JACCARD ? null :
+                InformationContent.fromCohort(cohort, termIndex);
+        NearestNeighbors graph = new NearestNeighbors(cohort, new ArrayList<>(), termIndex, metric, ic, numThreads);
+        PatientSimilarity.PairScorer scorer = scorer(metric, ic);
+
+        List<NearestNeighbors.Edges> rows = graph.allAbove(threshold, numThreads);
+        assertEquals(numIndexed, rows.size());
+        long found = 0;
+        for (int x = 0; x < numIndexed; x++) {
+            List<NearestNeighbors.Neighbor> expected = new ArrayList<>();
+            for (int y = 0; y < x; y++) {
+                double sim = scorer.score(x, y);
+                if (sim >= threshold) {
+                    expected.add(new NearestNeighbors.Neighbor(y, sim));
+                }
+            }
+            NearestNeighbors.Edges row = rows.get(x);
+            assertEquals(metric + " patient " + x, expected.size(), row.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(metric + " patient " + x, expected.get(i).getPosition(), row.getPosition(i));
+                assertEquals(metric + " patient " + x, expected.get(i).getSimilarity(), row.getSimilarity(i), 0.0);
+            }
+            found += row.size();
+        }
+        long n = numIndexed;
+        assertEquals(found, graph.getPairsFound());
+        assertEquals(n * (n - 1) / 2, graph.getPairsSearched());
+        assertTrue(graph.getPairsScored() <= graph.getPairsSearched());
+    }
+
+    @Test
+    public void testAboveMatchesBruteForce() {
+        for (double threshold : new double[] {0.1, 0.35, 0.5, 0.8, 1.0}) {
+            checkAbove(PatientSimilarity.Metric.JACCARD, patients.size(), threshold, 1);
+            checkAbove(PatientSimilarity.Metric.RESNIK, patients.size(), threshold, 3);
+            checkAbove(PatientSimilarity.Metric.LIN, 60, threshold, 2);
+        }
+    }
+
+    @Test
+    public void testAbovePruning() {
+        NearestNeighbors graph = new NearestNeighbors(patients, new ArrayList<>(), termIndex,
+                PatientSimilarity.Metric.JACCARD, null, 1);
+        graph.allAbove(0.6, 1);
+        assertTrue("Pairs scored: " + graph.getPairsScored(), graph.getPairsScored() < graph.getPairsSearched());
+    }
+
+    @Test
+    public void testEdgesOfNeighbours() {
+        List<NearestNeighbors.Neighbor> neighbors = new ArrayList<>();
+        neighbors.add(new NearestNeighbors.Neighbor(7, 0.5));
+        neighbors.add(new NearestNeighbors.Neighbor(2, 0.25));
+        NearestNeighbors.Edges edges = NearestNeighbors.Edges.of(neighbors);
+        assertEquals(2, edges.size());
+        assertEquals(7, edges.getPosition(0));
+        assertEquals(0.25, edges.getSimilarity(1), 0.0);
+    }
+}
@@ -0,0 +1,188 @@
+package org.monarchinitiative.phcompare.stats;
+
+import com.github.phenomics.ontolib.formats.hpo.HpoTerm;
+import com.github.phenomics.ontolib.formats.hpo.HpoTermRelation;
+import com.github.phenomics.ontolib.io.obo.hpo.HpoOboParser;
+import com.github.phenomics.ontolib.ontology.data.Ontology;
+import com.github.phenomics.ontolib.ontology.similarity.JaccardSimilarity;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.monarchinitiative.phcompare.Patient;
+import org.monarchinitiative.phcompare.ontology.TermIndex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PatientSimilarity class, using the small ontology in src/test/resources/hpoFiles.
+ */
+public class PatientSimilarityTest {
+    private static Ontology<HpoTerm, HpoTermRelation> ontology;
+    private static TermIndex termIndex;
+    private static List<Patient> patients;
+
+    @BeforeClass
+    public static void before() throws Exception {
+        HpoOboParser parser = new HpoOboParser(new File("src/test/resources/hpoFiles/hp.obo"));
+        ontology = parser.parse().getPhenotypicAbnormalitySubOntology();
+        termIndex = new TermIndex(ontology);
+        patients = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new FileReader(
+                "src/test/resources/patientFiles/testOntologyPatients.tsv"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (!line.startsWith("#")) {
+                try {
+                    patients.add(new Patient(line));
+                } catch (DataFormatException e) {
+                    // the file contains one malformed record
+                }
+            }
+        }
+        br.close();
+    }
+
+    @Test
+    public void testMatchesOntolibJaccard() {
+        assertTrue("Test needs more than one tile of patients", patients.size() > PatientSimilarity.TILE_SIZE);
+        SimilarityMatrix expected = new PatientSimilarity(patients, ontology).getSimilarityMatrix();
+        SimilarityMatrix actual = new PatientSimilarity(patients, termIndex).getSimilarityMatrix();
+        assertMatricesEqual(expected, actual);
+    }
+
+    @Test
+    public void testKernelMatchesOntolibJaccard() {
+        JaccardSimilarity<HpoTerm, HpoTermRelation> jaccard = new JaccardSimilarity<>(ontology);
+        int[][] profiles = new int[patients.size() + 1][];
+        for (int p = 0; p < patients.size(); p++) {
+            profiles[p] = termIndex.ancestorClosure(patients.get(p).getListOfHpoTerms(), false);
+        }
+        profiles[patients.size()] = new int[0];       // patient without phenotypic abnormalities
+        JaccardKernel kernel = new JaccardKernel(profiles, termIndex.size());
+        for (int a = 0; a < patients.size(); a++) {
+            for (int b = 0; b < patients.size(); b++) {
+                assertEquals(jaccard.computeScore(patients.get(a).getListOfHpoTerms(),
+                        patients.get(b).getListOfHpoTerms()), kernel.score(a, b), 0.0);
+            }
+            assertEquals(jaccard.computeScore(patients.get(a).getListOfHpoTerms(), new ArrayList<>()),
+                    kernel.score(a, patients.size()), 0.0);
+        }
+        assertTrue(Double.isNaN(kernel.score(patients.size(), patients.size())));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        SimilarityMatrix sequential = new PatientSimilarity(patients, termIndex, 1).getSimilarityMatrix();
+        SimilarityMatrix parallel = new PatientSimilarity(patients, termIndex, 4).getSimilarityMatrix();
+        for (int r = 0; r < patients.size(); r++) {
+            assertEquals(1.0, parallel.get(r, r), 0.0);
+        }
+        assertMatricesEqual(sequential, parallel);
+    }
+
+    @Test
+    public void testLinMatchesBruteForce() {
+        InformationContent ic = InformationContent.fromCohort(patients, termIndex);
+        SimilarityMatrix lin = new PatientSimilarity(patients, termIndex, PatientSimilarity.Metric.LIN, ic, 4)
+                .getSimilarityMatrix();
+        for (int a = 0; a < patients.size(); a++) {
+            assertEquals(1.0, lin.get(a, a), 0.0);
+            for (int b = 0; b < a; b++) {
+                int[] termsA = annotated(patients.get(a));
+                int[] termsB = annotated(patients.get(b));
+                if (termsA.length == 0 || termsB.length == 0) {
+                    continue;
+                }
+                double expected = (bestMatchAverage(termsA, termsB, ic) + bestMatchAverage(termsB, termsA, ic)) / 2;
+                assertEquals("Patients " + a + ", " + b, expected, lin.get(a, b), 1e-6);
+                assertEquals(lin.get(a, b), lin.get(b, a), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testMicaCacheMatchesTable() {
+        InformationContent ic = InformationContent.fromCohort(patients, termIndex);
+        int[] terms = new int[termIndex.size()];
+        for (int t = 0; t < terms.length; t++) {
+            terms[t] = t;
+        }
+        MicaTable table = new MicaTable(terms, termIndex, ic, 2);
+        MicaTable cached = new MicaTable(terms, termIndex, ic, 1, 0);
+        // the second pass finds the pairs in the cache
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < terms.length; i++) {
+                for (int j = 0; j < terms.length; j++) {
+                    assertEquals(table.get(i, j), cached.get(i, j), 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResnikParallelMatchesSequential() {
+        InformationContent ic = InformationContent.fromCohort(patients, termIndex);
+        SimilarityMatrix sequential = new PatientSimilarity(patients, termIndex, PatientSimilarity.Metric.RESNIK,
+                ic, 1).getSimilarityMatrix();
+        SimilarityMatrix parallel = new PatientSimilarity(patients, termIndex, PatientSimilarity.Metric.RESNIK,
+                ic, 4).getSimilarityMatrix();
+        assertMatricesEqual(sequential, parallel);
+        for (int r = 0; r < patients.size(); r++) {
+            for (int c = 0; c < r; c++) {
+                double sim = sequential.get(r, c);
+                assertTrue(Double.isNaN(sim) || sim >= 0.0 && sim <= 1.0);
+            }
+        }
+    }
+
+    @Test
+    public void testStoresAgree() throws Exception {
+        SimilarityMatrix heap = new PatientSimilarity(patients, termIndex, 2).getSimilarityMatrix();
+        for (SimilarityMatrix.Store store : SimilarityMatrix.Store.values()) {
+            File dir = new File("target");
+            try (SimilarityMatrix matrix = SimilarityMatrix.create(store, patients.size(), dir)) {
+                new PatientSimilarity(patients, termIndex, PatientSimilarity.Metric.JACCARD, null, matrix, 2);
+                assertMatricesEqual(heap, matrix);
+            }
+        }
+    }
+
+    private static void assertMatricesEqual(SimilarityMatrix expected, SimilarityMatrix actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int r = 0; r < expected.size(); r++) {
+            for (int c = 0; c < expected.size(); c++) {
+                assertEquals("Cell " + r + ", " + c, expected.get(r, c), actual.get(r, c), 0.0);
+            }
+        }
+    }
+
+    private int[] annotated(Patient p) {
+        return p.getListOfHpoTerms().stream().mapToInt(termIndex::indexOf).filter(t -> t >= 0).toArray();
+    }
+
+    // mean over the terms of from of the best Lin similarity to a term of to
+    private double bestMatchAverage(int[] from, int[] to, InformationContent ic) {
+        double sum = 0.0;
+        for (int i : from) {
+            double best = 0.0;
+            for (int j : to) {
+                double mica = 0.0;
+                for (int anc : termIndex.getAncestors(i)) {
+                    if (termIndex.isAncestor(anc, j)) {
+                        mica = Math.max(mica, ic.get(anc));
+                    }
+                }
+                double denom = ic.get(i) + ic.get(j);
+                best = Math.max(best, denom == 0.0 ? 1.0 : 2 * mica / denom);
+            }
+            sum += best;
+        }
+        return sum / from.length;
+    }
+}